@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/* End-to-end build on a generated TREC collection, as Run does it: parse into runs, merge them and write the
+ * inverted index and lexicon. The run buffer is small enough that the collection spills several runs. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BuildBenchmark {
+
+    @Param({"20000"})
+    public int numDocs;
+
+    @Param({"1", "4"})
+    public int parserThreads;
+
+    @Param({"varbyte"})
+    public String codec;
+
+    // Run buffer budget, in estimated bytes.
+    @Param({"16777216"})
+    public int bufferSize;
+
+    private Path corpus;
+
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        WorkingDirectory.requireNoIndex();
+        corpus = Files.createTempFile("corpus", ".trec");
+        Corpus.write(corpus, numDocs, Zipf.SEED);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws Throwable {
+        WorkingDirectory.clean();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws Throwable {
+        Files.deleteIfExists(corpus);
+    }
+
+    @Benchmark
+    public void build() throws Throwable {
+        Object postingBuilder = Internals.NEW_POSTING_BUILDER.invokeExact(corpus.toString(), bufferSize, parserThreads);
+        int numRuns = (int) Internals.BUILD_POSTINGS.invokeExact(postingBuilder);
+
+        Object postingCodec = Internals.CODEC_FOR_NAME.invokeExact(codec);
+        Object stream = Internals.DEFAULT_SORT_MERGE.invokeExact(numRuns);
+        try (Closeable closeable = (Closeable) stream) {
+            Object indexBuilder = Internals.NEW_INDEX_BUILDER.invokeExact(stream, postingCodec);
+            Internals.BUILD_INDEX.invokeExact(indexBuilder);
+        }
+    }
+}
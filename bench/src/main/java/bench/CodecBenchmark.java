@@ -0,0 +1,89 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encode and decode throughput of the posting codecs, in nanoseconds per integer, on blocks of Zipfian docID gaps and frequencies.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CodecBenchmark {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int NUM_BLOCKS = 4096;
+    private static final int NUM_INTS = BLOCK_SIZE * NUM_BLOCKS;
+
+    @Param({"varbyte", "bitpacking", "pfor", "simple8b"})
+    public String codec;
+
+    private Object postingCodec;
+    private int[][] blocks;
+    private Object encoded;
+    private ByteBuffer buffer;
+    private int[] decoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        postingCodec = Internals.CODEC_FOR_NAME.invokeExact(codec);
+
+        // Full blocks of docID gaps and of frequencies from every list, sampled evenly.
+        List<int[]> all = new ArrayList<>();
+        for (int[][] list : Zipf.postingLists(2000, 1_000_000, Zipf.SEED)) {
+            int[] docIds = list[0];
+            for (int start = 0; start + BLOCK_SIZE <= docIds.length; start += BLOCK_SIZE) {
+                int[] gaps = new int[BLOCK_SIZE];
+                int previous = start == 0 ? 0 : docIds[start - 1];
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    gaps[i] = docIds[start + i] - previous;
+                    previous = docIds[start + i];
+                }
+                all.add(gaps);
+                int[] freqs = new int[BLOCK_SIZE];
+                System.arraycopy(list[1], start, freqs, 0, BLOCK_SIZE);
+                all.add(freqs);
+            }
+        }
+        Collections.shuffle(all, new Random(Zipf.SEED));
+        blocks = all.subList(0, NUM_BLOCKS).toArray(new int[0][]);
+
+        encoded = Internals.NEW_BYTE_BUILDER.invokeExact(NUM_INTS * 5);
+        encode();
+        int size = (int) Internals.BYTE_BUILDER_SIZE.invokeExact(encoded);
+        byte[] bytes = (byte[]) Internals.BYTE_BUILDER_ARRAY.invokeExact(encoded);
+        buffer = ByteBuffer.allocateDirect(size + 8);
+        buffer.put(bytes, 0, size).clear();
+        decoded = new int[BLOCK_SIZE];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_INTS)
+    public int encode() throws Throwable {
+        Internals.BYTE_BUILDER_RESET.invokeExact(encoded);
+        int bytes = 0;
+        for (int[] block : blocks) {
+            bytes += (int) Internals.CODEC_ENCODE.invokeExact(postingCodec, block, 0, BLOCK_SIZE, encoded);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_INTS)
+    public int decode() throws Throwable {
+        int pos = 0;
+        int sum = 0;
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            pos = (int) Internals.CODEC_DECODE.invokeExact(postingCodec, buffer, pos, decoded, BLOCK_SIZE);
+            sum += decoded[BLOCK_SIZE - 1];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/* InvertedIndexBuilder.compressPostings, through createInvertedListForTerm, on Zipfian posting lists:
+ * time to lay out, encode and write the blocks and metadata of every list of the vocabulary. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CompressBenchmark {
+
+    private static final int NUM_TERMS = 2000;
+    private static final int NUM_DOCS = 500_000;
+
+    @Param({"varbyte", "bitpacking", "pfor", "simple8b"})
+    public String codec;
+
+    private int[][][] lists;
+    private Object builder;
+    private final OutputStream out = OutputStream.nullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        lists = Zipf.postingLists(NUM_TERMS, NUM_DOCS, Zipf.SEED);
+        Object postingCodec = Internals.CODEC_FOR_NAME.invokeExact(codec);
+        builder = Internals.NEW_INDEX_BUILDER.invokeExact((Object) null, postingCodec);
+    }
+
+    @Benchmark
+    public void compress() throws Throwable {
+        for (int[][] list : lists) {
+            Internals.CREATE_INVERTED_LIST.invokeExact(builder, out, list[0], list[1], (int[]) null, list[0].length);  // No positions
+        }
+    }
+}
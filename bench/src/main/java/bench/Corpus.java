@@ -0,0 +1,61 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generated TREC-style input, in the format PostingBuilder reads: <TEXT>, a URL line, text lines, </TEXT>.
+final class Corpus {
+
+    private static final int VOCABULARY = 50_000;
+    private static final int WORDS_PER_LINE = 12;
+
+    private Corpus() {
+    }
+
+    static void write(Path file, int numDocs, long seed) throws IOException {
+        Random random = new Random(seed);
+        Zipf words = new Zipf(VOCABULARY, 1.0, random);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int doc = 1; doc <= numDocs; doc++) {
+                out.write("<TEXT>\n");
+                out.write("http://example.com/" + doc + "\n");
+                for (String line : lines(words, random)) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.write("</TEXT>\n");
+            }
+        }
+    }
+
+    // Text lines of one document, with a few numbers, percentages and capitalized words mixed in.
+    static List<String> lines(Zipf words, Random random) {
+        int numLines = 5 + random.nextInt(40);
+        List<String> lines = new ArrayList<>(numLines);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < numLines; i++) {
+            line.setLength(0);
+            for (int w = 0; w < WORDS_PER_LINE; w++) {
+                if (w > 0) line.append(random.nextInt(8) == 0 ? ", " : " ");
+                int pick = random.nextInt(50);
+                if (pick == 0) {
+                    line.append('$').append(random.nextInt(1000));
+                } else if (pick == 1) {
+                    line.append('%').append(random.nextInt(100));
+                } else {
+                    String word = Zipf.word(words.next());
+                    line.append(pick == 2 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+                }
+            }
+            line.append('.');
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+}
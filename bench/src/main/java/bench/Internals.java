@@ -0,0 +1,137 @@
+package bench;
+
+import java.io.OutputStream;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/* The indexer lives in the default package, which a named package cannot import, and JMH does not accept
+ * benchmarks in the default package. The benchmarks reach the indexer through the method handles below
+ * instead. Handles held in static final fields are constants to the JIT, so a call through one costs the
+ * same as a direct call. Types from the default package appear as Object. */
+final class Internals {
+
+    static final MethodHandle CODEC_FOR_NAME;  // (String) -> PostingCodec
+    static final MethodHandle CODEC_ENCODE;    // (PostingCodec, int[], int, int, ByteBuilder) -> int
+    static final MethodHandle CODEC_DECODE;    // (PostingCodec, ByteBuffer, int, int[], int) -> int
+
+    static final MethodHandle NEW_BYTE_BUILDER;   // (int) -> ByteBuilder
+    static final MethodHandle BYTE_BUILDER_RESET; // (ByteBuilder) -> void
+    static final MethodHandle BYTE_BUILDER_SIZE;  // (ByteBuilder) -> int
+    static final MethodHandle BYTE_BUILDER_ARRAY; // (ByteBuilder) -> byte[]
+
+    static final MethodHandle NEW_TOKENIZER;     // () -> Tokenizer
+    static final MethodHandle TOKENIZE;          // (Tokenizer, String, TokenSink) -> void
+    static final MethodHandle NEW_TOKEN_SINK;    // (int[]) -> TokenSink counting tokens and characters into the array
+
+    static final MethodHandle NEW_POSTING_BUILDER;  // (String, int, int) -> PostingBuilder
+    static final MethodHandle BUILD_POSTINGS;       // (PostingBuilder) -> int
+    static final MethodHandle PROCESS_DOCUMENT;     // (PostingBuilder, Document) -> void
+    static final MethodHandle NEW_DOCUMENT;         // (int) -> Document
+    static final MethodHandle SET_DOCUMENT_LINES;   // (Document, List) -> void
+    static final MethodHandle GET_DOCUMENT_TERMS;   // (Document) -> int
+
+    static final MethodHandle RUN_FILE_NAME;        // (int) -> String
+    static final MethodHandle OPEN_RUN_WRITER;      // (String) -> RunFile.Writer
+    static final MethodHandle RUN_WRITE;            // (RunFile.Writer, String, long, long) -> void
+    static final MethodHandle SORT_MERGE;           // (int, int) -> PostingStream
+    static final MethodHandle DEFAULT_SORT_MERGE;   // (int) -> PostingStream
+    static final MethodHandle STREAM_NEXT;          // (PostingStream) -> boolean
+    static final MethodHandle STREAM_DOC_ID;        // (PostingStream) -> long
+
+    static final MethodHandle NEW_INDEX_BUILDER;    // (PostingStream, PostingCodec) -> InvertedIndexBuilder
+    static final MethodHandle BUILD_INDEX;          // (InvertedIndexBuilder) -> void
+    static final MethodHandle CREATE_INVERTED_LIST; // (InvertedIndexBuilder, OutputStream, int[], int[], int[], int) -> void
+
+    static {
+        try {
+            Class<?> codec = find("PostingCodec");
+            Class<?> byteBuilder = find("Util$ByteBuilder");
+            Class<?> tokenizer = find("Tokenizer");
+            Class<?> tokenSink = find("Tokenizer$TokenSink");
+            Class<?> postingBuilder = find("PostingBuilder");
+            Class<?> document = find("PostingBuilder$Document");
+            Class<?> runFile = find("RunFile");
+            Class<?> runWriter = find("RunFile$Writer");
+            Class<?> merge = find("Util$Merge");
+            Class<?> postingStream = find("PostingStream");
+            Class<?> indexBuilder = find("InvertedIndexBuilder");
+
+            CODEC_FOR_NAME = erase(lookup(codec).findStatic(codec, "forName", methodType(codec, String.class)));
+            CODEC_ENCODE = erase(lookup(codec).findVirtual(codec, "encode", methodType(int.class, int[].class, int.class, int.class, byteBuilder)));
+            CODEC_DECODE = erase(lookup(codec).findVirtual(codec, "decode", methodType(int.class, ByteBuffer.class, int.class, int[].class, int.class)));
+
+            NEW_BYTE_BUILDER = erase(lookup(byteBuilder).findConstructor(byteBuilder, methodType(void.class, int.class)));
+            BYTE_BUILDER_RESET = erase(lookup(byteBuilder).findVirtual(byteBuilder, "reset", methodType(void.class)));
+            BYTE_BUILDER_SIZE = erase(lookup(byteBuilder).findVirtual(byteBuilder, "size", methodType(int.class)));
+            BYTE_BUILDER_ARRAY = erase(lookup(byteBuilder).findVirtual(byteBuilder, "array", methodType(byte[].class)));
+
+            NEW_TOKENIZER = erase(lookup(tokenizer).findConstructor(tokenizer, methodType(void.class)));
+            TOKENIZE = erase(lookup(tokenizer).findVirtual(tokenizer, "tokenize", methodType(void.class, String.class, tokenSink)));
+            MethodHandles.Lookup local = MethodHandles.lookup();
+            MethodType accept = methodType(void.class, char[].class, int.class, int.class);
+            NEW_TOKEN_SINK = erase(LambdaMetafactory.metafactory(local, "accept", methodType(tokenSink, int[].class), accept,
+                    local.findStatic(Internals.class, "countToken", methodType(void.class, int[].class, char[].class, int.class, int.class)),
+                    accept).getTarget());
+
+            NEW_POSTING_BUILDER = erase(lookup(postingBuilder).findConstructor(postingBuilder, methodType(void.class, String.class, int.class, int.class)));
+            BUILD_POSTINGS = erase(lookup(postingBuilder).findVirtual(postingBuilder, "build", methodType(int.class)));
+            PROCESS_DOCUMENT = erase(lookup(postingBuilder).findVirtual(postingBuilder, "processDocument", methodType(void.class, document)));
+            NEW_DOCUMENT = erase(lookup(document).findConstructor(document, methodType(void.class, int.class)));
+            SET_DOCUMENT_LINES = erase(lookup(document).findSetter(document, "lines", List.class));
+            GET_DOCUMENT_TERMS = erase(lookup(document).findGetter(document, "numTerms", int.class));
+
+            RUN_FILE_NAME = lookup(merge).findStatic(merge, "runFileName", methodType(String.class, int.class));
+            OPEN_RUN_WRITER = erase(lookup(runFile).findStatic(runFile, "openWriter", methodType(runWriter, String.class)));
+            RUN_WRITE = erase(lookup(runWriter).findVirtual(runWriter, "write", methodType(void.class, String.class, long.class, long.class)));
+            SORT_MERGE = erase(lookup(merge).findStatic(merge, "sortMerge", methodType(postingStream, int.class, int.class)));
+            DEFAULT_SORT_MERGE = erase(lookup(merge).findStatic(merge, "sortMerge", methodType(postingStream, int.class)));
+            STREAM_NEXT = erase(lookup(postingStream).findVirtual(postingStream, "next", methodType(boolean.class)));
+            STREAM_DOC_ID = erase(lookup(postingStream).findVirtual(postingStream, "docId", methodType(long.class)));
+
+            NEW_INDEX_BUILDER = erase(lookup(indexBuilder).findConstructor(indexBuilder, methodType(void.class, postingStream, codec)));
+            BUILD_INDEX = erase(lookup(indexBuilder).findVirtual(indexBuilder, "buildInvertedIndex", methodType(void.class)));
+            CREATE_INVERTED_LIST = erase(lookup(indexBuilder).findVirtual(indexBuilder, "createInvertedListForTerm",
+                    methodType(void.class, OutputStream.class, int[].class, int[].class, int[].class, int.class)));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Internals() {
+    }
+
+    // Token sink used by the tokenizer benchmark: counts tokens and characters, so the tokens cannot be optimized away.
+    private static void countToken(int[] counts, char[] buf, int start, int length) {
+        counts[0]++;
+        counts[1] += length;
+    }
+
+    private static Class<?> find(String name) throws ClassNotFoundException {
+        return Class.forName(name, true, Internals.class.getClassLoader());
+    }
+
+    // A lookup with access to the private members of the class, since most of the indexer is package-private.
+    private static MethodHandles.Lookup lookup(Class<?> target) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    // Replaces the indexer's types in a handle's signature with Object, so the benchmarks can call it.
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isIndexerType(type.parameterType(i))) type = type.changeParameterType(i, Object.class);
+        }
+        if (isIndexerType(type.returnType())) type = type.changeReturnType(Object.class);
+        return handle.asType(type);
+    }
+
+    private static boolean isIndexerType(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/* Util.Merge.sortMerge over binary runs of Zipfian postings. Each run holds a slice of the docIDs, as the
+ * runs PostingBuilder spills do. The runs are written before every iteration, since the merge deletes them. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class MergeBenchmark {
+
+    private static final int NUM_DOCS = 200_000;
+
+    @Param({"16", "128"})
+    public int numRuns;
+
+    // Below numRuns, the merge takes more than one pass.
+    @Param({"8", "64"})
+    public int fanIn;
+
+    private String[] terms;
+    private int[][][] lists;
+
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        WorkingDirectory.requireNoIndex();
+        int[][][] generated = Zipf.postingLists(5000, NUM_DOCS, Zipf.SEED);
+
+        // Runs hold their terms in sorted order.
+        Integer[] order = new Integer[generated.length];
+        for (int t = 0; t < order.length; t++) order[t] = t;
+        Arrays.sort(order, Comparator.comparing(Zipf::word));
+        terms = new String[order.length];
+        lists = new int[order.length][][];
+        for (int i = 0; i < order.length; i++) {
+            terms[i] = Zipf.word(order[i]);
+            lists[i] = generated[order[i]];
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void writeRuns() throws Throwable {
+        int docsPerRun = (NUM_DOCS + numRuns - 1) / numRuns;
+        int[] next = new int[lists.length];
+        for (int run = 1; run <= numRuns; run++) {
+            int lastDoc = run * docsPerRun;
+            String file = (String) Internals.RUN_FILE_NAME.invokeExact(run);
+            Object writer = Internals.OPEN_RUN_WRITER.invokeExact(file);
+            for (int t = 0; t < lists.length; t++) {
+                int[] docIds = lists[t][0];
+                int[] freqs = lists[t][1];
+                for (; next[t] < docIds.length && docIds[next[t]] <= lastDoc; next[t]++) {
+                    Internals.RUN_WRITE.invokeExact(writer, terms[t], (long) docIds[next[t]], (long) freqs[next[t]]);
+                }
+            }
+            ((Closeable) writer).close();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws Throwable {
+        WorkingDirectory.clean();
+    }
+
+    @Benchmark
+    public long merge() throws Throwable {
+        long checksum = 0;
+        Object stream = Internals.SORT_MERGE.invokeExact(numRuns, fanIn);
+        try (Closeable closeable = (Closeable) stream) {
+            while ((boolean) Internals.STREAM_NEXT.invokeExact(stream)) {
+                checksum += (long) Internals.STREAM_DOC_ID.invokeExact(stream);
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Tokenizing and term counting, per document, on generated documents.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ParseBenchmark {
+
+    private static final int NUM_DOCS = 1000;
+
+    private List<List<String>> documents;
+    private Object tokenizer;
+    private Object sink;
+    private int[] counts;
+    private Object postingBuilder;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Random random = new Random(Zipf.SEED);
+        Zipf words = new Zipf(50_000, 1.0, random);
+        documents = new ArrayList<>(NUM_DOCS);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            documents.add(Corpus.lines(words, random));
+        }
+
+        tokenizer = Internals.NEW_TOKENIZER.invokeExact();
+        counts = new int[2];
+        sink = Internals.NEW_TOKEN_SINK.invokeExact(counts);
+        // processDocument neither reads the input nor spills, but the memory budget must be positive
+        postingBuilder = Internals.NEW_POSTING_BUILDER.invokeExact("unused", 64 << 20, 1);
+    }
+
+    // Tokenizer alone: tokens are only counted.
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCS)
+    public int tokenize() throws Throwable {
+        counts[0] = 0;
+        for (List<String> lines : documents) {
+            for (String line : lines) {
+                Internals.TOKENIZE.invokeExact(tokenizer, line, sink);
+            }
+        }
+        return counts[0];
+    }
+
+    // PostingBuilder.processDocument: tokenizing and counting the distinct terms of each document.
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCS)
+    public int processDocument() throws Throwable {
+        int terms = 0;
+        int docId = 0;
+        for (List<String> lines : documents) {
+            Object doc = Internals.NEW_DOCUMENT.invokeExact(++docId);
+            Internals.SET_DOCUMENT_LINES.invokeExact(doc, (List) lines);
+            Internals.PROCESS_DOCUMENT.invokeExact(postingBuilder, doc);
+            terms += (int) Internals.GET_DOCUMENT_TERMS.invokeExact(doc);
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,33 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/* The indexer reads and writes its runs and index files in the working directory, so the benchmarks that run
+ * it do too. They refuse to start over an existing index, and delete what they wrote afterwards. */
+final class WorkingDirectory {
+
+    private static final String OUTPUTS = "{postingList#*,mergedPostingList#*,invertedIndex,lexicon,pageTable}";
+
+    private WorkingDirectory() {
+    }
+
+    static void requireNoIndex() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(""), OUTPUTS)) {
+            for (Path file : files) {
+                throw new IllegalStateException("Run the benchmarks from a directory without index files; found " + file.toAbsolutePath());
+            }
+        }
+    }
+
+    static void clean() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(""), OUTPUTS)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+}
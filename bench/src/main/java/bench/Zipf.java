@@ -0,0 +1,78 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+// Synthetic collection statistics with a fixed seed, so that every run of a benchmark sees the same data.
+final class Zipf {
+
+    static final long SEED = 42;
+
+    private final double[] cumulative;
+    private final Random random;
+
+    // Ranks 0..n-1, where rank r is drawn with probability proportional to 1 / (r + 1)^exponent
+    Zipf(int n, double exponent, Random random) {
+        this.random = random;
+        cumulative = new double[n];
+        double sum = 0;
+        for (int r = 0; r < n; r++) {
+            sum += 1 / Math.pow(r + 1, exponent);
+            cumulative[r] = sum;
+        }
+        for (int r = 0; r < n; r++) {
+            cumulative[r] /= sum;
+        }
+    }
+
+    int next() {
+        int r = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(r < 0 ? -r - 1 : r, cumulative.length - 1);
+    }
+
+    /* Posting lists for a vocabulary whose document frequencies follow Zipf's law over numDocs documents.
+     * lists[t][0] holds the increasing docIDs of term t and lists[t][1] its frequencies, which are Zipfian too. */
+    static int[][][] postingLists(int numTerms, int numDocs, long seed) {
+        Random random = new Random(seed);
+        Zipf freqs = new Zipf(64, 2.0, random);
+        int[][][] lists = new int[numTerms][][];
+        for (int t = 0; t < numTerms; t++) {
+            int df = Math.max(1, (int) (numDocs * 0.5 / (t + 1)));
+            int[] docIds = new int[df];
+            int[] tf = new int[df];
+
+            // Sample df distinct docIDs: a set of random ones for short lists, selection sampling for long ones
+            if (df * 8L < numDocs) {
+                Set<Integer> sample = new HashSet<>();
+                while (sample.size() < df) sample.add(1 + random.nextInt(numDocs));
+                int n = 0;
+                for (int doc : sample) docIds[n++] = doc;
+                Arrays.sort(docIds);
+            } else {
+                int needed = df;
+                for (int doc = 1, n = 0; needed > 0; doc++) {
+                    if (random.nextInt(numDocs - doc + 1) < needed) {
+                        docIds[n++] = doc;
+                        needed--;
+                    }
+                }
+            }
+            for (int i = 0; i < df; i++) tf[i] = 1 + freqs.next();
+            lists[t] = new int[][]{docIds, tf};
+        }
+        return lists;
+    }
+
+    // Word of a vocabulary rank: short words for frequent ranks, like natural text.
+    static String word(int rank) {
+        StringBuilder word = new StringBuilder();
+        int r = rank;
+        do {
+            word.append((char) ('a' + r % 26));
+            r /= 26;
+        } while (r > 0);
+        return word.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The benchmarks find the indexer's methods by name and signature when Internals is loaded, so a renamed or
+ * changed method only shows when the suite is run. Loading Internals here, and calling through its handles,
+ * fails the build instead. */
+class InternalsTest {
+
+    @Test
+    void handlesResolve() {
+        assertNotNull(Internals.CREATE_INVERTED_LIST);  // Runs the static initializer, which looks up every handle
+    }
+
+    @Test
+    void codecHandlesRoundTrip() throws Throwable {
+        int[] values = {1, 5, 300, 70000};
+        Object codec = Internals.CODEC_FOR_NAME.invokeExact("pfor");
+        Object out = Internals.NEW_BYTE_BUILDER.invokeExact(16);
+        int length = (int) Internals.CODEC_ENCODE.invokeExact(codec, values, 0, values.length, out);
+        byte[] bytes = (byte[]) Internals.BYTE_BUILDER_ARRAY.invokeExact(out);
+        int[] decoded = new int[values.length];
+        assertEquals(length, (int) Internals.CODEC_DECODE.invokeExact(codec, ByteBuffer.wrap(bytes), 0, decoded, values.length));
+        assertArrayEquals(values, decoded);
+    }
+
+    @Test
+    void tokenizerHandlesCount() throws Throwable {
+        int[] counts = new int[2];
+        Object sink = Internals.NEW_TOKEN_SINK.invokeExact(counts);
+        Object tokenizer = Internals.NEW_TOKENIZER.invokeExact();
+        Internals.TOKENIZE.invokeExact(tokenizer, "Hello, world $5", sink);
+        assertArrayEquals(new int[]{3, 12}, counts);
+    }
+
+    @Test
+    void processDocumentHandleCountsTerms() throws Throwable {
+        Object postingBuilder = Internals.NEW_POSTING_BUILDER.invokeExact("unused", 64 << 20, 1);  // As ParseBenchmark
+        Object doc = Internals.NEW_DOCUMENT.invokeExact(1);
+        Internals.SET_DOCUMENT_LINES.invokeExact(doc, (List) List.of("the quick brown fox", "the lazy dog"));
+        Internals.PROCESS_DOCUMENT.invokeExact(postingBuilder, doc);
+        assertEquals(6, (int) Internals.GET_DOCUMENT_TERMS.invokeExact(doc));
+    }
+
+    @Test
+    void invertedListHandleWrites() throws Throwable {
+        Object codec = Internals.CODEC_FOR_NAME.invokeExact("varbyte");
+        Object builder = Internals.NEW_INDEX_BUILDER.invokeExact((Object) null, codec);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] docIds = {3, 7, 8, 100};
+        int[] freqs = {1, 2, 1, 4};
+        Internals.CREATE_INVERTED_LIST.invokeExact(builder, (OutputStream) out, docIds, freqs, (int[]) null, docIds.length);
+        assertTrue(out.size() > 0);
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/* Cache of decoded posting blocks, bounded by their size in bytes, which IndexReaders can share. A block is
+ * kept as its codec decodes it: the docID gaps, and the frequencies once a query has asked for them. Gaps,
+ * unlike docIDs, do not depend on the docID base of the segment, so the block serves any cursor over it.
+ * A block is keyed by the reader it was read with and its position in that reader's index file. Index files
+ * are never modified, so an entry never goes stale; those of a closed reader are evicted as they age.
+ *
+ * Cursors load blocks through load, so that concurrent queries missing the same block decode it once: the
+ * first decodes it, and the others wait for that block instead of decoding their own. */
+public class BlockCache extends SegmentedLruCache<BlockCache.Key, BlockCache.Block> {
+
+    // Approximate heap size of an entry besides its arrays: the key, block, array headers and map entries.
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final AtomicInteger nextReader = new AtomicInteger();
+    private final ConcurrentHashMap<Key, CompletableFuture<Block>> loading = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public BlockCache(long maxBytes) {
+        // The frequencies are counted from the start, so filling them in never exceeds the bound.
+        super(maxBytes, (key, block) -> ENTRY_OVERHEAD + 8 * block.gaps.length);
+    }
+
+    // The cached block, or the one decoder makes, which is cached. Waits for the block if another thread is decoding it.
+    Block load(Key key, Supplier<Block> decoder) {
+        Block block = get(key);
+        if (block != null) return block;
+
+        CompletableFuture<Block> decoded = new CompletableFuture<>();
+        CompletableFuture<Block> other = loading.putIfAbsent(key, decoded);
+        if (other != null) {
+            coalesced.increment();
+            return other.join();
+        }
+        try {
+            block = decoder.get();
+            put(key, block);
+            decoded.complete(block);
+            return block;
+        } catch (RuntimeException | Error e) {
+            decoded.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, decoded);
+        }
+    }
+
+    // Misses that waited for another thread's decode instead of decoding the block.
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public String stats() {
+        return super.stats() + ", " + coalesced() + " coalesced";
+    }
+
+    // Identifies a reader in the keys of its blocks.
+    int register() {
+        return nextReader.getAndIncrement();
+    }
+
+    static final class Key {
+        final int reader;
+        final long position;
+
+        Key(int reader, long position) {
+            this.reader = reader;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return reader == other.reader && position == other.position;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * reader + Long.hashCode(position);
+        }
+    }
+
+    static final class Block {
+        final int[] gaps;
+        final int freqPos;       // Where the block's frequencies start in its list
+        volatile int[] freqs;    // Set by the first cursor that decodes them
+
+        Block(int[] gaps, int freqPos) {
+            this.gaps = gaps;
+            this.freqPos = freqPos;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+
+// BM25 scoring with collection statistics taken from the page table.
+public class Bm25 {
+
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+
+    // Document sizes indexed by docID, as recorded in the page table.
+    private final int[] docLengths;
+    private final int numDocs;
+    private final double avgLength;
+    private final int minLength;
+
+    public Bm25(int[] docLengths) {
+        this(docLengths, Math.max(0, docLengths.length - 1), totalLength(docLengths));
+    }
+
+    /* BM25 over one shard of a collection: docLengths are the shard's, while numDocs and totalLength, which set
+     * the idf and the average document length, are those of the whole collection. A document then gets the
+     * score it would get in an index of the whole collection. */
+    public Bm25(int[] docLengths, int numDocs, long totalLength) {
+        this.docLengths = docLengths;
+
+        int min = Integer.MAX_VALUE;
+        for (int docId = 1; docId < docLengths.length; docId++) {
+            min = Math.min(min, docLengths[docId]);
+        }
+        this.numDocs = numDocs;
+        this.avgLength = numDocs == 0 ? 1 : Math.max(1.0, (double) totalLength / numDocs);
+        this.minLength = docLengths.length <= 1 ? 0 : min;  // Bounds the scores of this shard's documents only
+    }
+
+    static long totalLength(int[] docLengths) {
+        long total = 0;
+        for (int docId = 1; docId < docLengths.length; docId++) {
+            total += docLengths[docId];
+        }
+        return total;
+    }
+
+    public static Bm25 load(String pageTableFile) throws IOException {
+        return new Bm25(PageTable.readDocLengths(pageTableFile));
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    // Inverse document frequency of a term that occurs in df documents.
+    public double idf(long df) {
+        return Math.log(1 + (numDocs - df + 0.5) / (df + 0.5));
+    }
+
+    // Term-frequency component of the score of a document.
+    public double tf(int freq, int docId) {
+        return freq * (K1 + 1) / (freq + K1 * (1 - B + B * docLengths[docId] / avgLength));
+    }
+
+    // Upper bound of tf(freq', docId) over every document and every freq' <= freq, reached by the shortest document.
+    public double maxTf(int freq) {
+        return freq * (K1 + 1) / (freq + K1 * (1 - B + B * minLength / avgLength));
+    }
+}
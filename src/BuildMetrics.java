@@ -0,0 +1,461 @@
+import java.io.*;
+import java.lang.management.*;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/* Instrumentation of an index build. The pipeline stages record what they process into the counters below;
+ * the metrics time each stage, take garbage collection and allocation figures from JMX, print optional
+ * progress lines while the build runs, and write everything out as a JSON report at the end.
+
+		   Stages:
+		   ┌─────────────────────────┬────────────────────────────┬────────────────────────────┐
+		   │ parse                   │ merge                      │ index                      │
+		   │ read, tokenize, invert; │ intermediate merge passes  │ final merge, read ahead on │
+		   │ runs spilled alongside  │ (only above the fan-in)    │ its own thread, streamed   │
+		   │                         │                            │ into the index/lexicon     │
+		   └─────────────────────────┴────────────────────────────┴────────────────────────────┘
+*/
+public class BuildMetrics implements Closeable {
+
+    // Parsing: updated by the reader and the document collector; read by the progress thread.
+    final AtomicLong inputBytes = new AtomicLong();
+    final AtomicLong documents = new AtomicLong();
+    final AtomicLong textChars = new AtomicLong();
+    final AtomicLong tokens = new AtomicLong();
+    final AtomicLong postings = new AtomicLong();
+
+    // Runs spilled by PostingBuilder, the time spent writing them, and the time parsing waited for the spills.
+    private final List<Long> runSizes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong spillNanos = new AtomicLong();
+    private final AtomicLong spillWaitNanos = new AtomicLong();
+
+    // Memory budget of the build, and the runs spilled early because the heap was filling up.
+    private MemoryBudget memory;
+    private final AtomicLong pressureSpills = new AtomicLong();
+
+    // Document reordering: the order, and the VarByte bytes of the docID gaps before and after.
+    private String docOrder = "input";
+    private long gapBytesBefore;
+    private long gapBytesAfter;
+
+    // Merge.
+    private int fanIn;
+    private int mergePasses;
+    private final AtomicLong mergedRunBytes = new AtomicLong();
+
+    // Output of InvertedIndexBuilder and PageTable.
+    final AtomicLong indexedTerms = new AtomicLong();
+    final AtomicLong indexedPostings = new AtomicLong();
+    private String codec;
+    private long invertedIndexBytes;
+    private long listMetadataBytes;
+    private long lexiconBytes;
+    private long pageTableBytes;
+    private long positionsBytes;
+
+    private final List<Stage> stages = new ArrayList<>();
+    private Stage current;
+    private ScheduledExecutorService progress;
+
+    /* Heap bytes freed by collections, from the collectors' notifications. Allocation since the start is the
+     * heap in use now, plus what has been freed, minus what was in use at the start. */
+    private final AtomicLong gcFreedBytes = new AtomicLong();
+    private final NotificationListener gcListener = (notification, handback) -> {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+        GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+        long before = 0;
+        long after = 0;
+        for (MemoryUsage usage : info.getMemoryUsageBeforeGc().values()) before += usage.getUsed();
+        for (MemoryUsage usage : info.getMemoryUsageAfterGc().values()) after += usage.getUsed();
+        gcFreedBytes.addAndGet(Math.max(0, before - after));
+    };
+    private boolean listening;
+
+    private final Snapshot begin = snapshot();
+
+    // Time a stage, ending the current one.
+    public synchronized void startStage(String name) {
+        if (current != null) endStage();
+        listenToCollectors();
+        current = new Stage(name, snapshot());
+    }
+
+    // End the current stage, returning its duration in seconds, to the millisecond.
+    public synchronized double endStage() {
+        current.end = snapshot();
+        stages.add(current);
+        double seconds = current.seconds();
+        current = null;
+        return Math.round(seconds * 1000) / 1000.0;
+    }
+
+    // Total time since the metrics were created, in seconds, to the millisecond.
+    public double totalSeconds() {
+        return Math.round((System.nanoTime() - begin.nanos) / 1e6) / 1000.0;
+    }
+
+    public void runSpilled(long bytes, long nanos) {
+        runSizes.add(bytes);
+        spillNanos.addAndGet(nanos);
+    }
+
+    public void spillWaited(long nanos) {
+        spillWaitNanos.addAndGet(nanos);
+    }
+
+    public synchronized void memoryBudget(MemoryBudget budget) {
+        this.memory = budget;
+    }
+
+    public void pressureSpill() {
+        pressureSpills.incrementAndGet();
+    }
+
+    public synchronized void documentsReordered(String order, long gapBytesBefore, long gapBytesAfter) {
+        this.docOrder = order;
+        this.gapBytesBefore = gapBytesBefore;
+        this.gapBytesAfter = gapBytesAfter;
+    }
+
+    // The fan-in of the first merge pass; with a memory budget, later passes may use another.
+    public synchronized void mergeStarted(int fanIn) {
+        this.fanIn = fanIn;
+    }
+
+    // A merge pass, with the bytes of the runs it wrote; 0 for the final pass, which is streamed.
+    public synchronized void mergePass(long bytesWritten) {
+        mergePasses++;
+        mergedRunBytes.addAndGet(bytesWritten);
+    }
+
+    public synchronized void indexWritten(String codec, long invertedIndexBytes, long listMetadataBytes, long lexiconBytes) {
+        this.codec = codec;
+        this.invertedIndexBytes = invertedIndexBytes;
+        this.listMetadataBytes = listMetadataBytes;
+        this.lexiconBytes = lexiconBytes;
+    }
+
+    public synchronized void positionsWritten(long bytes) {
+        this.positionsBytes = bytes;
+    }
+
+    public synchronized void pageTableWritten(long bytes) {
+        this.pageTableBytes = bytes;
+    }
+
+    // Print a progress line every period seconds until the metrics are closed. 0 turns progress off.
+    public synchronized void startProgress(int periodSeconds) {
+        if (periodSeconds <= 0 || progress != null) return;
+        progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "build-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> System.out.println(progressLine()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // One line summarizing the build so far.
+    String progressLine() {
+        double seconds = totalSeconds();
+        String stage;
+        synchronized (this) {
+            stage = current == null ? "-" : current.name;
+        }
+        return String.format(Locale.ROOT, "[%.1f s] %s: %d docs (%.0f/s), %.1f MB read (%.1f MB/s), %d postings, %d runs, %d terms indexed, heap %.0f MB",
+                seconds, stage, documents.get(), documents.get() / seconds, inputBytes.get() / 1e6, inputBytes.get() / 1e6 / seconds,
+                postings.get(), runSizes.size(), indexedTerms.get(), heapUsed() / 1e6);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (progress != null) progress.shutdownNow();
+        if (listening) {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+                } catch (ListenerNotFoundException e) {
+                    // Not registered with this collector
+                }
+            }
+            listening = false;
+        }
+    }
+
+    // Registered on the first stage rather than on creation, so that metrics that are never used cost nothing.
+    private void listenToCollectors() {
+        if (listening) return;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+            }
+        }
+        listening = true;
+    }
+
+    private Snapshot snapshot() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        long heapUsed = heapUsed();
+        return new Snapshot(System.nanoTime(), count, millis, heapUsed + gcFreedBytes.get(), heapUsed);
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Write the report as JSON.
+    public void writeReport(String file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(report());
+        }
+    }
+
+    public synchronized String report() {
+        Snapshot now = snapshot();
+        double parseSeconds = stageSeconds("parse");
+        long[] runs;
+        synchronized (runSizes) {
+            runs = runSizes.stream().mapToLong(Long::longValue).toArray();
+        }
+        long runBytes = Arrays.stream(runs).sum();
+        long rawPostingBytes = 8 * indexedPostings.get(); // A docID and a frequency as two ints
+
+        Json json = new Json();
+        json.begin(null);
+        json.field("totalSeconds", (now.nanos - begin.nanos) / 1e9);
+
+        json.beginArray("stages");
+        for (Stage stage : stages) {
+            json.begin(null);
+            json.field("name", stage.name);
+            json.field("seconds", stage.seconds());
+            json.field("gcCount", stage.end.gcCount - stage.start.gcCount);
+            json.field("gcSeconds", (stage.end.gcMillis - stage.start.gcMillis) / 1e3);
+            json.field("allocatedBytes", allocated(stage.start, stage.end));
+            json.field("heapUsedBytes", stage.end.heapUsed);
+            json.end();
+        }
+        json.endArray();
+
+        json.begin("parse");
+        json.field("documents", documents.get());
+        json.field("inputBytes", inputBytes.get());
+        json.field("textChars", textChars.get());
+        json.field("tokens", tokens.get());
+        json.field("postings", postings.get());
+        json.field("docsPerSecond", rate(documents.get(), parseSeconds));
+        json.field("inputBytesPerSecond", rate(inputBytes.get(), parseSeconds));
+        json.field("tokensPerSecond", rate(tokens.get(), parseSeconds));
+        json.field("postingsPerSecond", rate(postings.get(), parseSeconds));
+        json.end();
+
+        json.begin("runs");
+        json.field("count", runs.length);
+        json.field("totalBytes", runBytes);
+        json.field("minBytes", Arrays.stream(runs).min().orElse(0));
+        json.field("maxBytes", Arrays.stream(runs).max().orElse(0));
+        json.field("spillSeconds", spillNanos.get() / 1e9);
+        json.field("spillWaitSeconds", spillWaitNanos.get() / 1e9);
+        json.field("sizes", runs);
+        json.end();
+
+        json.begin("memory");
+        json.field("budgetBytes", memory == null ? 0 : memory.bytes());
+        json.field("source", memory == null ? null : memory.source());
+        json.field("peakPendingBytes", memory == null ? 0 : memory.peakPending());
+        json.field("pressureSpills", pressureSpills.get());
+        json.end();
+
+        json.begin("reorder");
+        json.field("order", docOrder);
+        json.field("gapBytesBefore", gapBytesBefore);
+        json.field("gapBytesAfter", gapBytesAfter);
+        json.end();
+
+        json.begin("merge");
+        json.field("fanIn", fanIn);
+        json.field("passes", mergePasses);
+        json.field("intermediateBytes", mergedRunBytes.get());
+        json.end();
+
+        json.begin("output");
+        json.field("codec", codec);
+        json.field("terms", indexedTerms.get());
+        json.field("postings", indexedPostings.get());
+        json.field("invertedIndexBytes", invertedIndexBytes);
+        json.field("listMetadataBytes", listMetadataBytes);
+        json.field("lexiconBytes", lexiconBytes);
+        json.field("pageTableBytes", pageTableBytes);
+        json.field("positionsBytes", positionsBytes);
+        json.field("rawPostingBytes", rawPostingBytes);
+        json.field("compressionRatio", invertedIndexBytes == 0 ? 0 : (double) rawPostingBytes / invertedIndexBytes);
+        json.field("bitsPerPosting", indexedPostings.get() == 0 ? 0 : 8.0 * invertedIndexBytes / indexedPostings.get());
+        json.end();
+
+        json.begin("jvm");
+        json.field("gcCount", now.gcCount - begin.gcCount);
+        json.field("gcSeconds", (now.gcMillis - begin.gcMillis) / 1e3);
+        json.field("allocatedBytes", allocated(begin, now));
+        json.field("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        json.end();
+
+        json.end();
+        return json.toString();
+    }
+
+    private double stageSeconds(String name) {
+        double seconds = 0;
+        for (Stage stage : stages) {
+            if (stage.name.equals(name)) seconds += stage.seconds();
+        }
+        return seconds;
+    }
+
+    private static double rate(long count, double seconds) {
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    private static long allocated(Snapshot from, Snapshot to) {
+        return Math.max(0, to.allocated - from.allocated);
+    }
+
+    private static class Stage {
+        final String name;
+        final Snapshot start;
+        Snapshot end;
+
+        Stage(String name, Snapshot start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        double seconds() {
+            return (end.nanos - start.nanos) / 1e9;
+        }
+    }
+
+    // Clock, garbage collection and allocation counters at one point in time.
+    private static class Snapshot {
+        final long nanos;
+        final long gcCount;
+        final long gcMillis;
+        final long allocated; // Heap in use plus heap freed so far
+        final long heapUsed;
+
+        private Snapshot(long nanos, long gcCount, long gcMillis, long allocated, long heapUsed) {
+            this.nanos = nanos;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.allocated = allocated;
+            this.heapUsed = heapUsed;
+        }
+    }
+
+    // Minimal JSON output: nested objects and arrays of numbers and strings, two-space indented.
+    private static class Json {
+        private final StringBuilder out = new StringBuilder();
+        private final Deque<Boolean> first = new ArrayDeque<>(); // Whether the open container is still empty
+
+        void begin(String name) {
+            key(name);
+            out.append('{');
+            first.push(true);
+        }
+
+        void end() {
+            first.pop();
+            newline();
+            out.append('}');
+        }
+
+        void beginArray(String name) {
+            key(name);
+            out.append('[');
+            first.push(true);
+        }
+
+        void endArray() {
+            end();
+            out.setCharAt(out.length() - 1, ']');
+        }
+
+        void field(String name, long value) {
+            key(name);
+            out.append(value);
+        }
+
+        void field(String name, double value) {
+            key(name);
+            // Six significant digits
+            out.append(Double.isFinite(value) ? new BigDecimal(value).round(new MathContext(6)).stripTrailingZeros().toPlainString() : "null");
+        }
+
+        void field(String name, String value) {
+            key(name);
+            string(value);
+        }
+
+        private void string(String value) {
+            if (value == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') out.append('\\').append(c);
+                else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+            out.append('"');
+        }
+
+        void field(String name, long[] values) {
+            key(name);
+            out.append('[');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) out.append(", ");
+                out.append(values[i]);
+            }
+            out.append(']');
+        }
+
+        // Separator, indentation and name of the next member; no name inside arrays and at the top level.
+        private void key(String name) {
+            if (!first.isEmpty()) {
+                if (!first.peek()) out.append(',');
+                first.pop();
+                first.push(false);
+                newline();
+            }
+            if (name != null) {
+                string(name);
+                out.append(": ");
+            }
+        }
+
+        private void newline() {
+            out.append('\n');
+            for (int i = 0; i < first.size(); i++) out.append("  ");
+        }
+
+        @Override
+        public String toString() {
+            return out.append('\n').toString();
+        }
+    }
+}
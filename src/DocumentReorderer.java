@@ -0,0 +1,422 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* Reassigns docIDs between parsing and the merge, so that documents sharing terms get nearby docIDs and the
+ * docID gaps of the inverted lists get smaller. PostingBuilder numbers documents in input order; this stage
+ * computes a new order, rewrites every run with the new docIDs, each run still sorted by term and then docID,
+ * and rewrites the page table in the new order. The rest of the build does not know the difference.
+ *
+ *   url        URLs in lexicographic order, which groups the pages of a site and of each of its directories.
+ *   bisection  Recursive graph bisection (Dhulipala et al., KDD 2016) over the terms of the documents. The
+ *              documents are split in two halves, and documents are swapped between the halves as long as
+ *              that lowers the estimated cost of the gaps of the terms (with d of the n documents of a half,
+ *              d * log2(n / (d + 1)) bits). Each half is then split in turn, down to LEAF_SIZE documents.
+ *              The term sets are held in memory, without the terms of a single document.
+ *
+ * The build report gives the VarByte size of the docID gaps of every list before and after. */
+public class DocumentReorderer {
+
+    public enum Order { INPUT, URL, BISECTION }
+
+    // Swap rounds per bisection, and the size of the parts that are no longer bisected.
+    private static final int ITERATIONS = 20;
+    private static final int LEAF_SIZE = 16;
+
+    // Parts larger than this are bisected in parallel.
+    private static final int PARALLEL_DOCS = 4096;
+
+    // -Dindex.docOrder=input|url|bisection; input keeps the input order.
+    public static Order fromProperties() {
+        return Order.valueOf(System.getProperty("index.docOrder", "input").toUpperCase(Locale.ROOT));
+    }
+
+    // Reorders the documents of the numRuns runs and the page table that PostingBuilder wrote into dir.
+    public static void reorder(Path dir, int numRuns, Order order, BuildMetrics metrics) throws IOException {
+        if (order == Order.INPUT) return;
+
+        List<Path> runs = new ArrayList<>();
+        for (int i = 1; i <= numRuns; i++) {
+            runs.add(dir.resolve(Util.Merge.runFileName(i)));
+        }
+        Path pageTable = dir.resolve(PostingBuilder.PAGE_TABLE_FILE);
+
+        int[] newIds;  // Indexed by the input docID
+        try (PageTable.Reader table = PageTable.open(pageTable.toString())) {
+            newIds = order == Order.URL ? urlOrder(table) : bisectionOrder(runs, table.numDocs());
+        }
+
+        long[] gapBytes = gapBytes(runs, newIds);
+        for (Path run : runs) {
+            remapRun(run, newIds);
+        }
+        rewritePageTable(pageTable, newIds);
+        metrics.documentsReordered(order.name().toLowerCase(Locale.ROOT), gapBytes[0], gapBytes[1]);
+    }
+
+    // New docIDs in URL order; documents with the same URL keep their input order.
+    private static int[] urlOrder(PageTable.Reader table) throws IOException {
+        int numDocs = table.numDocs();
+        String[] urls = new String[numDocs + 1];
+        Integer[] docs = new Integer[numDocs];
+        for (int docId = 1; docId <= numDocs; docId++) {
+            urls[docId] = table.url(docId);
+            docs[docId - 1] = docId;
+        }
+        Arrays.sort(docs, Comparator.comparing(docId -> urls[docId]));  // Stable
+
+        int[] newIds = new int[numDocs + 1];
+        for (int i = 0; i < numDocs; i++) {
+            newIds[docs[i]] = i + 1;
+        }
+        return newIds;
+    }
+
+    // New docIDs from recursive graph bisection over the forward index of the runs.
+    private static int[] bisectionOrder(List<Path> runs, int numDocs) throws IOException {
+        // The inverted lists of the terms of more than one document, then turned into the term sets of the documents.
+        Util.IntList lists = new Util.IntList(1 << 16);
+        Util.IntList listEnds = new Util.IntList(1 << 10);
+        Util.IntList list = new Util.IntList(64);
+        try (PostingStream postings = openRuns(runs)) {
+            String term = null;
+            while (true) {
+                boolean hasNext = postings.next();
+                if (!hasNext || !postings.term().equals(term)) {
+                    if (list.size() > 1) {
+                        lists.addAll(list);
+                        listEnds.add(lists.size());
+                    }
+                    if (!hasNext) break;
+                    term = postings.term();
+                    list.clear();
+                }
+                list.add((int) postings.docId());
+            }
+        }
+
+        int numTerms = listEnds.size();
+        int[] docStarts = new int[numDocs + 2];
+        for (int i = 0; i < lists.size(); i++) {
+            docStarts[lists.get(i) + 1]++;
+        }
+        for (int docId = 1; docId <= numDocs + 1; docId++) {
+            docStarts[docId] += docStarts[docId - 1];
+        }
+        int[] docTerms = new int[lists.size()];
+        int[] fill = Arrays.copyOf(docStarts, numDocs + 1);
+        for (int t = 0, i = 0; t < numTerms; t++) {
+            for (int end = listEnds.get(t); i < end; i++) {
+                docTerms[fill[lists.get(i)]++] = t;
+            }
+        }
+        lists = null;
+
+        int[] docs = new int[numDocs];
+        for (int i = 0; i < numDocs; i++) docs[i] = i + 1;
+        new GraphBisection(docStarts, docTerms, numTerms, docs).run();
+
+        int[] newIds = new int[numDocs + 1];
+        for (int i = 0; i < numDocs; i++) {
+            newIds[docs[i]] = i + 1;
+        }
+        return newIds;
+    }
+
+    /* Recursive graph bisection of docs, in place. Parts are independent once split, so large ones are bisected
+     * on a fork/join pool; each thread keeps the term degrees of the part it works on. */
+    private static class GraphBisection {
+        private final int[] docStarts;  // Terms of document d are docTerms[docStarts[d], docStarts[d + 1])
+        private final int[] docTerms;
+        private final int[] docs;
+        private final double[] gains;   // Gain of moving the document at the same index of docs to the other half
+        private final ThreadLocal<Degrees> degrees;
+
+        GraphBisection(int[] docStarts, int[] docTerms, int numTerms, int[] docs) {
+            this.docStarts = docStarts;
+            this.docTerms = docTerms;
+            this.docs = docs;
+            this.gains = new double[docs.length];
+            this.degrees = ThreadLocal.withInitial(() -> new Degrees(numTerms));
+        }
+
+        void run() {
+            if (docs.length > LEAF_SIZE) ForkJoinPool.commonPool().invoke(new Part(0, docs.length));
+        }
+
+        private class Part extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+
+            Part(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                int mid = (from + to) >>> 1;
+                bisect(from, mid, to);
+                List<Part> halves = new ArrayList<>();
+                if (mid - from > LEAF_SIZE) halves.add(new Part(from, mid));
+                if (to - mid > LEAF_SIZE) halves.add(new Part(mid, to));
+                if (to - from > PARALLEL_DOCS) {
+                    invokeAll(halves);
+                } else {
+                    for (Part half : halves) half.compute();
+                }
+            }
+        }
+
+        // Swaps documents between [from, mid) and [mid, to) while that lowers the cost.
+        private void bisect(int from, int mid, int to) {
+            Degrees degree = degrees.get();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                degree.count(from, mid, to);
+                for (int i = from; i < to; i++) {
+                    boolean left = i < mid;
+                    double gain = 0;
+                    for (int j = docStarts[docs[i]]; j < docStarts[docs[i] + 1]; j++) {
+                        gain += degree.moveGain(docTerms[j], left);
+                    }
+                    gains[i] = gain;
+                }
+                sortByGain(from, mid - 1);
+                sortByGain(mid, to - 1);
+
+                int swapped = 0;
+                for (int i = from, j = mid; i < mid && j < to && gains[i] + gains[j] > 0; i++, j++) {
+                    int doc = docs[i];
+                    docs[i] = docs[j];
+                    docs[j] = doc;
+                    swapped++;
+                }
+                if (swapped == 0) break;
+            }
+        }
+
+        // Sorts docs[lo, hi] by gain, highest first, moving the gains along.
+        private void sortByGain(int lo, int hi) {
+            while (hi - lo > 16) {
+                double pivot = gains[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (gains[i] > pivot) i++;
+                    while (gains[j] < pivot) j--;
+                    if (i <= j) swap(i++, j--);
+                }
+                // Recurse into the smaller side
+                if (j - lo < hi - i) {
+                    sortByGain(lo, j);
+                    lo = i;
+                } else {
+                    sortByGain(i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && gains[j - 1] < gains[j]; j--) swap(j - 1, j);
+            }
+        }
+
+        private void swap(int i, int j) {
+            double gain = gains[i];
+            gains[i] = gains[j];
+            gains[j] = gain;
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+        }
+
+        /* Number of documents of each half that have each term, and the gains of moving a document with the term
+         * across, computed once per term and round. */
+        private class Degrees {
+            private final int[] left;
+            private final int[] right;
+            private final double[] leftGain;   // Of a move from the left half to the right one
+            private final double[] rightGain;
+            private final int[] round;         // Round the gains of a term were computed in
+            private int currentRound;
+            private int leftSize;
+            private int rightSize;
+
+            Degrees(int numTerms) {
+                left = new int[numTerms];
+                right = new int[numTerms];
+                leftGain = new double[numTerms];
+                rightGain = new double[numTerms];
+                round = new int[numTerms];
+            }
+
+            void count(int from, int mid, int to) {
+                currentRound++;
+                leftSize = mid - from;
+                rightSize = to - mid;
+                for (int i = from; i < to; i++) {
+                    for (int j = docStarts[docs[i]]; j < docStarts[docs[i] + 1]; j++) {
+                        left[docTerms[j]] = 0;
+                        right[docTerms[j]] = 0;
+                    }
+                }
+                for (int i = from; i < to; i++) {
+                    int[] side = i < mid ? left : right;
+                    for (int j = docStarts[docs[i]]; j < docStarts[docs[i] + 1]; j++) {
+                        side[docTerms[j]]++;
+                    }
+                }
+            }
+
+            double moveGain(int term, boolean fromLeft) {
+                if (round[term] != currentRound) {
+                    round[term] = currentRound;
+                    int l = left[term];
+                    int r = right[term];
+                    double now = cost(l, leftSize) + cost(r, rightSize);
+                    leftGain[term] = l == 0 ? 0 : now - cost(l - 1, leftSize) - cost(r + 1, rightSize);
+                    rightGain[term] = r == 0 ? 0 : now - cost(l + 1, leftSize) - cost(r - 1, rightSize);
+                }
+                return fromLeft ? leftGain[term] : rightGain[term];
+            }
+
+            // Estimated bits of the gaps of a term in degree of the size documents of a half.
+            private double cost(int degree, int size) {
+                return degree == 0 ? 0 : degree * (Math.log((double) size / (degree + 1)) / Math.log(2));
+            }
+        }
+    }
+
+    // VarByte bytes of the docID gaps of every list, in input order and in the new order.
+    private static long[] gapBytes(List<Path> runs, int[] newIds) throws IOException {
+        long before = 0;
+        long after = 0;
+        Util.IntList list = new Util.IntList(64);
+        try (PostingStream postings = openRuns(runs)) {
+            String term = null;
+            int previous = 0;
+            while (true) {
+                boolean hasNext = postings.next();
+                if (!hasNext || !postings.term().equals(term)) {
+                    int[] ids = list.toArray();
+                    Arrays.sort(ids);
+                    for (int i = 0; i < ids.length; i++) {
+                        after += varByteSize(ids[i] - (i == 0 ? 0 : ids[i - 1]));
+                    }
+                    if (!hasNext) break;
+                    term = postings.term();
+                    list.clear();
+                    previous = 0;
+                }
+                int docId = (int) postings.docId();
+                before += varByteSize(docId - previous);
+                previous = docId;
+                list.add(newIds[docId]);
+            }
+        }
+        return new long[]{before, after};
+    }
+
+    private static int varByteSize(int value) {
+        int bits = 32 - Integer.numberOfLeadingZeros(value);
+        return Math.max(1, (bits + 6) / 7);
+    }
+
+    // The postings of the runs, merged; unlike the merge of Util.Merge.sortMerge, it leaves the files in place.
+    private static PostingStream openRuns(List<Path> runs) throws IOException {
+        List<PostingStream> streams = new ArrayList<>();
+        for (Path run : runs) {
+            streams.add(RunFile.openReader(run.toString()));
+        }
+        return Util.Merge.merge(streams);
+    }
+
+    // Rewrites a run with the new docIDs. The postings of each term are sorted again, their positions moving along.
+    private static void remapRun(Path run, int[] newIds) throws IOException {
+        Path tmp = run.resolveSibling(run.getFileName() + ".reordered");
+        try (PostingStream in = RunFile.openReader(run.toString());
+             RunFile.Writer out = RunFile.openWriter(tmp.toString())) {
+            TermPostings postings = new TermPostings();
+            String term = null;
+            while (in.next()) {
+                if (!in.term().equals(term)) {
+                    postings.writeSorted(term, out);
+                    term = in.term();
+                }
+                postings.add(newIds[(int) in.docId()], (int) in.freq(), in.positions());
+            }
+            postings.writeSorted(term, out);
+        }
+        Files.move(tmp, run, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // The postings of one term of a run, with their positions if they have any.
+    private static class TermPostings {
+        private int[] docIds = new int[64];
+        private int[] freqs = new int[64];
+        private int[] positionStarts = new int[65];
+        private int[] positions;
+        private long[] order = new long[64];
+        private int size;
+
+        void add(int docId, int freq, int[] termPositions) {
+            if (size == docIds.length) {
+                docIds = Arrays.copyOf(docIds, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+                positionStarts = Arrays.copyOf(positionStarts, size * 2 + 1);
+                order = new long[size * 2];
+            }
+            docIds[size] = docId;
+            freqs[size] = freq;
+            int start = positionStarts[size];
+            if (termPositions != null) {
+                if (positions == null) positions = new int[64];
+                if (start + freq > positions.length) positions = Arrays.copyOf(positions, Math.max(start + freq, positions.length * 2));
+                System.arraycopy(termPositions, 0, positions, start, freq);
+                start += freq;
+            }
+            positionStarts[++size] = start;
+        }
+
+        // Writes the postings ordered by their new docIDs, and clears them.
+        void writeSorted(String term, RunFile.Writer out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                order[i] = (long) docIds[i] << 32 | i;
+            }
+            Arrays.sort(order, 0, size);
+
+            int[] scratch = positions == null ? null : new int[16];
+            for (int k = 0; k < size; k++) {
+                int i = (int) order[k];
+                if (scratch == null) {
+                    out.write(term, docIds[i], freqs[i], null);
+                } else {
+                    if (freqs[i] > scratch.length) scratch = new int[Math.max(freqs[i], scratch.length * 2)];
+                    System.arraycopy(positions, positionStarts[i], scratch, 0, freqs[i]);
+                    out.write(term, docIds[i], freqs[i], scratch);
+                }
+            }
+            size = 0;
+        }
+    }
+
+    // Rewrites the page table in the new docID order.
+    private static void rewritePageTable(Path pageTable, int[] newIds) throws IOException {
+        int[] oldIds = new int[newIds.length];
+        for (int docId = 1; docId < newIds.length; docId++) {
+            oldIds[newIds[docId]] = docId;
+        }
+
+        Path tmp = pageTable.resolveSibling(pageTable.getFileName() + ".reordered");
+        try (PageTable.Reader in = PageTable.open(pageTable.toString());
+             PageTable out = new PageTable(tmp.toString())) {
+            for (int docId = 1; docId < oldIds.length; docId++) {
+                out.addDoc(docId, in.url(oldIds[docId]), in.docLength(oldIds[docId]));
+            }
+        }
+        Files.move(tmp, pageTable, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,656 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Impact-ordered index files for early-terminating top-k queries, built from an index written by Run and kept
+ * in its "impact" directory. The impact of a posting is the document-dependent part of its BM25 score: the
+ * term frequency, normalized by the document's length in the page table (Bm25.tf). Two layouts are built:
+ *
+ *   tiers    Each list is split into a high tier, the tierFraction (default 0.1) of its postings with the
+ *            highest impact but at least minTier (default 128) of them, and the rest, the low tier. Both tiers
+ *            are ordinary docID-ordered indexes, and the highest impact left in the low tier of each term is
+ *            kept in tierBounds. A query scores the documents of the high tiers, reading the low tiers only
+ *            for those that could still enter the top k. A document in no high tier scores at most the summed
+ *            low-tier bounds, so once the k-th score beats that the result is final. Otherwise the query falls
+ *            back to Block-Max WAND over the whole index. Either way the result is exactly Ranker's.
+ *   impacts  Score-at-a-time. Postings are scored idf * impact and quantized to 2^bits - 1 levels of the highest
+ *            score of the collection, and each list is stored as segments of equal quantized score, highest
+ *            first. A query adds segments to integer accumulators in decreasing score order across its terms,
+ *            and stops once the k-th best accumulator leads the (k+1)-th by more than the segments left could
+ *            add. Those k documents are then scored exactly from the index and ordered by that score; the
+ *            quantization can swap documents that tie closely with the k-th for it.
+
+		   <dir>/impact/
+		   ├── high/         invertedIndex, lexicon: the high tier of every list
+		   ├── low/          invertedIndex, lexicon: the rest, for the terms that have more
+		   ├── tierBounds    highest impact in the low tier of every term that has one
+		   ├── impacts       header: magic, bits, highest score; then the lists of segments
+		   └── impactLexicon
+
+		   impacts list:  │ score, count, docID gaps │ score, count, docID gaps │ ... │   scores decreasing
+ */
+public class ImpactIndex implements Closeable {
+
+    static final String DIR = "impact";
+    static final String HIGH_TIER_DIR = "high";
+    static final String LOW_TIER_DIR = "low";
+    static final String BOUNDS_FILE = "tierBounds";
+    static final String IMPACTS_FILE = "impacts";
+    static final String IMPACT_LEXICON_FILE = "impactLexicon";
+
+    private static final int BOUNDS_MAGIC = 0x54424E31;   // "TBN1"
+    private static final int IMPACTS_MAGIC = 0x494D5031;  // "IMP1"
+
+    private static final double DEFAULT_TIER_FRACTION = 0.1;
+    private static final int DEFAULT_MIN_TIER = 128;
+    private static final int DEFAULT_BITS = 8;
+
+    // As in Ranker: bounds are inflated slightly so that rounding never prunes a document they tie with.
+    private static final double BOUND_SLACK = 1 + 1e-9;
+
+    private final IndexReader index;
+    private final Bm25 bm25;
+    private final Ranker ranker;  // Over the whole index, when the tiers are not enough
+    private final IndexReader highTier;
+    private final IndexReader lowTier;
+    private final Map<String, Double> tierBounds;
+    private final IndexReader.MappedFile impacts;
+    private final Lexicon impactLexicon;
+    private final ThreadLocal<Accumulators> accumulators;
+
+    // Read by the tests, to tell which path a query took.
+    final Counters tierCounters = new Counters();
+    final Counters impactCounters = new Counters();
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[1].equals("build") && args.length == 2
+                || args[1].equals("rank") && args.length >= 4 && (args[2].equals("tiers") || args[2].equals("impacts")))) {
+            System.err.println("Usage: java ImpactIndex <index_dir> <build | rank <tiers|impacts> <query | ->>");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+
+        try {
+            if (args[1].equals("build")) {
+                // -Dindex.tierFraction, -Dindex.minTier and -Dindex.impactBits shape the tiers and the quantization
+                double tierFraction = Double.parseDouble(System.getProperty("index.tierFraction", String.valueOf(DEFAULT_TIER_FRACTION)));
+                int minTier = Integer.getInteger("index.minTier", DEFAULT_MIN_TIER);
+                int bits = Integer.getInteger("index.impactBits", DEFAULT_BITS);
+                long start = System.nanoTime();
+                build(dir, tierFraction, minTier, bits);
+                System.out.println("Built the impact index in " + Math.round((System.nanoTime() - start) / 1e6) / 1000.0 + " s");
+                return;
+            }
+
+            boolean tiers = args[2].equals("tiers");
+            // -Dindex.impactBudget=N stops score-at-a-time queries after N postings
+            long budget = Long.getLong("index.impactBudget", Long.MAX_VALUE);
+            String query = String.join(" ", Arrays.copyOfRange(args, 3, args.length));
+            try (ImpactIndex index = open(dir)) {
+                if (!query.equals("-")) {
+                    List<String> terms = QueryProcessor.parse(query);
+                    print(tiers ? index.topKTiered(terms, 10) : index.topKImpacts(terms, 10, budget));
+                    return;
+                }
+                // One query per line from standard input
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.isBlank()) continue;
+                    List<String> terms = QueryProcessor.parse(line);
+                    print(tiers ? index.topKTiered(terms, 10) : index.topKImpacts(terms, 10, budget));
+                }
+                System.err.println(tiers ? "Tiers: " + index.tierCounters : "Impacts: " + index.impactCounters);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while using the impact index: " + e.getMessage());
+        }
+    }
+
+    private static void print(List<Ranker.ScoredDocument> top) {
+        for (Ranker.ScoredDocument doc : top) {
+            System.out.println(doc);
+        }
+    }
+
+    /* Builds the impact index of the index in dir into dir/impact. The tiers keep the codec of the index. Every
+     * list of the index is read three times, once for each tier and once for the impacts. */
+    public static void build(Path dir, double tierFraction, int minTier, int bits) throws IOException {
+        if (tierFraction <= 0 || tierFraction > 1) throw new IllegalArgumentException("Tier fraction must be in (0, 1]: " + tierFraction);
+        if (bits < 1 || bits > 16) throw new IllegalArgumentException("Impact bits must be in [1, 16]: " + bits);
+        Path out = dir.resolve(DIR);
+        Files.createDirectories(out.resolve(HIGH_TIER_DIR));
+        Files.createDirectories(out.resolve(LOW_TIER_DIR));
+
+        try (IndexReader index = new IndexReader(dir)) {
+            Bm25 bm25 = Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+
+            Map<String, Double> bounds = new LinkedHashMap<>();
+            for (boolean high : new boolean[]{true, false}) {
+                try (TierStream tier = new TierStream(index, bm25, tierFraction, minTier, high, bounds);
+                     BuildMetrics metrics = new BuildMetrics()) {
+                    new InvertedIndexBuilder(tier, index.codec(), metrics, out.resolve(high ? HIGH_TIER_DIR : LOW_TIER_DIR)).buildInvertedIndex();
+                }
+            }
+            try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out.resolve(BOUNDS_FILE).toFile()), 1 << 16))) {
+                file.writeInt(BOUNDS_MAGIC);
+                file.writeInt(bounds.size());
+                for (Map.Entry<String, Double> bound : bounds.entrySet()) {
+                    file.writeUTF(bound.getKey());
+                    file.writeDouble(bound.getValue());
+                }
+            }
+
+            writeImpacts(index, bm25, out, bits);
+        }
+    }
+
+    // Number of postings in the high tier of a list of df postings.
+    private static int tierSize(int df, double tierFraction, int minTier) {
+        return df <= minTier ? df : Math.max(minTier, (int) Math.ceil(df * tierFraction));
+    }
+
+    /* The postings of one tier of every list of the index, in term and docID order, for InvertedIndexBuilder.
+     * Ties in impact at the edge of the high tier go to the lower docIDs. The stream of the high tier records the
+     * highest impact left in the low tier of every term that has one. */
+    private static class TierStream implements PostingStream {
+        private final IndexReader index;
+        private final Bm25 bm25;
+        private final double tierFraction;
+        private final int minTier;
+        private final boolean high;
+        private final Map<String, Double> bounds;
+        private final Iterator<Lexicon.LexiconEntry> terms;
+
+        // The postings of the current term, and which of them are in the high tier.
+        private String term;
+        private int[] docIds = new int[1024];
+        private int[] freqs = new int[1024];
+        private double[] impacts = new double[1024];
+        private boolean[] inHighTier = new boolean[1024];
+        private int size;
+        private int position = -1;
+
+        TierStream(IndexReader index, Bm25 bm25, double tierFraction, int minTier, boolean high, Map<String, Double> bounds) {
+            this.index = index;
+            this.bm25 = bm25;
+            this.tierFraction = tierFraction;
+            this.minTier = minTier;
+            this.high = high;
+            this.bounds = bounds;
+            this.terms = index.lexicon().range(null, null);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                while (++position < size) {
+                    if (inHighTier[position] == high) return true;
+                }
+                if (!terms.hasNext()) return false;
+                load(terms.next().term);
+            }
+        }
+
+        private void load(String next) throws IOException {
+            ListCursor cursor = index.open(next);
+            size = cursor.size();
+            if (size > docIds.length) {
+                int capacity = Math.max(size, docIds.length * 2);
+                docIds = new int[capacity];
+                freqs = new int[capacity];
+                impacts = new double[capacity];
+                inHighTier = new boolean[capacity];
+            }
+            for (int i = 0; i < size; i++) {
+                docIds[i] = cursor.next();
+                freqs[i] = cursor.freq();
+                impacts[i] = bm25.tf(freqs[i], docIds[i]);
+            }
+
+            int tier = tierSize(size, tierFraction, minTier);
+            if (tier == size) {
+                Arrays.fill(inHighTier, 0, size, true);
+            } else {
+                double[] sorted = Arrays.copyOf(impacts, size);
+                Arrays.sort(sorted);
+                double cut = sorted[size - tier];  // Lowest impact in the high tier
+                int ties = tier;
+                for (int i = 0; i < size; i++) {
+                    if (impacts[i] > cut) ties--;
+                }
+                for (int i = 0; i < size; i++) {
+                    inHighTier[i] = impacts[i] > cut || impacts[i] == cut && ties-- > 0;
+                }
+                if (high) bounds.put(next, sorted[size - tier - 1]);
+            }
+            term = next;
+            position = -1;
+        }
+
+        @Override
+        public String term() {
+            return term;
+        }
+
+        @Override
+        public long docId() {
+            return docIds[position];
+        }
+
+        @Override
+        public long freq() {
+            return freqs[position];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Writes every list as segments of equal quantized score, highest first, with their lexicon.
+    private static void writeImpacts(IndexReader index, Bm25 bm25, Path out, int bits) throws IOException {
+        int levels = (1 << bits) - 1;
+
+        // Highest score any posting can have, from the list metadata alone.
+        double maxScore = 0;
+        for (Iterator<Lexicon.LexiconEntry> terms = index.lexicon().range(null, null); terms.hasNext(); ) {
+            ListCursor cursor = index.open(terms.next().term);
+            maxScore = Math.max(maxScore, bm25.idf(cursor.size()) * bm25.maxTf(cursor.maxFreq()));
+        }
+
+        try (Util.CountingOutputStream file = new Util.CountingOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(out.resolve(IMPACTS_FILE).toFile()), 1 << 16));
+             Lexicon.Writer lexicon = new Lexicon.Writer(out.resolve(IMPACT_LEXICON_FILE).toString())) {
+            DataOutputStream header = new DataOutputStream(file);
+            header.writeInt(IMPACTS_MAGIC);
+            header.writeInt(bits);
+            header.writeDouble(maxScore);
+
+            Util.ByteBuilder list = new Util.ByteBuilder(1024);
+            long[] order = new long[1024];  // Postings by decreasing score, then increasing docID
+            for (Iterator<Lexicon.LexiconEntry> terms = index.lexicon().range(null, null); terms.hasNext(); ) {
+                String term = terms.next().term;
+                ListCursor cursor = index.open(term);
+                int n = cursor.size();
+                double idf = bm25.idf(n);
+                if (n > order.length) order = new long[Math.max(n, order.length * 2)];
+                for (int i = 0; i < n; i++) {
+                    int docId = cursor.next();
+                    int score = quantize(idf * bm25.tf(cursor.freq(), docId), maxScore, levels);
+                    order[i] = (long) (levels - score) << 32 | docId;
+                }
+                Arrays.sort(order, 0, n);
+
+                list.reset();
+                for (int start = 0, end; start < n; start = end) {
+                    int rank = (int) (order[start] >>> 32);
+                    end = start;
+                    while (end < n && (int) (order[end] >>> 32) == rank) end++;
+                    Util.VarByte.encodeNum(levels - rank, list);
+                    Util.VarByte.encodeNum(end - start, list);
+                    int previous = 0;
+                    for (int i = start; i < end; i++) {
+                        int docId = (int) order[i];
+                        Util.VarByte.encodeNum(docId - previous, list);
+                        previous = docId;
+                    }
+                }
+                long startPos = file.count();
+                list.writeTo(file);
+                lexicon.add(term, startPos, file.count() - 1, n);
+            }
+        }
+    }
+
+    // A score as one of levels steps of maxScore, rounded up so that no posting gets 0.
+    private static int quantize(double score, double maxScore, int levels) {
+        return (int) Math.max(1, Math.min(levels, Math.ceil(score / maxScore * levels)));
+    }
+
+    // Opens the index in dir and its impact index, built by build.
+    public static ImpactIndex open(Path dir) throws IOException {
+        return new ImpactIndex(dir);
+    }
+
+    private ImpactIndex(Path dir) throws IOException {
+        Path impactDir = dir.resolve(DIR);
+        List<Closeable> opened = new ArrayList<>();
+        try {
+            index = new IndexReader(dir);
+            opened.add(index);
+            highTier = new IndexReader(impactDir.resolve(HIGH_TIER_DIR));
+            opened.add(highTier);
+            lowTier = new IndexReader(impactDir.resolve(LOW_TIER_DIR));
+            opened.add(lowTier);
+            impacts = new IndexReader.MappedFile(impactDir.resolve(IMPACTS_FILE));
+            opened.add(impacts);
+            impactLexicon = Lexicon.open(impactDir.resolve(IMPACT_LEXICON_FILE).toString());
+            tierBounds = readBounds(impactDir.resolve(BOUNDS_FILE));
+
+            ByteBuffer header = impacts.slice(0, 16);
+            if (header.getInt(0) != IMPACTS_MAGIC) throw new IOException("Not an impacts file: " + impactDir.resolve(IMPACTS_FILE));
+            bm25 = Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+        } catch (IOException | RuntimeException e) {
+            for (Closeable file : opened) file.close();
+            throw e;
+        }
+        ranker = new Ranker(index, bm25);
+        int numDocs = bm25.numDocs();
+        accumulators = ThreadLocal.withInitial(() -> new Accumulators(numDocs));
+    }
+
+    private static Map<String, Double> readBounds(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16))) {
+            if (in.readInt() != BOUNDS_MAGIC) throw new IOException("Not a tier bounds file: " + file);
+            int n = in.readInt();
+            Map<String, Double> bounds = new HashMap<>(2 * n);
+            for (int i = 0; i < n; i++) {
+                bounds.put(in.readUTF(), in.readDouble());
+            }
+            return bounds;
+        }
+    }
+
+    /* The k highest scoring documents for the terms, best first, exactly as Ranker.topK returns them: from the
+     * high tiers when they are enough, and from the whole index otherwise. */
+    public List<Ranker.ScoredDocument> topKTiered(List<String> terms, int k) throws IOException {
+        List<String> found = new ArrayList<>();
+        List<ListCursor> high = new ArrayList<>();
+        List<ListCursor> low = new ArrayList<>();
+        long total = 0;
+        for (String term : terms) {
+            ListCursor list = index.open(term);
+            if (list == null) continue;
+            found.add(term);
+            high.add(highTier.open(term));
+            low.add(lowTier.open(term));
+            total += list.size();
+        }
+
+        int n = found.size();
+        double[] idfs = new double[n];
+        double[] bounds = new double[n];  // Highest score the low tier of each term adds
+        double unseenBound = 0;           // Highest score of a document in no high tier
+        for (int i = 0; i < n; i++) {
+            idfs[i] = bm25.idf(high.get(i).size() + (low.get(i) == null ? 0 : low.get(i).size()));
+            if (low.get(i) != null) bounds[i] = idfs[i] * tierBounds.get(found.get(i)) * BOUND_SLACK;
+            unseenBound += bounds[i];
+            high.get(i).next();
+        }
+
+        Ranker.TopK top = new Ranker.TopK(k);
+        double[] scores = new double[n];
+        boolean[] matched = new boolean[n];
+        long read = 0;
+        while (k > 0 && n > 0) {
+            int docId = ListCursor.END;
+            for (ListCursor list : high) {
+                docId = Math.min(docId, list.docId());
+            }
+            if (docId == ListCursor.END) break;
+
+            double bound = 0;
+            for (int i = 0; i < n; i++) {
+                ListCursor list = high.get(i);
+                matched[i] = list.docId() == docId;
+                if (matched[i]) {
+                    scores[i] = idfs[i] * bm25.tf(list.freq(), docId);
+                    bound += scores[i];
+                    list.next();
+                    read++;
+                } else {
+                    bound += bounds[i];
+                }
+            }
+
+            // Only a document that could enter the top k is looked up in the low tiers.
+            if (bound * BOUND_SLACK >= top.threshold()) {
+                double score = 0;
+                for (int i = 0; i < n; i++) {
+                    ListCursor rest = low.get(i);
+                    if (!matched[i] && rest != null && rest.nextGEQ(docId) == docId) {
+                        scores[i] = idfs[i] * bm25.tf(rest.freq(), docId);
+                        matched[i] = true;
+                        read++;
+                    }
+                    if (matched[i]) score += scores[i];  // In query term order, as Ranker sums
+                }
+                top.offer(docId, score);
+            }
+        }
+
+        // A document in no high tier scores below the k-th.
+        boolean complete = unseenBound == 0 || top.size() == k && unseenBound < top.threshold();
+        if (!complete) {
+            tierCounters.query(false, total, total);
+            return ranker.topK(found, k, Ranker.Strategy.BLOCK_MAX_WAND);
+        }
+        tierCounters.query(true, read, total);
+        return top.results();
+    }
+
+    /* The k documents with the highest quantized scores for the terms, ordered by their exact BM25 score, best
+     * first; ties go to the lower docID. */
+    public List<Ranker.ScoredDocument> topKImpacts(List<String> terms, int k) throws IOException {
+        return topKImpacts(terms, k, Long.MAX_VALUE);
+    }
+
+    /* As above, but stops once the segments added hold maxPostings postings or more, even if the k best could
+     * still change: the highest scores are added first, so the result degrades gracefully. */
+    public List<Ranker.ScoredDocument> topKImpacts(List<String> terms, int k, long maxPostings) throws IOException {
+        List<String> found = new ArrayList<>();
+        List<ByteBuffer> lists = new ArrayList<>();
+        long total = 0;
+        for (String term : terms) {
+            Lexicon.LexiconEntry entry = impactLexicon.get(term);
+            if (entry == null) continue;
+            found.add(term);
+            lists.add(impacts.slice(entry.startPos, entry.endPos + 1 - entry.startPos));
+            total += entry.numPosting;
+        }
+        if (k <= 0 || found.isEmpty()) {
+            impactCounters.query(false, 0, total);
+            return new ArrayList<>();
+        }
+
+        // The next segment of every list: its score, its number of postings, and where its docIDs start.
+        int n = found.size();
+        int[] segmentScores = new int[n];
+        int[] segmentSizes = new int[n];
+        int[] positions = new int[n];
+        int[] header = new int[2];
+        for (int i = 0; i < n; i++) {
+            positions[i] = Util.VarByte.decode(lists.get(i), 0, header, 2);
+            segmentScores[i] = header[0];
+            segmentSizes[i] = header[1];
+        }
+
+        Accumulators accumulators = this.accumulators.get();
+        accumulators.start(k);
+        int[] docIds = new int[Math.max(16, InvertedIndexBuilder.BLOCK_SIZE)];
+        long read = 0;
+        boolean early = false;
+        while (true) {
+            // The segment with the highest score, and the most that the segments left can add to a document.
+            int next = -1;
+            int left = 0;
+            for (int i = 0; i < n; i++) {
+                if (segmentScores[i] == 0) continue;
+                left += segmentScores[i];
+                if (next < 0 || segmentScores[i] > segmentScores[next]) next = i;
+            }
+            if (next < 0) break;
+            if (accumulators.settled(left) || read >= maxPostings) {
+                early = true;
+                break;
+            }
+
+            ByteBuffer list = lists.get(next);
+            int size = segmentSizes[next];
+            if (size > docIds.length) docIds = new int[Math.max(size, docIds.length * 2)];
+            int position = Util.VarByte.decode(list, positions[next], docIds, size);
+            int docId = 0;
+            for (int i = 0; i < size; i++) {
+                docId += docIds[i];
+                accumulators.add(docId, segmentScores[next]);
+            }
+            read += size;
+
+            if (position < list.limit()) {
+                positions[next] = Util.VarByte.decode(list, position, header, 2);
+                segmentScores[next] = header[0];
+                segmentSizes[next] = header[1];
+            } else {
+                segmentScores[next] = 0;
+            }
+        }
+        impactCounters.query(early, read, total);
+        return rescore(found, accumulators.top());
+    }
+
+    // Exact BM25 scores of the documents, in increasing docID order, from the index; best first.
+    private List<Ranker.ScoredDocument> rescore(List<String> terms, int[] docIds) throws IOException {
+        double[] scores = new double[docIds.length];
+        for (String term : terms) {
+            ListCursor list = index.open(term);
+            double idf = bm25.idf(list.size());
+            for (int i = 0; i < docIds.length; i++) {
+                if (list.nextGEQ(docIds[i]) == docIds[i]) scores[i] += idf * bm25.tf(list.freq(), docIds[i]);
+            }
+        }
+        Ranker.TopK top = new Ranker.TopK(docIds.length);
+        for (int i = 0; i < docIds.length; i++) {
+            top.offer(docIds[i], scores[i]);
+        }
+        return top.results();
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+        highTier.close();
+        lowTier.close();
+        impacts.close();
+    }
+
+    /* Integer score accumulators for a score-at-a-time query, one per document, held by a thread across its
+     * queries and cleared through the documents they touched. The k + 1 best documents are kept in a min-heap,
+     * worst at the root, so that the query can tell when the k best can no longer change. */
+    private static class Accumulators {
+        private final int[] scores;
+        private final int[] heapIndex;  // Position in the heap plus one, 0 when not in it
+        private final Util.IntList touched = new Util.IntList(1024);
+        private int[] heap = new int[16];
+        private int heapSize;
+        private int k;
+
+        Accumulators(int numDocs) {
+            scores = new int[numDocs + 1];
+            heapIndex = new int[numDocs + 1];
+        }
+
+        void start(int k) {
+            for (int i = 0; i < touched.size(); i++) {
+                scores[touched.get(i)] = 0;
+                heapIndex[touched.get(i)] = 0;
+            }
+            touched.clear();
+            heapSize = 0;
+            this.k = k;
+            if (heap.length < k + 1) heap = new int[k + 1];
+        }
+
+        void add(int docId, int score) {
+            if (scores[docId] == 0) touched.add(docId);
+            scores[docId] += score;
+            int position = heapIndex[docId] - 1;
+            if (position >= 0) {
+                siftDown(position);
+            } else if (heapSize <= k) {
+                heap[heapSize] = docId;
+                heapIndex[docId] = ++heapSize;
+                siftUp(heapSize - 1);
+            } else if (worse(heap[0], docId)) {
+                heapIndex[heap[0]] = 0;
+                heap[0] = docId;
+                heapIndex[docId] = 1;
+                siftDown(0);
+            }
+        }
+
+        // Whether adding at most left to any document can no longer change which k documents are best.
+        boolean settled(int left) {
+            if (heapSize < k) return false;
+            if (heapSize == k) return scores[heap[0]] > left;  // Every other document is still at 0
+            int kth = heapSize > 2 ? Math.min(scores[heap[1]], scores[heap[2]]) : scores[heap[1]];
+            return kth > scores[heap[0]] + left;
+        }
+
+        // The best k documents, in increasing docID order.
+        int[] top() {
+            int from = heapSize > k ? 1 : 0;  // The root is the (k + 1)-th
+            int[] docIds = Arrays.copyOfRange(heap, from, heapSize);
+            Arrays.sort(docIds);
+            return docIds;
+        }
+
+        // Lower score, then higher docID.
+        private boolean worse(int a, int b) {
+            return scores[a] < scores[b] || scores[a] == scores[b] && a > b;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(heap[i], heap[parent])) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && worse(heap[child + 1], heap[child])) child++;
+                if (!worse(heap[child], heap[i])) break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int docId = heap[i];
+            heap[i] = heap[j];
+            heap[j] = docId;
+            heapIndex[heap[i]] = i + 1;
+            heapIndex[heap[j]] = j + 1;
+        }
+    }
+
+    // Queries answered, how many stopped early, and the postings they read of those in their lists.
+    static class Counters {
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong stoppedEarly = new AtomicLong();
+        final AtomicLong postingsRead = new AtomicLong();
+        final AtomicLong postings = new AtomicLong();
+
+        void query(boolean early, long read, long total) {
+            queries.incrementAndGet();
+            if (early) stoppedEarly.incrementAndGet();
+            postingsRead.addAndGet(read);
+            postings.addAndGet(total);
+        }
+
+        @Override
+        public String toString() {
+            long total = postings.get();
+            return String.format("%d queries, %d stopped early, %d of %d postings read (%.1f%%)", queries.get(), stoppedEarly.get(),
+                    postingsRead.get(), total, total == 0 ? 0 : 100.0 * postingsRead.get() / total);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// Read-only access to the inverted index and lexicon written by InvertedIndexBuilder, and to its positions if it has them.
+public class IndexReader implements TermIndex, Closeable {
+
+    // Files are mapped in windows of this size, since a single mapping is limited to 2 GB.
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final MappedFile index;
+    private final Lexicon lexicon;
+    private final PostingCodec codec;
+    private final Positions positions;
+    private final BlockCache blockCache;  // Null when blocks are not cached
+    private final int cacheId;
+
+    public IndexReader() throws IOException {
+        this(Paths.get(""));
+    }
+
+    // Index written by InvertedIndexBuilder into dir.
+    public IndexReader(Path dir) throws IOException {
+        this(dir, null);
+    }
+
+    // Decoded blocks are cached in blockCache, which other readers may share; null caches nothing.
+    public IndexReader(Path dir, BlockCache blockCache) throws IOException {
+        this(dir.resolve(InvertedIndexBuilder.OUTPUT_FILE).toString(), dir.resolve(InvertedIndexBuilder.LEXICON_FILE).toString(), blockCache);
+    }
+
+    public IndexReader(String indexFile, String lexiconFile) throws IOException {
+        this(indexFile, lexiconFile, null);
+    }
+
+    // The positions of a positional index are read from the positions file next to indexFile.
+    public IndexReader(String indexFile, String lexiconFile, BlockCache blockCache) throws IOException {
+        this.lexicon = Lexicon.open(lexiconFile);
+        this.index = new MappedFile(Paths.get(indexFile));
+
+        // The header names the codec of the blocks, and whether the index has positions.
+        ByteBuffer header = index.windows.length == 0 ? null : index.windows[0];
+        if (header == null || header.limit() < InvertedIndexBuilder.HEADER_SIZE || header.getInt(0) != InvertedIndexBuilder.MAGIC) {
+            index.close();
+            throw new IOException("Not an inverted index: " + indexFile);
+        }
+        if (header.getInt(8) != InvertedIndexBuilder.BLOCK_SIZE) {
+            index.close();
+            throw new IOException("Unsupported block size: " + header.getInt(8));
+        }
+        this.codec = PostingCodec.forId(header.getShort(6));
+        boolean positional = (header.getShort(4) & InvertedIndexBuilder.FLAG_POSITIONS) != 0;
+        Path positionsFile = Paths.get(indexFile).resolveSibling(InvertedIndexBuilder.POSITIONS_FILE);
+        this.positions = positional ? new Positions(positionsFile) : null;
+        this.blockCache = blockCache;
+        this.cacheId = blockCache == null ? 0 : blockCache.register();
+    }
+
+    public Lexicon lexicon() {
+        return lexicon;
+    }
+
+    public PostingCodec codec() {
+        return codec;
+    }
+
+    // Whether the lists of the index have positions.
+    @Override
+    public boolean hasPositions() {
+        return positions != null;
+    }
+
+    @Override
+    public ListCursor open(String term) throws IOException {
+        Lexicon.LexiconEntry entry = lexicon.get(term);
+        if (entry == null) return null;
+        return new ListCursor(index.slice(entry.startPos, entry.endPos + 1 - entry.startPos), (int) entry.numPosting, codec, positions,
+                blockCache, cacheId, entry.startPos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+        if (positions != null) positions.close();
+    }
+
+    // A read-only file mapped in windows.
+    static class MappedFile implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer[] windows;
+
+        MappedFile(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = i * WINDOW_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+            }
+        }
+
+        // Returns the bytes [start, start + length) of the file.
+        ByteBuffer slice(long start, long length) throws IOException {
+            int window = (int) (start / WINDOW_SIZE);
+            if ((start + length - 1) / WINDOW_SIZE == window) {
+                return windows[window].slice((int) (start - window * WINDOW_SIZE), (int) length);
+            }
+            // The range straddles two windows, so it gets a mapping of its own.
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // The positions file, opened by the first cursor that reads positions, so that other queries never touch it.
+    static class Positions implements Closeable {
+        private final Path file;
+        private MappedFile mapped;
+        private boolean closed;
+
+        private Positions(Path file) {
+            this.file = file;
+        }
+
+        // Returns the bytes [start, start + length) of the positions file.
+        ByteBuffer slice(long start, int length) throws IOException {
+            return mapped().slice(start, length);
+        }
+
+        private synchronized MappedFile mapped() throws IOException {
+            if (closed) throw new IOException("Index reader is closed");
+            if (mapped == null) {
+                MappedFile opened = new MappedFile(file);
+                if (opened.windows.length == 0 || opened.windows[0].getInt(0) != InvertedIndexBuilder.POSITIONS_MAGIC) {
+                    opened.close();
+                    throw new IOException("Not a positions file: " + file);
+                }
+                mapped = opened;
+            }
+            return mapped;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            if (mapped != null) mapped.close();
+        }
+    }
+}
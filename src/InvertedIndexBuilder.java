@@ -1,165 +1,465 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
 
 public class InvertedIndexBuilder {
 
     // File to store the inverted index.
-    private static final String OUTPUT_FILE = "invertedIndex";
+    static final String OUTPUT_FILE = "invertedIndex";
+
+    // File to store the lexicon.
+    static final String LEXICON_FILE = "lexicon";
+
+    // File to store the positions of a positional index.
+    static final String POSITIONS_FILE = "positions";
 
     // Number of postings in a block.
-    private static final int BLOCK_SIZE = 64;
+    static final int BLOCK_SIZE = 64;
+
+    /* Index header: magic, flags, codec id and block size. Inverted lists start right after it, and the
+     * lexicon positions count it in.
+
+		   ┌─────────────┬───────────┬──────────────┬────────────────┬────────────────────
+		   │ magic (4)   │ flags (2) │ codec id (2) │ block size (4) │ inverted lists ...
+		   └─────────────┴───────────┴──────────────┴────────────────┴────────────────────
+	*/
+    static final int MAGIC = 0x494E5631; // "INV1"
+    static final int HEADER_SIZE = 12;
+
+    // Header flag of an index whose lists reference a positions file.
+    static final int FLAG_POSITIONS = 1;
+
+    /* Positions file: a magic, then the positions of every block, in the order of the lists. The positions
+     * of a block are those of each of its postings in turn, as gaps from the previous position in the same
+     * document (the first is absolute), all encoded with the codec in one call. Positions are only read by
+     * queries that need them, so they are kept out of the inverted index. */
+    static final int POSITIONS_MAGIC = 0x504F5331; // "POS1"
+
+    // Merged postings, ordered by term and then by docID.
+    private final PostingStream postings;
+
+    // Codec for the docID gaps and frequencies of the blocks.
+    private final PostingCodec codec;
+
+    private final BuildMetrics metrics;
+    private final Path dir;  // Directory for the inverted index and lexicon
+    private final boolean positional;
+    private final int numThreads;  // Threads compressing the lists; 1 compresses them on the calling thread
+    private Util.CountingOutputStream positionsOut;
+    private long metadataBytes;
+    private int positionsField;  // Offset, in the last list written, of where its positions start
+
+    // Scratch space reused across terms: docID gaps of a block, per-block metadata and the compressed output.
+    private final int[] gaps = new int[BLOCK_SIZE];
+    private int[] blockSizeMeta = new int[16];
+    private int[] metaLastId = new int[16];
+    private int[] metaMaxFreq = new int[16];
+    private int[] metaPositionSize = new int[16];
+    private int[] positionGaps = new int[BLOCK_SIZE];
+    private final Util.ByteBuilder metadata = new Util.ByteBuilder(64);
+    private final Util.ByteBuilder blocks = new Util.ByteBuilder(1024);
+    private final Util.ByteBuilder positionBlocks = new Util.ByteBuilder(1024);
+
+    // Constructor to initialize the posting stream.
+    public InvertedIndexBuilder(PostingStream postings) {
+        this(postings, PostingCodec.VARBYTE);
+    }
 
-    // Input file containing the postings.
-    private final String inputFile;
+    public InvertedIndexBuilder(PostingStream postings, PostingCodec codec) {
+        this(postings, codec, new BuildMetrics(), Paths.get(""));
+    }
 
-    // Object to keep track of terms and their associated data.
-    private final Lexicon lexicon = new Lexicon();
+    public InvertedIndexBuilder(PostingStream postings, PostingCodec codec, BuildMetrics metrics, Path dir) {
+        this(postings, codec, metrics, dir, false);
+    }
 
-    // Constructor to initialize the input file.
-    public InvertedIndexBuilder(String inputFile) {
-        this.inputFile = inputFile;
+    // A positional index also writes the positions of every posting, which the stream must then provide.
+    public InvertedIndexBuilder(PostingStream postings, PostingCodec codec, BuildMetrics metrics, Path dir, boolean positional) {
+        this(postings, codec, metrics, dir, positional, 1);
+    }
+
+    // With more than one thread, ranges of terms are compressed concurrently; the files are the same.
+    public InvertedIndexBuilder(PostingStream postings, PostingCodec codec, BuildMetrics metrics, Path dir, boolean positional, int numThreads) {
+        this.postings = postings;
+        this.codec = codec;
+        this.metrics = metrics;
+        this.dir = dir;
+        this.positional = positional;
+        this.numThreads = numThreads;
     }
 
     // Method to build the inverted index.
-    public void buildInvertedIndex() {
+    public void buildInvertedIndex() throws IOException {
         try (
-                // Reader to read from the input file.
-                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-
                 // Output stream to write the inverted index to the file.
-                DataOutputStream out = new DataOutputStream(new FileOutputStream(OUTPUT_FILE))
+                Util.CountingOutputStream out = new Util.CountingOutputStream(new BufferedOutputStream(new FileOutputStream(dir.resolve(OUTPUT_FILE).toFile()), 1 << 16));
+
+                // Lexicon, written as the inverted lists are produced.
+                Lexicon.Writer lexicon = new Lexicon.Writer(dir.resolve(LEXICON_FILE).toString());
+
+                // Positions, only for a positional index.
+                Util.CountingOutputStream positionsFile = positional ? new Util.CountingOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(dir.resolve(POSITIONS_FILE).toFile()), 1 << 16)) : null;
+
+                // Compresses ranges of terms on other threads, only with more than one thread.
+                PartitionEncoder encoder = numThreads > 1 ? new PartitionEncoder(out, lexicon, positionsFile) : null
         ) {
-            // Lists to store document IDs and frequencies for each term. Refreshed for each term.
-            List<Long> docIDs = new ArrayList<>();
-            List<Long> freqs = new ArrayList<>();
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeShort(positional ? FLAG_POSITIONS : 0);
+            header.writeShort(codec.id());
+            header.writeInt(BLOCK_SIZE);
+            if (positional) new DataOutputStream(positionsFile).writeInt(POSITIONS_MAGIC);
+            positionsOut = positionsFile;
+
+            // Arrays to store document IDs, frequencies and positions for each term. Refreshed for each term.
+            int[] docIDs = new int[1024];
+            int[] freqs = new int[1024];
+            int numPostings = 0;
+            int[] positions = positional ? new int[1024] : null;
+            int numPositions = 0;
 
             // Variable to keep track of the current term being processed.
             String term = null;
 
-            // Infinite loop to keep reading lines from the file until break is called.
+            // Infinite loop to keep reading postings from the stream until break is called.
             while (true) {
-                // Read a line from the file.
-                String line = reader.readLine();
-
-                // If the line is null (end of file) and term is also null (no term processed), break the loop.
-                if (line == null && term == null) break;
-
-                // Split the line into term, document ID, and frequency.
-                String[] postingFields = line != null ? line.split(" ") : null;
-                String currTerm = line != null ? postingFields[0] : null;
-                long currId = line != null ? Long.parseLong(postingFields[1]) : -1;
-                long currFreq = line != null ? Long.parseLong(postingFields[2]) : -1;
+                // Move to the next posting.
+                boolean hasNext = postings.next();
+
+                // If the stream is exhausted and term is also null (no term processed), break the loop.
+                if (!hasNext && term == null) break;
+
+                // Take the term, document ID, and frequency of the posting.
+                String currTerm = hasNext ? postings.term() : null;
+                int currId = hasNext ? (int) postings.docId() : -1;
+                int currFreq = hasNext ? (int) postings.freq() : -1;
+                int[] currPositions = hasNext && positional ? postings.positions() : null;
+                if (hasNext && positional && currPositions == null) {
+                    throw new IllegalStateException("Postings without positions for a positional index");
+                }
 
-                // If this is the first term, initialize the term and increment numPosting.
+                // If this is the first term, initialize the term. Its first posting is counted below.
                 if (term == null) {
                     term = currTerm;
-                    lexicon.incNumPosting();
                 }
 
-                // If the current term is the same as the previous, increment numPosting and add the docID and frequency to the lists.
+                // If the current term is the same as the previous, add the docID and frequency to the lists.
                 if (currTerm != null && currTerm.equals(term)) {
-                    lexicon.incNumPosting();
-                    docIDs.add(currId);
-                    freqs.add(currFreq);
+                    if (numPostings == docIDs.length) {
+                        docIDs = Arrays.copyOf(docIDs, numPostings * 2);
+                        freqs = Arrays.copyOf(freqs, numPostings * 2);
+                    }
+                    docIDs[numPostings] = currId;
+                    freqs[numPostings] = currFreq;
+                    numPostings++;
+                    if (positional) positions = appendPositions(positions, numPositions, currPositions, currFreq);
+                    numPositions += positional ? currFreq : 0;
                 } else {
-                    // If the current term is different, process the previous term.
-                    createInvertedListForTerm(out, docIDs, freqs);
-                    lexicon.setEndPos(out.size());
-                    lexicon.add(term);
-                    lexicon.reset();
-
-                    // If currTerm is null, it means we have reached the end of the file, so break the loop.
+                    // If the current term is different, process the previous term, or hand it to the encoder,
+                    // which writes it in turn.
+                    if (encoder != null) {
+                        encoder.add(term, docIDs, freqs, positions, numPostings, numPositions);
+                    } else {
+                        long startPos = out.count();
+                        createInvertedListForTerm(out, docIDs, freqs, positions, numPostings);
+                        lexicon.add(term, startPos, out.count() - 1, numPostings);
+                        metrics.indexedTerms.incrementAndGet();
+                        metrics.indexedPostings.addAndGet(numPostings);
+                    }
+
+                    // If currTerm is null, it means we have reached the end of the stream, so break the loop.
                     if (currTerm == null) break;
 
                     // Otherwise, start processing the new term.
                     term = currTerm;
-                    docIDs.clear();
-                    freqs.clear();
-                    docIDs.add(currId);
-                    freqs.add(currFreq);
+                    docIDs[0] = currId;
+                    freqs[0] = currFreq;
+                    numPostings = 1;
+                    if (positional) positions = appendPositions(positions, 0, currPositions, currFreq);
+                    numPositions = positional ? currFreq : 0;
 
                 }
             }
-
-            // Write the lexicon to the output file.
-            lexicon.write();
-        } catch (IOException e) {
-            System.out.println("Error: Can Not Open merged posting file");
-            e.printStackTrace();
+            if (encoder != null) encoder.finish();
         }
+        metrics.indexWritten(codec.name(), dir.resolve(OUTPUT_FILE).toFile().length(), metadataBytes, dir.resolve(LEXICON_FILE).toFile().length());
+        if (positional) metrics.positionsWritten(dir.resolve(POSITIONS_FILE).toFile().length());
     }
 
-    /*
-			Block Layout (before compression):
-		   ┌─────────────┬────────────┬───────────┐
-		   │ metaData(16)│ docIDs(512)│ Freqs(512)│
-		   └─────────────┴────────────┴───────────┘
-	*/
-
-    // Method to create the inverted list for a term and write it to the output file.
-    private void createInvertedListForTerm(DataOutputStream out, List<Long> docIDs, List<Long> freqs) throws IOException {
-        // List to store the inverted list.
-        List<Byte> invertedList = new ArrayList<>();
-
-        // Lists to store metadata.
-        List<Long> blockSizeMeta = new ArrayList<>();
-        List<Long> metaLastId = new ArrayList<>();
+    // Copies n positions to the end of the term's positions, growing the array if needed.
+    private static int[] appendPositions(int[] positions, int size, int[] add, int n) {
+        if (size + n > positions.length) positions = Arrays.copyOf(positions, Math.max(size + n, positions.length * 2));
+        System.arraycopy(add, 0, positions, size, n);
+        return positions;
+    }
 
-        // Compress the postings and get the blocks.
-        List<Byte> blocks = compressPostings(docIDs, freqs, blockSizeMeta, metaLastId);
+    /* Inverted list layout. The metadata is VarByte-encoded; each block holds up to BLOCK_SIZE postings, its
+     * docID gaps then its frequencies, each encoded with the codec in one call.
+
+		   ┌──────────────────────────┬──────────────────────────┬─────────────────────────────┬─────────────────────────────┬─────
+		   │ block sizes (numBlocks)  │ last docIDs (numBlocks)  │ max frequencies (numBlocks) │ block 0: docID gaps | freqs │ ...
+		   └──────────────────────────┴──────────────────────────┴─────────────────────────────┴─────────────────────────────┴─────
+
+     * In a positional index the list metadata goes on with where the list's positions start in the positions
+     * file (8 bytes) and the size of the positions of each block (VarByte), which locate those of any block. */
+
+    // Method to create the inverted list for a term and write it to the output file; positions is null
+    // unless the index is positional.
+    private void createInvertedListForTerm(OutputStream out, int[] docIDs, int[] freqs, int[] positions, int numPostings) throws IOException {
+        int numBlocks = (numPostings + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blockSizeMeta.length < numBlocks) {
+            blockSizeMeta = new int[Math.max(numBlocks, blockSizeMeta.length * 2)];
+            metaLastId = new int[blockSizeMeta.length];
+            metaMaxFreq = new int[blockSizeMeta.length];
+            metaPositionSize = new int[blockSizeMeta.length];
+        }
 
-        // Compress and add metadata to the inverted list.
-        invertedList.addAll(Util.VarByte.encode(blockSizeMeta.stream().map(Long::intValue).collect(Collectors.toList())));
-        invertedList.addAll(Util.VarByte.encode(metaLastId.stream().map(Long::intValue).collect(Collectors.toList())));
+        // Compress the postings into blocks.
+        blocks.reset();
+        compressPostings(docIDs, freqs, numPostings, blockSizeMeta, metaLastId, metaMaxFreq);
+
+        // Compress the metadata.
+        metadata.reset();
+        Util.VarByte.encode(blockSizeMeta, 0, numBlocks, metadata);
+        Util.VarByte.encode(metaLastId, 0, numBlocks, metadata);
+        Util.VarByte.encode(metaMaxFreq, 0, numBlocks, metadata);
+
+        if (positions != null) {
+            positionBlocks.reset();
+            compressPositions(freqs, positions, numPostings, metaPositionSize);
+            long start = positionsOut.count();
+            positionsField = metadata.size();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                metadata.write((int) (start >>> shift));
+            }
+            Util.VarByte.encode(metaPositionSize, 0, numBlocks, metadata);
+            positionBlocks.writeTo(positionsOut);
+        }
 
-        // Append blocks to the inverted list.
-        invertedList.addAll(blocks);
+        // Write the metadata followed by the blocks to file.
+        metadataBytes += metadata.size();
+        metadata.writeTo(out);
+        blocks.writeTo(out);
+    }
 
-        // Write inverted list to file.
-        for (byte b : invertedList) {
-            out.writeByte(b);
+    // Method to compress the positions of each block, as gaps within each document.
+    private void compressPositions(int[] freqs, int[] positions, int numPostings, int[] positionSizeMeta) {
+        int numBlocks = (numPostings + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int next = 0;  // First position of the block
+        for (int blockIndex = 0; blockIndex < numBlocks; blockIndex++) {
+            int start = blockIndex * BLOCK_SIZE;
+            int end = Math.min((blockIndex + 1) * BLOCK_SIZE, numPostings);
+
+            int count = 0;
+            for (int i = start; i < end; i++) count += freqs[i];
+            if (positionGaps.length < count) positionGaps = new int[Math.max(count, positionGaps.length * 2)];
+
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                int previous = 0;
+                for (int j = 0; j < freqs[i]; j++, next++) {
+                    positionGaps[n++] = positions[next] - previous;
+                    previous = positions[next];
+                }
+            }
+            positionSizeMeta[blockIndex] = codec.encode(positionGaps, 0, count, positionBlocks);
         }
     }
 
-    // Method to compress postings and get blocks.
-    private List<Byte> compressPostings(List<Long> docIDs, List<Long> freqs, List<Long> blockSizeMeta, List<Long> lastDocIdMeta) {
-        List<Byte> blocks = new ArrayList<>();
-        int numBlocks = (int) Math.ceil((double) docIDs.size() / BLOCK_SIZE);
+    // Method to compress postings into blocks.
+    private void compressPostings(int[] docIDs, int[] freqs, int numPostings, int[] blockSizeMeta, int[] lastDocIdMeta, int[] maxFreqMeta) {
+        int numBlocks = (numPostings + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
         for (int blockIndex = 0; blockIndex < numBlocks; blockIndex++) {
             int start = blockIndex * BLOCK_SIZE;
-            int end = Math.min((blockIndex + 1) * BLOCK_SIZE, docIDs.size());
-            List<Long> idBlock = new ArrayList<>(docIDs.subList(start, end));
-            List<Long> freqBlock = new ArrayList<>(freqs.subList(start, end));
+            int end = Math.min((blockIndex + 1) * BLOCK_SIZE, numPostings);
 
             // Convert docIDs to differences for compression.
-            convertToDifferences(idBlock, lastDocIdMeta);
+            convertToDifferences(docIDs, start, end, blockIndex == 0 ? 0 : lastDocIdMeta[blockIndex - 1]);
+
+            // Compress the block.
+            int blockSize = codec.encode(gaps, 0, end - start, blocks);
+            blockSize += codec.encode(freqs, start, end - start, blocks);
+
+            // Update metadata. The maximum frequency bounds the score of any posting in the block.
+            int maxFreq = 0;
+            for (int i = start; i < end; i++) maxFreq = Math.max(maxFreq, freqs[i]);
+            lastDocIdMeta[blockIndex] = docIDs[end - 1];
+            blockSizeMeta[blockIndex] = blockSize;
+            maxFreqMeta[blockIndex] = maxFreq;
+        }
+    }
+
+    // Method to convert the docIDs of a block to differences, starting from the last docID of the previous block.
+    private void convertToDifferences(int[] ids, int start, int end, int previousId) {
+        for (int i = start; i < end; i++) {
+            gaps[i - start] = ids[i] - previousId;
+            previousId = ids[i];
+        }
+    }
 
-            // Compress the block. Uses stream to optimize memory usage
-            List<Byte> compressedIdBlock = Util.VarByte.encode(idBlock.stream().map(Long::intValue).collect(Collectors.toList()));
-            List<Byte> compressedFreqBlock = Util.VarByte.encode(freqBlock.stream().map(Long::intValue).collect(Collectors.toList()));
+    /* Compresses consecutive ranges of terms concurrently. The calling thread groups the terms into partitions of
+     * about PARTITION_POSTINGS postings (a longer list makes a partition of its own) and submits them to a pool,
+     * each of whose threads compresses with an InvertedIndexBuilder of its own as scratch space. A partition's
+     * lists and positions are laid out as if the files started with them. The calling thread writes finished
+     * partitions in term order, rebasing their lexicon offsets and the positions offset in every list's
+     * metadata, so the files are those a single thread writes. At most QUEUE_PARTITIONS per thread are in flight.
+
+		   reader:    │ group p1 │ group p2 │ group p3 │ ... │ write p1 │ write p2 │ ...
+		   pool:                │ compress p1         │
+		                                   │ compress p2         │
+    */
+    private class PartitionEncoder implements Closeable {
+        private static final int PARTITION_POSTINGS = 1 << 17;
+        private static final int QUEUE_PARTITIONS = 2;
+
+        private final Util.CountingOutputStream out;
+        private final Lexicon.Writer lexicon;
+        private final Util.CountingOutputStream positionsFile;
+        private final ExecutorService pool;
+        private final ThreadLocal<InvertedIndexBuilder> scratch;
+        private final Deque<Future<Partition>> pending = new ArrayDeque<>();
+        private Partition partition = new Partition();
+
+        PartitionEncoder(Util.CountingOutputStream out, Lexicon.Writer lexicon, Util.CountingOutputStream positionsFile) {
+            this.out = out;
+            this.lexicon = lexicon;
+            this.positionsFile = positionsFile;
+            this.pool = Executors.newFixedThreadPool(numThreads, task -> {
+                Thread thread = new Thread(task, "index-encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scratch = ThreadLocal.withInitial(() -> new InvertedIndexBuilder(null, codec, metrics, dir, positional));
+        }
 
-            // Update metadata.
-            lastDocIdMeta.add(docIDs.get(end - 1));
-            blockSizeMeta.add((long) (compressedIdBlock.size() + compressedFreqBlock.size()));
+        // Adds a term with its postings, which are copied, and writes the partitions that are done.
+        void add(String term, int[] docIDs, int[] freqs, int[] positions, int numPostings, int numPositions) throws IOException {
+            partition.add(term, docIDs, freqs, positions, numPostings, numPositions);
+            if (partition.numPostings >= PARTITION_POSTINGS) submit();
+        }
 
-            // Add compressed data to blocks.
-            blocks.addAll(compressedIdBlock);
-            blocks.addAll(compressedFreqBlock);
+        // Writes every partition left.
+        void finish() throws IOException {
+            if (!partition.terms.isEmpty()) submit();
+            while (!pending.isEmpty()) write(await(pending.poll()));
         }
 
-        return blocks;
+        private void submit() throws IOException {
+            Partition full = partition;
+            partition = new Partition();
+            pending.add(pool.submit(() -> full.encode(scratch.get())));
+            while (pending.size() > QUEUE_PARTITIONS * numThreads || !pending.isEmpty() && pending.peek().isDone()) {
+                write(await(pending.poll()));
+            }
+        }
+
+        private void write(Partition done) throws IOException {
+            long base = out.count();
+            long positionsBase = positionsFile == null ? 0 : positionsFile.count();
+            byte[] lists = done.lists.array();
+            for (int i = 0; i < done.terms.size(); i++) {
+                long start = i == 0 ? 0 : done.listEnds[i - 1];
+                if (positional) {
+                    // Big-endian, as the list metadata stores it
+                    int field = (int) start + done.positionsFields[i];
+                    long offset = 0;
+                    for (int b = 0; b < 8; b++) offset = offset << 8 | (lists[field + b] & 0xFF);
+                    offset += positionsBase;
+                    for (int b = 7; b >= 0; b--, offset >>>= 8) lists[field + b] = (byte) offset;
+                }
+                lexicon.add(done.terms.get(i), base + start, base + done.listEnds[i] - 1, done.numPostings(i));
+            }
+            out.write(lists, 0, done.lists.size());
+            if (positionsFile != null) positionsFile.write(done.positionsOut.array(), 0, done.positionsOut.size());
+
+            metadataBytes += done.metadataBytes;
+            metrics.indexedTerms.addAndGet(done.terms.size());
+            metrics.indexedPostings.addAndGet(done.numPostings);
+        }
+
+        private Partition await(Future<Partition> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing inverted lists");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        @Override
+        public void close() {
+            pool.shutdownNow();
+        }
     }
 
-    // Method to convert docIDs to differences.
-    private void convertToDifferences(List<Long> ids, List<Long> lastDocIdMeta) {
-        for (int i = ids.size() - 1; i >= 0; i--) {
-            if (i != 0) {
-                ids.set(i, ids.get(i) - ids.get(i - 1));
-            } else if (!lastDocIdMeta.isEmpty()) {
-                ids.set(i, ids.get(i) - lastDocIdMeta.get(lastDocIdMeta.size() - 1));
+    // A range of terms with their postings, and once encoded, their lists and positions.
+    private static class Partition {
+        final List<String> terms = new ArrayList<>();
+        final List<int[]> docIDs = new ArrayList<>();
+        final List<int[]> freqs = new ArrayList<>();
+        final List<int[]> positions = new ArrayList<>();
+        private int[] sizes = new int[16];  // Number of postings of each term
+        int numPostings;
+
+        Buffer lists;
+        Buffer positionsOut;
+        long[] listEnds;          // Offset after each term's list
+        int[] positionsFields;    // Offset of the positions offset in each term's list
+        long metadataBytes;
+
+        void add(String term, int[] docIDs, int[] freqs, int[] positions, int numPostings, int numPositions) {
+            if (terms.size() == sizes.length) sizes = Arrays.copyOf(sizes, sizes.length * 2);
+            sizes[terms.size()] = numPostings;
+            terms.add(term);
+            this.docIDs.add(Arrays.copyOf(docIDs, numPostings));
+            this.freqs.add(Arrays.copyOf(freqs, numPostings));
+            this.positions.add(positions == null ? null : Arrays.copyOf(positions, numPositions));
+            this.numPostings += numPostings;
+        }
+
+        int numPostings(int term) {
+            return sizes[term];
+        }
+
+        Partition encode(InvertedIndexBuilder builder) throws IOException {
+            lists = new Buffer(numPostings * 2);
+            positionsOut = new Buffer(positions.get(0) == null ? 0 : numPostings * 2);
+            Util.CountingOutputStream listsOut = new Util.CountingOutputStream(lists);
+            builder.positionsOut = new Util.CountingOutputStream(positionsOut);
+            listEnds = new long[terms.size()];
+            positionsFields = new int[terms.size()];
+
+            long metadataBefore = builder.metadataBytes;
+            for (int i = 0; i < terms.size(); i++) {
+                builder.createInvertedListForTerm(listsOut, docIDs.get(i), freqs.get(i), positions.get(i), sizes[i]);
+                listEnds[i] = listsOut.count();
+                positionsFields[i] = builder.positionsField;
+                docIDs.set(i, null);  // The postings are not needed once compressed
+                freqs.set(i, null);
+                positions.set(i, null);
             }
+            metadataBytes = builder.metadataBytes - metadataBefore;
+            return this;
+        }
+    }
+
+    // Output buffer whose bytes can be patched before they are written.
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int capacity) {
+            super(Math.max(32, capacity));
+        }
+
+        byte[] array() {
+            return buf;
         }
     }
 }
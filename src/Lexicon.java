@@ -1,66 +1,327 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
+/* On-disk term dictionary. Terms are stored in sorted order in blocks of BLOCK_TERMS entries.
+ * Inside a block every term is front-coded against the previous one, and the position of its inverted
+ * list is implied by the first position of the block plus the lengths of the lists before it.
+
+		   Lexicon layout:
+		   ┌────────┬───────────────────────────┬─────────────────────────────────┬────────────────────────────────┐
+		   │ header │ blocks of entries:        │ sparse index, one per block:    │ footer: index offset, blocks,  │
+		   │        │ prefix, suffix, df, length│ block offset, first list start  │         terms, magic           │
+		   └────────┴───────────────────────────┴─────────────────────────────────┴────────────────────────────────┘
+
+ * The first entry of a block shares no prefix, so a block can be decoded on its own. Lookups binary search
+ * the sparse index on the first term of each block, then scan one block. The file is memory-mapped, so
+ * nothing but the mapping is held on the heap. Terms are compared as UTF-8 bytes. */
 public class Lexicon {
-    // List to store the lexicon entries
-    private final List<LexiconEntry> lexicon;
-    // Current start position in the inverted index file for a term
-    private long currStartPos;
-    // Current end position in the inverted index file for a term
-    private long currEndPos;
-    // Current number of postings (document-frequency) for a term
-    private long currNumPosting;
-
-    // Constructor initializing the lexicon list and variables
-    public Lexicon() {
-        lexicon = new ArrayList<>();
-        currStartPos = 0;
-        currEndPos = 0;
-        currNumPosting = 0;
-    }
-
-    // Method to add a new term along with its metadata to the lexicon
-    public void add(String term) {
-        LexiconEntry lexiconEntry = new LexiconEntry(term, currStartPos, currEndPos, currNumPosting);
-        lexicon.add(lexiconEntry);
-    }
-
-    // Method to reset variables for the next term
-    public void reset() {
-        currStartPos = currEndPos + 1;
-        currNumPosting = 1;
-    }
-
-    // Method to write the lexicon to a file
-    public void write() throws IOException {
-        String output = "lexicon";
-
-        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)))) {
-            for (LexiconEntry entry : lexicon) {
-                dos.writeUTF(entry.term); // Writing term
-                dos.writeLong(entry.startPos); // Writing start position of term in inverted index
-                dos.writeLong(entry.endPos); // Writing end position of term in inverted index
-                dos.writeLong(entry.numPosting); // Writing document-frequency of term
+
+    // Number of entries in a block.
+    static final int BLOCK_TERMS = 16;
+
+    private static final int MAGIC = 0x4C455831; // "LEX1"
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 4;
+
+    private final ByteBuffer data;
+    private final long indexOffset;
+    private final int numBlocks;
+    private final long numTerms;
+
+    private Lexicon(ByteBuffer data) throws IOException {
+        this.data = data;
+        int footer = data.limit() - FOOTER_SIZE;
+        if (footer < HEADER_SIZE || data.getInt(footer + 20) != MAGIC || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a lexicon file");
+        }
+        if (data.getInt(4) != BLOCK_TERMS) throw new IOException("Unsupported lexicon block size: " + data.getInt(4));
+        this.indexOffset = data.getLong(footer);
+        this.numBlocks = data.getInt(footer + 8);
+        this.numTerms = data.getLong(footer + 12);
+    }
+
+    // Method to memory-map a lexicon written by Writer
+    public static Lexicon open(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Lexicon larger than 2 GB: " + file);
+            return new Lexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Number of terms in the lexicon.
+    public long size() {
+        return numTerms;
+    }
+
+    // Method to look up a term. Returns null for unknown terms.
+    public LexiconEntry get(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int block = findBlock(key);
+        if (block < 0) return null;
+
+        Scanner scanner = new Scanner(block);
+        while (scanner.next()) {
+            int cmp = scanner.compareTo(key);
+            if (cmp == 0) return scanner.entry();
+            if (cmp > 0) break;
+        }
+        return null;
+    }
+
+    // Entries with from <= term < to, in term order. A null bound is unbounded.
+    public Iterator<LexiconEntry> range(String from, String to) {
+        byte[] lower = from == null ? new byte[0] : from.getBytes(StandardCharsets.UTF_8);
+        byte[] upper = to == null ? null : to.getBytes(StandardCharsets.UTF_8);
+
+        Scanner scanner = new Scanner(Math.max(findBlock(lower), 0));
+        return new Iterator<>() {
+            private boolean ready = advance(true);
+
+            private boolean advance(boolean skipLower) {
+                while (scanner.next()) {
+                    if (skipLower && scanner.compareTo(lower) < 0) continue;
+                    return upper == null || scanner.compareTo(upper) < 0;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return ready;
+            }
+
+            @Override
+            public LexiconEntry next() {
+                if (!ready) throw new NoSuchElementException();
+                LexiconEntry entry = scanner.entry();
+                ready = advance(false);
+                return entry;
             }
+        };
+    }
+
+    // Entries whose term starts with prefix, in term order.
+    public Iterator<LexiconEntry> prefix(String prefix) {
+        Iterator<LexiconEntry> entries = range(prefix, null);
+        return new Iterator<>() {
+            private LexiconEntry next = entries.hasNext() ? entries.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null && next.term.startsWith(prefix);
+            }
+
+            @Override
+            public LexiconEntry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                LexiconEntry entry = next;
+                next = entries.hasNext() ? entries.next() : null;
+                return entry;
+            }
+        };
+    }
+
+    // Last block whose first term is <= key, or -1 if key sorts before every term.
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = numBlocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareFirstTerm(mid, key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Compares the first term of a block, which is stored in full, with key.
+    private int compareFirstTerm(int block, byte[] key) {
+        int pos = (int) blockOffset(block);
+        pos = skipNum(pos); // Shared prefix, always 0
+        int length = 0;
+        int shift = 0;
+        int b;
+        while (((b = data.get(pos++)) & 0x80) == 0) {
+            length |= b << shift;
+            shift += 7;
+        }
+        length |= (b & 0x7F) << shift;
+        return compare(data, pos, length, key);
+    }
+
+    private long blockOffset(int block) {
+        return data.getLong((int) (indexOffset + 16L * block));
+    }
+
+    private long blockFirstStart(int block) {
+        return data.getLong((int) (indexOffset + 16L * block + 8));
+    }
+
+    private int skipNum(int pos) {
+        while ((data.get(pos++) & 0x80) == 0) ;
+        return pos;
+    }
+
+    // Unsigned lexicographic comparison of buf[pos, pos + length) with key.
+    private static int compare(ByteBuffer buf, int pos, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(buf.get(pos + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) return cmp;
         }
+        return Integer.compare(length, key.length);
     }
 
-    // Method to increment the number of postings for the current term
-    public void incNumPosting() {
-        currNumPosting++;
+    private static int compare(byte[] a, int length, byte[] key) {
+        int cmp = Arrays.compareUnsigned(a, 0, Math.min(length, key.length), key, 0, Math.min(length, key.length));
+        return cmp != 0 ? cmp : Integer.compare(length, key.length);
+    }
+
+    // Decodes entries one at a time, from the start of a block to the end of the lexicon.
+    private class Scanner {
+        private int block;
+        private int inBlock;
+        private int pos;
+        private byte[] term = new byte[64];
+        private int termLength;
+        private long numPosting;
+        private long startPos;
+        private long length;
+
+        private Scanner(int block) {
+            this.block = block;
+            this.inBlock = BLOCK_TERMS; // Forces the first call to next() to start the block
+        }
+
+        boolean next() {
+            if (inBlock == BLOCK_TERMS) {
+                if (block >= numBlocks) return false;
+                pos = (int) blockOffset(block);
+                startPos = blockFirstStart(block);
+                length = 0;
+                inBlock = 0;
+                block++;
+            }
+            if ((long) (block - 1) * BLOCK_TERMS + inBlock >= numTerms) return false;
+
+            int prefix = readNum();
+            int suffix = readNum();
+            termLength = prefix + suffix;
+            if (term.length < termLength) term = Arrays.copyOf(term, Math.max(termLength, term.length * 2));
+            data.get(pos, term, prefix, suffix);
+            pos += suffix;
+            numPosting = readNum();
+            startPos += length;
+            length = readNum();
+            inBlock++;
+            return true;
+        }
+
+        int compareTo(byte[] key) {
+            return compare(term, termLength, key);
+        }
+
+        LexiconEntry entry() {
+            return new LexiconEntry(new String(term, 0, termLength, StandardCharsets.UTF_8), startPos, startPos + length - 1, numPosting);
+        }
+
+        private int readNum() {
+            int number = 0;
+            int shift = 0;
+            int b;
+            while (((b = data.get(pos++)) & 0x80) == 0) {
+                number |= b << shift;
+                shift += 7;
+            }
+            return number | ((b & 0x7F) << shift);
+        }
     }
 
-    // Method to set the end position of the current term in the inverted index
-    public void setEndPos(long outputSize) {
-        currEndPos = outputSize - 1;
+    // Writes a lexicon as the inverted lists are produced. Terms must be added in increasing order.
+    public static class Writer implements Closeable {
+        private final Util.CountingOutputStream out;
+
+        // Sparse index: file offset and first list position of every block.
+        private long[] blockIndex = new long[256];
+        private int numBlocks;
+        private long numTerms;
+
+        private byte[] previous = new byte[0];
+        private long previousEnd;
+
+        public Writer(String file) throws IOException {
+            out = new Util.CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(BLOCK_TERMS);
+        }
+
+        // Method to add a term whose inverted list occupies [startPos, endPos] of the inverted index
+        public void add(String term, long startPos, long endPos, long numPosting) throws IOException {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            if (numTerms > 0 && compare(previous, previous.length, bytes) >= 0) {
+                throw new IllegalStateException("Lexicon terms out of order: " + term);
+            }
+
+            int prefix = 0;
+            if (numTerms % BLOCK_TERMS == 0) {
+                // Start a new block
+                if (2 * numBlocks + 2 > blockIndex.length) blockIndex = Arrays.copyOf(blockIndex, blockIndex.length * 2);
+                blockIndex[2 * numBlocks] = out.count();
+                blockIndex[2 * numBlocks + 1] = startPos;
+                numBlocks++;
+            } else {
+                if (startPos != previousEnd + 1) throw new IllegalStateException("Inverted lists are not contiguous at " + term);
+                int max = Math.min(previous.length, bytes.length);
+                while (prefix < max && previous[prefix] == bytes[prefix]) prefix++;
+            }
+
+            Util.VarByte.write(out, prefix);
+            Util.VarByte.write(out, bytes.length - prefix);
+            out.write(bytes, prefix, bytes.length - prefix);
+            Util.VarByte.write(out, numPosting);
+            Util.VarByte.write(out, endPos - startPos + 1);
+
+            previous = bytes;
+            previousEnd = endPos;
+            numTerms++;
+        }
+
+        // Number of terms added so far.
+        public long size() {
+            return numTerms;
+        }
+
+        // Method to write the sparse index and footer, and close the file
+        @Override
+        public void close() throws IOException {
+            try (DataOutputStream dos = new DataOutputStream(out)) {
+                long indexOffset = out.count();
+                for (int i = 0; i < 2 * numBlocks; i++) {
+                    dos.writeLong(blockIndex[i]);
+                }
+                dos.writeLong(indexOffset);
+                dos.writeInt(numBlocks);
+                dos.writeLong(numTerms);
+                dos.writeInt(MAGIC);
+            }
+        }
     }
 
     // Inner class to represent an entry in the lexicon
-    private static class LexiconEntry {
-        String term; // The term
-        long startPos; // Start position of term in inverted index
-        long endPos; // End position of term in inverted index
-        long numPosting; // Document-frequency of term
+    static class LexiconEntry {
+        final String term; // The term
+        final long startPos; // Start position of term in inverted index
+        final long endPos; // End position of term in inverted index
+        final long numPosting; // Document-frequency of term
 
         // Constructor to initialize a LexiconEntry
         private LexiconEntry(String term, long startPos, long endPos, long numPosting) {
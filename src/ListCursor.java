@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Cursor over the inverted list of a term, in increasing docID order.
+ * The block metadata (compressed size, last docID and maximum frequency of every block) is decoded when the
+ * cursor is opened, so nextGEQ can skip whole blocks without decoding them. A block's frequencies are only
+ * decoded when asked for. A separate "shallow" position moves over the block metadata alone, for
+ * Block-Max WAND. Cursors over the lists of a term in several segments can be concatenated into one, with
+ * the docIDs of each segment shifted by its docID base. In a positional index the positions of a block are
+ * read from the positions file the first time they are asked for, so other queries never read that file.
+ * With a BlockCache, a block is looked up there before it is decoded, and added to it after. */
+public class ListCursor {
+
+    // Returned once the cursor has moved past the last posting.
+    public static final int END = Integer.MAX_VALUE;
+
+    private static final int BLOCK_SIZE = InvertedIndexBuilder.BLOCK_SIZE;
+
+    private final int numPostings;
+    private final int numBlocks;
+    private final int maxFreq;
+
+    // Per block: the list and codec it is stored with, its position and length, its last docID and maximum
+    // frequency, and the docID its first gap is relative to.
+    private final ByteBuffer[] lists;
+    private final PostingCodec[] codecs;
+    private final int[] blockStarts;
+    private final int[] blockLengths;
+    private final int[] lastIds;
+    private final int[] maxFreqs;
+    private final int[] baseIds;
+
+    // Per block, in a positional index: the positions file, and where and how long the block's positions are.
+    // Null when no block has positions.
+    private final IndexReader.Positions[] positionFiles;
+    private final long[] positionStarts;
+    private final int[] positionLengths;
+
+    // Per block, when its reader has a BlockCache: the cache, the reader's id in it, and the position of the
+    // block in the index file. Null when no block is cached.
+    private final BlockCache[] caches;
+    private final int[] cacheIds;
+    private final long[] filePositions;
+
+    // The decoded block: its index, docIDs, and where its frequencies start.
+    private final int[] docIds = new int[BLOCK_SIZE];
+    private final int[] freqs = new int[BLOCK_SIZE];
+    private int block = -1;
+    private int blockLength;
+    private int freqPos;
+    private boolean freqsDecoded;
+    private BlockCache.Block cachedBlock;  // The decoded block's cache entry, if it has one
+
+    // The decoded positions of the block, as gaps, and where those of each posting start.
+    private int[] blockPositions;
+    private final int[] positionOffsets = new int[BLOCK_SIZE + 1];
+    private boolean positionsDecoded;
+    private int[] positions;
+
+    // Position of the current posting in the decoded block.
+    private int index = -1;
+    private int docId = -1;
+
+    // Block reached by advanceShallow.
+    private int shallowBlock;
+
+    // Number of blocks decoded so far.
+    private int blocksDecoded;
+
+    ListCursor(ByteBuffer list, int numPostings, PostingCodec codec) {
+        this(list, numPostings, codec, null, null, 0, 0);
+    }
+
+    /* positions is the positions file of a positional index, null otherwise. cache is where the blocks are
+     * cached, under cacheId and the position of the block in the index file, given that of the list. */
+    ListCursor(ByteBuffer list, int numPostings, PostingCodec codec, IndexReader.Positions positions,
+               BlockCache cache, int cacheId, long listPosition) {
+        this.numPostings = numPostings;
+        this.numBlocks = (numPostings + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        // List layout: VarByte block sizes, last docIDs and maximum frequencies, then the codec-encoded blocks.
+        int[] blockSizes = new int[numBlocks];
+        lastIds = new int[numBlocks];
+        maxFreqs = new int[numBlocks];
+        int pos = Util.VarByte.decode(list, 0, blockSizes, numBlocks);
+        pos = Util.VarByte.decode(list, pos, lastIds, numBlocks);
+        pos = Util.VarByte.decode(list, pos, maxFreqs, numBlocks);
+
+        // A positional list goes on with the start of its positions and the size of those of each block.
+        if (positions != null) {
+            positionFiles = new IndexReader.Positions[numBlocks];
+            positionStarts = new long[numBlocks];
+            positionLengths = new int[numBlocks];
+            long start = list.getLong(pos);
+            pos = Util.VarByte.decode(list, pos + 8, positionLengths, numBlocks);
+            for (int i = 0; i < numBlocks; i++) {
+                positionFiles[i] = positions;
+                positionStarts[i] = start;
+                start += positionLengths[i];
+            }
+        } else {
+            positionFiles = null;
+            positionStarts = null;
+            positionLengths = null;
+        }
+
+        lists = new ByteBuffer[numBlocks];
+        codecs = new PostingCodec[numBlocks];
+        blockStarts = new int[numBlocks];
+        blockLengths = new int[numBlocks];
+        baseIds = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            lists[i] = list;
+            codecs[i] = codec;
+            blockStarts[i] = pos;
+            pos += blockSizes[i];
+            blockLengths[i] = Math.min(BLOCK_SIZE, numPostings - i * BLOCK_SIZE);
+            baseIds[i] = i == 0 ? 0 : lastIds[i - 1];
+        }
+
+        if (cache != null) {
+            caches = new BlockCache[numBlocks];
+            cacheIds = new int[numBlocks];
+            filePositions = new long[numBlocks];
+            Arrays.fill(caches, cache);
+            Arrays.fill(cacheIds, cacheId);
+            for (int i = 0; i < numBlocks; i++) filePositions[i] = listPosition + blockStarts[i];
+        } else {
+            caches = null;
+            cacheIds = null;
+            filePositions = null;
+        }
+        maxFreq = max(maxFreqs);
+    }
+
+    // Concatenation of unused cursors over disjoint docID ranges, in increasing order once shifted by their bases.
+    ListCursor(ListCursor[] parts, int[] docBases) {
+        int postings = 0;
+        int blocks = 0;
+        boolean positional = false;
+        boolean cached = false;
+        for (ListCursor part : parts) {
+            postings += part.numPostings;
+            blocks += part.numBlocks;
+            positional |= part.positionFiles != null;
+            cached |= part.caches != null;
+        }
+        numPostings = postings;
+        numBlocks = blocks;
+
+        lists = new ByteBuffer[blocks];
+        codecs = new PostingCodec[blocks];
+        blockStarts = new int[blocks];
+        blockLengths = new int[blocks];
+        lastIds = new int[blocks];
+        maxFreqs = new int[blocks];
+        baseIds = new int[blocks];
+        positionFiles = positional ? new IndexReader.Positions[blocks] : null;
+        positionStarts = positional ? new long[blocks] : null;
+        positionLengths = positional ? new int[blocks] : null;
+        caches = cached ? new BlockCache[blocks] : null;
+        cacheIds = cached ? new int[blocks] : null;
+        filePositions = cached ? new long[blocks] : null;
+        int b = 0;
+        for (int p = 0; p < parts.length; p++) {
+            ListCursor part = parts[p];
+            System.arraycopy(part.lists, 0, lists, b, part.numBlocks);
+            System.arraycopy(part.codecs, 0, codecs, b, part.numBlocks);
+            System.arraycopy(part.blockStarts, 0, blockStarts, b, part.numBlocks);
+            System.arraycopy(part.blockLengths, 0, blockLengths, b, part.numBlocks);
+            System.arraycopy(part.maxFreqs, 0, maxFreqs, b, part.numBlocks);
+            if (part.positionFiles != null) {
+                System.arraycopy(part.positionFiles, 0, positionFiles, b, part.numBlocks);
+                System.arraycopy(part.positionStarts, 0, positionStarts, b, part.numBlocks);
+                System.arraycopy(part.positionLengths, 0, positionLengths, b, part.numBlocks);
+            }
+            if (part.caches != null) {
+                System.arraycopy(part.caches, 0, caches, b, part.numBlocks);
+                System.arraycopy(part.cacheIds, 0, cacheIds, b, part.numBlocks);
+                System.arraycopy(part.filePositions, 0, filePositions, b, part.numBlocks);
+            }
+            for (int i = 0; i < part.numBlocks; i++) {
+                lastIds[b + i] = part.lastIds[i] + docBases[p];
+                baseIds[b + i] = part.baseIds[i] + docBases[p];
+            }
+            b += part.numBlocks;
+        }
+        maxFreq = max(maxFreqs);
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+        for (int value : values) max = Math.max(max, value);
+        return max;
+    }
+
+    // Document frequency of the term.
+    public int size() {
+        return numPostings;
+    }
+
+    // Current docID: -1 before the first call to next or nextGEQ, END once the list is exhausted.
+    public int docId() {
+        return docId;
+    }
+
+    // Moves to the next posting and returns its docID.
+    public int next() {
+        if (docId == END) return END;
+        if (index + 1 < blockLength) {
+            return docId = docIds[++index];
+        }
+        if (block + 1 >= numBlocks) {
+            return docId = END;
+        }
+        decodeBlock(block + 1);
+        index = 0;
+        return docId = docIds[0];
+    }
+
+    // Moves to the first posting with a docID >= target and returns its docID. Never moves backwards.
+    public int nextGEQ(int target) {
+        if (docId >= target) return docId;
+
+        // Skip the blocks that end before the target without decoding them.
+        int b = Math.max(block, 0);
+        while (b < numBlocks && lastIds[b] < target) b++;
+        if (b == numBlocks) {
+            return docId = END;
+        }
+
+        if (b != block) {
+            decodeBlock(b);
+            index = 0;
+        }
+        while (docIds[index] < target) index++;
+        return docId = docIds[index];
+    }
+
+    // Frequency of the term in the current document.
+    public int freq() {
+        if (!freqsDecoded) {
+            int[] cachedFreqs = cachedBlock == null ? null : cachedBlock.freqs;
+            if (cachedFreqs != null) {
+                System.arraycopy(cachedFreqs, 0, freqs, 0, blockLength);
+            } else {
+                codecs[block].decode(lists[block], freqPos, freqs, blockLength);
+                if (cachedBlock != null) cachedBlock.freqs = Arrays.copyOf(freqs, blockLength);
+            }
+            freqsDecoded = true;
+        }
+        return freqs[index];
+    }
+
+    // Positions of the term in the current document, increasing, in the first freq() entries of an array
+    // that the next call reuses.
+    public int[] positions() throws IOException {
+        IndexReader.Positions file = positionFiles == null ? null : positionFiles[block];
+        if (file == null) throw new IllegalStateException("The index has no positions");
+
+        if (!positionsDecoded) {
+            freq();  // The frequencies tell where the positions of each posting start
+            int total = 0;
+            for (int i = 0; i < blockLength; i++) {
+                positionOffsets[i] = total;
+                total += freqs[i];
+            }
+            positionOffsets[blockLength] = total;
+            if (blockPositions == null || blockPositions.length < total) {
+                blockPositions = new int[Math.max(total, blockPositions == null ? 0 : blockPositions.length * 2)];
+            }
+            codecs[block].decode(file.slice(positionStarts[block], positionLengths[block]), 0, blockPositions, total);
+            positionsDecoded = true;
+        }
+
+        int from = positionOffsets[index];
+        int n = positionOffsets[index + 1] - from;
+        if (positions == null || positions.length < n) positions = new int[Math.max(n, 16)];
+        int position = 0;
+        for (int i = 0; i < n; i++) {
+            position += blockPositions[from + i];
+            positions[i] = position;
+        }
+        return positions;
+    }
+
+    // Highest frequency in the whole list.
+    public int maxFreq() {
+        return maxFreq;
+    }
+
+    // Moves the shallow position to the block that would contain target, without decoding anything.
+    public void advanceShallow(int target) {
+        while (shallowBlock < numBlocks && lastIds[shallowBlock] < target) shallowBlock++;
+    }
+
+    // Highest frequency in the block at the shallow position; 0 past the last block.
+    public int shallowMaxFreq() {
+        return shallowBlock < numBlocks ? maxFreqs[shallowBlock] : 0;
+    }
+
+    // Last docID of the block at the shallow position; END past the last block.
+    public int shallowLastId() {
+        return shallowBlock < numBlocks ? lastIds[shallowBlock] : END;
+    }
+
+    // Number of blocks decoded so far.
+    int blocksDecoded() {
+        return blocksDecoded;
+    }
+
+    private void decodeBlock(int b) {
+        blockLength = blockLengths[b];
+        BlockCache cache = caches == null ? null : caches[b];
+        if (cache == null) {
+            cachedBlock = null;
+            freqPos = codecs[b].decode(lists[b], blockStarts[b], docIds, blockLength);
+        } else {
+            BlockCache.Key key = new BlockCache.Key(cacheIds[b], filePositions[b]);
+            cachedBlock = cache.load(key, () -> {
+                int[] gaps = new int[blockLength];
+                return new BlockCache.Block(gaps, codecs[b].decode(lists[b], blockStarts[b], gaps, blockLength));
+            });
+            System.arraycopy(cachedBlock.gaps, 0, docIds, 0, blockLength);
+            freqPos = cachedBlock.freqPos;
+        }
+        freqsDecoded = false;
+        positionsDecoded = false;
+
+        // Rebuild docIDs from the gaps; the first gap is relative to the last docID of the previous block,
+        // or to the docID base of the block's segment.
+        int previousId = baseIds[b];
+        for (int i = 0; i < blockLength; i++) {
+            previousId += docIds[i];
+            docIds[i] = previousId;
+        }
+        block = b;
+        blocksDecoded++;
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Load generator for QueryServer. Each client has a connection of its own and sends the queries of a file,
+ * one per line, one after the other for a number of seconds, starting at a different line than the others.
+ * It then reports the throughput and the latencies the clients saw, and the server's own statistics.
+ *
+ *	java LoadGenerator localhost:7070 rank queries.txt 16 30
+ *
+ * -Dindex.warmupSeconds=N (default 2) runs the clients for N seconds first without measuring them. */
+public class LoadGenerator {
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: java LoadGenerator <host:port> <rank|and|or|phrase> <queries_file> [clients] [seconds]");
+            System.exit(1);
+        }
+        String[] address = args[0].split(":");
+        String host = address[0];
+        int port = Integer.parseInt(address[1]);
+        String mode = args[1];
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int warmupSeconds = Integer.getInteger("index.warmupSeconds", 2);
+
+        try {
+            List<String> queries = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) queries.add(mode + " " + line.strip());
+            }
+            if (queries.isEmpty()) throw new IOException("No queries in " + args[2]);
+
+            if (warmupSeconds > 0) run(host, port, queries, clients, warmupSeconds);
+            LatencyHistogram latencies = new LatencyHistogram();
+            long errors = run(host, port, queries, clients, seconds, latencies);
+
+            System.out.printf("%d clients, %d s: %.1f QPS, %d errors%n", clients, seconds, latencies.count() / (double) seconds, errors);
+            System.out.println("client: " + latencies.summary());
+            try (Client client = new Client(host, port)) {
+                System.out.print("server: " + client.request("stats"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while generating load: " + e.getMessage());
+        }
+    }
+
+    private static void run(String host, int port, List<String> queries, int clients, int seconds) throws IOException {
+        run(host, port, queries, clients, seconds, new LatencyHistogram());
+    }
+
+    // Runs the clients for the given time, recording the latencies of their requests. Returns the number of error responses.
+    private static long run(String host, int port, List<String> queries, int clients, int seconds, LatencyHistogram latencies)
+            throws IOException {
+        ExecutorService threads = Executors.newFixedThreadPool(clients, task -> {
+            Thread thread = new Thread(task, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        try {
+            List<Future<Void>> done = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int first = (int) ((long) c * queries.size() / clients);
+                done.add(threads.submit(() -> {
+                    try (Client client = new Client(host, port)) {
+                        for (int i = first; System.nanoTime() < deadline; i = (i + 1) % queries.size()) {
+                            long start = System.nanoTime();
+                            String response = client.request(queries.get(i));
+                            latencies.record(System.nanoTime() - start);
+                            if (response.startsWith("error")) errors.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> client : done) {
+                await(client);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating load");
+        } finally {
+            threads.shutdownNow();
+        }
+        return errors.get();
+    }
+
+    // Wait for a background task, rethrowing its failure.
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // A connection to the server.
+    private static class Client implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+        private final StringBuilder response = new StringBuilder();
+
+        Client(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        // Sends a request and reads its response, up to the empty line that ends it.
+        String request(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            response.setLength(0);
+            for (String line = in.readLine(); ; line = in.readLine()) {
+                if (line == null) throw new EOFException("The server closed the connection");
+                if (line.isEmpty()) return response.toString();
+                response.append(line).append('\n');
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
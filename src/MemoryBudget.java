@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Heap budget of an index build. It is set with -Dindex.memoryMB=N, or else derived from the maximum heap
+ * (-Xmx) as -Dindex.memoryFraction of it, 0.5 by default.
+ *
+ * PostingBuilder accounts for the documents parsed but not yet collected, and spills a run buffer once it
+ * reaches half of what they leave of the budget, since the other buffer may still be spilling. The sizes it
+ * counts are estimates, so the budget also watches the heap: once a collection leaves a heap pool above
+ * HEAP_PRESSURE of its maximum, the next check asks for an early spill. Runs then get smaller and the build
+ * slower, instead of running out of memory. After parsing, the merge passes take as many runs at a time as
+ * the memory of their readers, mostly their term dictionaries, allows. */
+public class MemoryBudget {
+
+    private static final double DEFAULT_FRACTION = 0.5;
+
+    // Share of a heap pool still in use after a collection at which runs are spilled early.
+    private static final double HEAP_PRESSURE = 0.85;
+
+    // Documents collected between two looks at the heap.
+    private static final int PRESSURE_CHECK_INTERVAL = 256;
+
+    // Smallest run buffer limit, however little the budget leaves, so that runs do not become tiny.
+    static final long MIN_RUN_BUFFER = 1 << 20;
+
+    // Limits of the merge fan-in: below 2 a pass makes no progress, and every run is an open file.
+    private static final int MIN_FAN_IN = 2;
+    private static final int MAX_FAN_IN = 512;
+
+    private final long bytes;
+    private final String source;
+    private final AtomicLong pending = new AtomicLong();  // Documents parsed but not collected yet
+    private final AtomicLong peakPending = new AtomicLong();
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+    private final long[] exceeded;
+    private int checks;
+
+    public MemoryBudget(long bytes) {
+        this(bytes, "fixed");
+    }
+
+    private MemoryBudget(long bytes, String source) {
+        if (bytes <= 0) throw new IllegalArgumentException("Memory budget must be positive: " + bytes);
+        this.bytes = bytes;
+        this.source = source;
+
+        // The threshold is set on the JVM's pools, which every budget shares.
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * HEAP_PRESSURE));
+                pools.add(pool);
+            }
+        }
+        exceeded = new long[pools.size()];
+        for (int i = 0; i < exceeded.length; i++) {
+            exceeded[i] = pools.get(i).getCollectionUsageThresholdCount();
+        }
+    }
+
+    // The budget set by -Dindex.memoryMB, or -Dindex.memoryFraction (default 0.5) of the maximum heap.
+    public static MemoryBudget fromProperties() {
+        Long megabytes = Long.getLong("index.memoryMB");
+        if (megabytes != null) return new MemoryBudget(megabytes << 20, "index.memoryMB");
+
+        double fraction = Double.parseDouble(System.getProperty("index.memoryFraction", String.valueOf(DEFAULT_FRACTION)));
+        if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException("Memory fraction must be in (0, 1]: " + fraction);
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction), fraction + " of the maximum heap");
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    // Where the budget came from, for the build report.
+    public String source() {
+        return source;
+    }
+
+    // Accounts for memory held outside the run buffers, until it is released.
+    void reserve(long n) {
+        long held = pending.addAndGet(n);
+        peakPending.accumulateAndGet(held, Math::max);
+    }
+
+    void release(long n) {
+        pending.addAndGet(-n);
+    }
+
+    long peakPending() {
+        return peakPending.get();
+    }
+
+    // Size at which a run buffer is spilled: half of what the pending documents leave.
+    long runBufferLimit() {
+        return Math.max(MIN_RUN_BUFFER, (bytes - pending.get()) / 2);
+    }
+
+    /* Whether a collection has left a heap pool above HEAP_PRESSURE since the last time this returned true.
+     * Only looks at the pools every PRESSURE_CHECK_INTERVAL calls; called from one thread. */
+    boolean underPressure() {
+        if (++checks < PRESSURE_CHECK_INTERVAL) return false;
+        checks = 0;
+        boolean pressure = false;
+        for (int i = 0; i < exceeded.length; i++) {
+            long count = pools.get(i).getCollectionUsageThresholdCount();
+            if (count > exceeded[i]) {
+                exceeded[i] = count;
+                pressure = true;
+            }
+        }
+        return pressure;
+    }
+
+    // Number of the runs merged at a time: as many as the memory of their readers allows, but at least
+    // MIN_FAN_IN, and never more than there are runs.
+    int fanIn(List<Path> runs) throws IOException {
+        long largest = 1;
+        for (Path run : runs) {
+            largest = Math.max(largest, RunFile.readerMemory(run.toString()));
+        }
+        long fits = bytes / largest;
+        long fanIn = Math.max(MIN_FAN_IN, Math.min(fits, MAX_FAN_IN));
+        return (int) Math.min(fanIn, runs.size());
+    }
+}
@@ -1,43 +1,153 @@
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
-public class PageTable {
-    private final List<Doc> table;
+/* Document metadata stored column by column, so that any document can be looked up by docID in O(1).
+ * docIDs are dense and start at 1.
 
-    public PageTable() {
-        this.table = new ArrayList<>();
+		   Page table layout:
+		   ┌──────────────────┬─────────────────────┬───────────────────────────┬────────────┐
+		   │ header: magic,   │ size column:        │ URL offset column:        │ URL heap   │
+		   │ numDocs          │ int per document    │ long per document, + end  │ (UTF-8)    │
+		   └──────────────────┴─────────────────────┴───────────────────────────┴────────────┘
+
+ * While documents are added the columns are streamed to temporary files, which are concatenated
+ * into the page table when it is closed. */
+public class PageTable implements Closeable {
+
+    private static final int MAGIC = 0x50475431; // "PGT1"
+    private static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String output;
+    private final DataOutputStream sizes;
+    private final DataOutputStream offsets;
+    private final Util.CountingOutputStream urls;
+    private int numDocs;
+
+    public PageTable(String output) throws IOException {
+        this.output = output;
+        this.sizes = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output + ".sizes"), BUFFER_SIZE));
+        this.offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output + ".offsets"), BUFFER_SIZE));
+        this.urls = new Util.CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output + ".urls"), BUFFER_SIZE));
     }
 
-    public void addDoc(int docID, String link, long size) {
-        Doc e = new Doc(docID, link, size);
-        table.add(e);
+    // Documents must be added in docID order, starting from 1.
+    public void addDoc(int docID, String link, long size) throws IOException {
+        if (docID != numDocs + 1) throw new IllegalArgumentException("Expected docID " + (numDocs + 1) + " but got " + docID);
+
+        sizes.writeInt((int) Math.min(size, Integer.MAX_VALUE));
+        offsets.writeLong(urls.count());
+        urls.write(link.getBytes(StandardCharsets.UTF_8));
+        numDocs++;
     }
 
-    public void write() {
-        String output = "pageTable";
+    // Concatenate the columns into the page table.
+    @Override
+    public void close() throws IOException {
+        offsets.writeLong(urls.count()); // End of the last URL
+        sizes.close();
+        offsets.close();
+        urls.close();
+
+        String[] columns = {output + ".sizes", output + ".offsets", output + ".urls"};
+        try (FileChannel out = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(0).putLong(numDocs).flip();
+            while (header.hasRemaining()) out.write(header);
 
-        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)))) {
-            for (Doc entry : table) {
-                dos.writeInt(entry.docId);
-                dos.writeUTF(entry.url);
-                dos.writeLong(entry.size);
-                dos.flush(); // Ensure that the data is written to the output stream
+            for (String column : columns) {
+                try (FileChannel in = FileChannel.open(Paths.get(column), StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                Files.delete(Paths.get(column));
             }
-        } catch (IOException e) {
-            System.out.println("Failed to Open " + output);
-            e.printStackTrace();
         }
     }
 
-    private static class Doc {
-        private final int docId;
-        private final String url;
-        private final long size;
+    // Reads the size of every document in a page table, indexed by docID.
+    public static int[] readDocLengths(String file) throws IOException {
+        try (Reader reader = open(file)) {
+            return reader.docLengths();
+        }
+    }
+
+    public static Reader open(String file) throws IOException {
+        return new Reader(file);
+    }
+
+    // Memory-mapped view of a page table.
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer columns;
+        private final ByteBuffer heap;
+        private final long heapStart;
+        private final int numDocs;
+
+        private Reader(String file) throws IOException {
+            channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC) throw new IOException("Not a page table: " + file);
+                numDocs = (int) header.getLong(8);
+
+                long columnsSize = 4L * numDocs + 8L * (numDocs + 1);
+                columns = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, columnsSize);
+                heapStart = HEADER_SIZE + columnsSize;
+                long heapSize = channel.size() - heapStart;
+                // A heap over 2 GB cannot be mapped at once, so URLs are then read from the channel.
+                heap = heapSize <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, heapStart, heapSize) : null;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int numDocs() {
+            return numDocs;
+        }
+
+        // Size of a document, in characters.
+        public int docLength(int docId) {
+            return columns.getInt(4 * (docId - 1));
+        }
+
+        public String url(int docId) throws IOException {
+            long start = urlOffset(docId);
+            int length = (int) (urlOffset(docId + 1) - start);
+            byte[] bytes = new byte[length];
+            if (heap != null) {
+                heap.get((int) start, bytes);
+            } else {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, heapStart + start + buf.position()) < 0) throw new EOFException();
+                }
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // The size column as an array indexed by docID; index 0 is unused.
+        public int[] docLengths() {
+            int[] lengths = new int[numDocs + 1];
+            columns.asIntBuffer().get(lengths, 1, numDocs);
+            return lengths;
+        }
+
+        private long urlOffset(int docId) {
+            return columns.getLong(4 * numDocs + 8 * (docId - 1));
+        }
 
-        private Doc(int docId, String url, long size) {
-            this.docId = docId;
-            this.url = url;
-            this.size = size;
+        @Override
+        public void close() throws IOException {
+            channel.close();
         }
     }
 }
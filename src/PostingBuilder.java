@@ -1,156 +1,676 @@
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
-import java.util.regex.*;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PostingBuilder {
 
-    // Matches words, standalone numbers, percentages, and money amounts
-    private static final Pattern TERM_PATTERN = Pattern.compile("\\w+|%\\d+|\\$\\d+");
+    // Per-thread tokenizer and term counter, reused across documents
+    private static final ThreadLocal<Tokenizer> TOKENIZERS = ThreadLocal.withInitial(Tokenizer::new);
+    private static final ThreadLocal<TermCounter> COUNTERS = ThreadLocal.withInitial(TermCounter::new);
     private static final String TEXT_START = "<TEXT>";
     private static final String TEXT_END = "</TEXT>";
 
+    // Number of documents handed to a worker at a time in parallel mode
+    private static final int BATCH_SIZE = 64;
+
+    // File to store the page table.
+    static final String PAGE_TABLE_FILE = "pageTable";
+
     private final String filePath;
-    private final int bufferSize;
-    private final ByteArrayOutputStream buffer;
+    private final MemoryBudget budget;  // Shared by the two run buffers and the documents in flight
+    private final int numThreads;
+    private final BuildMetrics metrics;
+    private final Path dir;  // Directory for the runs and the page table
+    private final boolean positions;  // Whether postings carry the positions of their term in the document
+    private final Splitter splitter;  // Deals out the documents when this builds one shard of the input, else null
+    private final int shard;
     private int fileNum;
 
+    /* Runs are double-buffered: a full buffer is sorted and spilled by the spiller thread while documents go
+     * into the other one, so parsing does not stop for the disk. Collection only waits when the other buffer
+     * fills up before the spill is done. A buffer is full at half of what the documents parsed but not yet
+     * collected leave of the memory budget, or earlier when the budget reports heap pressure.
+
+		   collector:  │ fill A │ fill B      │ wait │ fill A │ ...
+		   spiller:             │ spill A │          │ spill B      │
+    */
+    private RunBuffer buffer;
+    private RunBuffer spare;
+    private ExecutorService spiller;
+    private Future<?> spill;  // The spill in progress, if any
+
     public PostingBuilder(String inputFile, int size) {
+        this(inputFile, size, 1);
+    }
+
+    // With more than one thread, documents are tokenized by a pool of workers while the input is being read
+    public PostingBuilder(String inputFile, int size, int numThreads) {
+        this(inputFile, size, numThreads, new BuildMetrics(), Paths.get(""));
+    }
+
+    public PostingBuilder(String inputFile, int size, int numThreads, BuildMetrics metrics, Path dir) {
+        this(inputFile, size, numThreads, metrics, dir, false);
+    }
+
+    // size is the memory for postings, which the two run buffers share.
+    public PostingBuilder(String inputFile, int size, int numThreads, BuildMetrics metrics, Path dir, boolean positions) {
+        this(inputFile, new MemoryBudget(size), numThreads, metrics, dir, positions);
+    }
+
+    public PostingBuilder(String inputFile, MemoryBudget budget, int numThreads, BuildMetrics metrics, Path dir, boolean positions) {
+        this(inputFile, budget, numThreads, metrics, dir, positions, null, 0);
+    }
+
+    private PostingBuilder(String inputFile, MemoryBudget budget, int numThreads, BuildMetrics metrics, Path dir, boolean positions,
+                           Splitter splitter, int shard) {
         this.filePath = inputFile;
-        this.bufferSize = size;
-        // Automatically allocates address when full
-        this.buffer = new ByteArrayOutputStream(bufferSize);
+        this.budget = budget;
+        this.numThreads = numThreads;
+        this.metrics = metrics;
+        this.dir = dir;
+        this.positions = positions;
+        this.splitter = splitter;
+        this.shard = shard;
+        this.buffer = new RunBuffer(positions);
+        this.spare = new RunBuffer(positions);
         this.fileNum = 0;
     }
 
     public int build() {
-        try (BufferedReader reader = getBufferedReader(filePath);
-             ByteArrayOutputStream buffer = new ByteArrayOutputStream(bufferSize)) {
-
-            List<Posting> postings = new ArrayList<>();  // List to store postings for the current document
-            PageTable table = new PageTable();  // Page table to store document metadata (docID, URL)
-            String currentDocUrl = "";  // URL of the current document
-            int docID = 0;  // Document ID counter
-            long docSize = 0;  // Size of the current document
-            boolean insideDoc = false;  // Flag to track whether we are inside a document
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (TEXT_START.equals(line)) {
-                    if (!insideDoc) {
-                        insideDoc = true;
-                        docID++;
-                    }
-                } else if (TEXT_END.equals(line)) {
-                    if (insideDoc) {
-                        insideDoc = false;
-                        table.addDoc(docID, currentDocUrl, docSize);  // Add an entry to the page table for the current document
-                        docSize = 0;  // Reset document size for the next document
-                        currentDocUrl = "";  // Reset URL for the next document
-
-                        if (!postings.isEmpty()) {
-                            processDocument(postings, docID);
-                            postings.clear();
-                        }
-                    }
-                } else if (insideDoc) {
-                    docSize += line.length();
-                    if (currentDocUrl.isEmpty()) {
-                        currentDocUrl = line;  // Assume the first line inside a document is its URL
-                    } else {
-                        tokenizeAndAddPostings(line, docID, postings);  // Tokenize the line and add postings to the list
-                    }
-                }
+        metrics.memoryBudget(budget);
+        spiller = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "run-spiller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A shard's documents come from the splitter, which reads the input
+        try (BufferedReader reader = splitter == null ? getBufferedReader(filePath) : null;
+             PageTable table = new PageTable(dir.resolve(PAGE_TABLE_FILE).toString())) {  // Page table to store document metadata (docID, URL, size)
+
+            if (numThreads > 1) {
+                buildParallel(reader, table);
+            } else {
+                read(reader, doc -> {
+                    processDocument(doc);
+                    collectDocument(doc, table);
+                });
             }
 
             if (buffer.size() != 0) flush(); // Flush the buffer if it's not empty
-
-            table.write(); // Write the page table to disk in binary
+            awaitSpill();
 
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("An error occurred while building postings: " + e.getMessage());
+        } finally {
+            spiller.shutdownNow();
         }
+        metrics.pageTableWritten(dir.resolve(PAGE_TABLE_FILE).toFile().length());
         return fileNum;
     }
 
+    // Hand the documents of the input, or of this builder's shard of it, to the sink, accounting for their memory.
+    private void read(BufferedReader reader, DocumentSink sink) throws IOException {
+        DocumentSink reserving = doc -> {
+            budget.reserve(doc.memory);  // Released once the document is collected
+            sink.accept(doc);
+        };
+        if (splitter == null) readDocuments(reader, reserving);
+        else splitter.take(shard, reserving);
+    }
 
-    // Handles gzip files
-    private BufferedReader getBufferedReader(String filePath) throws IOException {
-        if (filePath.endsWith(".gz")) {
-            return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filePath)), StandardCharsets.UTF_8));
-        } else {
-            return new BufferedReader(new FileReader(filePath));
+    // Split the input into documents. docIDs follow input order, so they do not depend on the number of threads.
+    private static void readDocuments(BufferedReader reader, DocumentSink sink) throws IOException {
+        Document doc = null;  // Current document, null while outside a document
+        int docID = 0;  // Document ID counter
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (TEXT_START.equals(line)) {
+                if (doc == null) {
+                    doc = new Document(++docID);
+                }
+            } else if (TEXT_END.equals(line)) {
+                if (doc != null) {
+                    sink.accept(doc);
+                    doc = null;
+                }
+            } else if (doc != null) {
+                doc.size += line.length();
+                doc.memory += Document.LINE_OVERHEAD_BYTES + 2L * line.length();
+                if (doc.url.isEmpty()) {
+                    doc.url = line;  // Assume the first line inside a document is its URL
+                } else {
+                    doc.lines.add(line);
+                }
+            }
+        }
+    }
+
+    /* One thread reads documents and submits them in batches to the workers, which tokenize them.
+     * The calling thread collects the batches in submission order, so runs and the page table are
+     * filled exactly as in single-threaded mode. */
+    private void buildParallel(BufferedReader reader, PageTable table) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        // Batches in input order, bounded so that the reader cannot run too far ahead. An empty batch marks the end.
+        BlockingQueue<Future<List<Document>>> batches = new ArrayBlockingQueue<>(numThreads * 4);
+
+        try {
+            Future<?> reading = producer.submit(() -> {
+                BatchSubmitter submitter = new BatchSubmitter(workers, batches);
+                try {
+                    read(reader, submitter);
+                    submitter.submit();
+                } finally {
+                    batches.put(CompletableFuture.completedFuture(Collections.emptyList()));
+                }
+                return null;
+            });
+
+            List<Document> batch;
+            while (!(batch = await(batches.take())).isEmpty()) {
+                for (Document doc : batch) {
+                    collectDocument(doc, table);
+                }
+            }
+            await(reading);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building postings");
+        } finally {
+            producer.shutdownNow();
+            workers.shutdownNow();
         }
     }
 
-    private List<Posting> mergePostings(List<Posting> postings) {
-        Map<String, Posting> merged = new LinkedHashMap<>();
-        for (Posting p : postings) {
-            merged.compute(p.term, (k, v) -> (v == null) ? p : new Posting(p.term, p.docID, v.frequency + p.frequency));
+    // Groups documents into batches and hands them to the workers.
+    private class BatchSubmitter implements DocumentSink {
+        private final ExecutorService workers;
+        private final BlockingQueue<Future<List<Document>>> batches;
+        private List<Document> batch = new ArrayList<>(BATCH_SIZE);
+
+        private BatchSubmitter(ExecutorService workers, BlockingQueue<Future<List<Document>>> batches) {
+            this.workers = workers;
+            this.batches = batches;
+        }
+
+        @Override
+        public void accept(Document doc) throws IOException {
+            batch.add(doc);
+            if (batch.size() == BATCH_SIZE) submit();
+        }
+
+        // Submit the pending documents, if any.
+        void submit() throws IOException {
+            if (batch.isEmpty()) return;
+            List<Document> docs = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                batches.put(workers.submit(() -> {
+                    for (Document doc : docs) {
+                        processDocument(doc);
+                    }
+                    return docs;
+                }));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading documents");
+            }
         }
-        return new ArrayList<>(merged.values());
     }
 
-    private void tokenizeAndAddPostings(String line, int docId, List<Posting> postings) {
-        Matcher matcher = TERM_PATTERN.matcher(line);
-        while (matcher.find()) {
-            String word = matcher.group().toLowerCase();
-            postings.add(new Posting(word, docId, 1));
+    // Wait for a background task, rethrowing its failure.
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
         }
     }
 
-    private void processDocument(List<Posting> postings, int docId) throws IOException {
-        if (postings.isEmpty()) return;
+    // Handles gzip files, read ahead and, for multi-member files, inflated in parallel; see TrecInput.
+    // Bytes are counted as read from the file, before decompression.
+    private BufferedReader getBufferedReader(String filePath) throws IOException {
+        return TrecInput.open(filePath, metrics.inputBytes);
+    }
 
-        // Sort postings by term
-        postings.sort(Comparator.comparing(p -> p.term));
+    // Tokenize a document into its distinct terms, their frequencies and, if kept, their positions. Safe to call from worker threads.
+    private void processDocument(Document doc) {
+        Tokenizer tokenizer = TOKENIZERS.get();
+        TermCounter counter = COUNTERS.get();  // Counts the terms of the document
+        counter.positional = positions;
+        for (String line : doc.lines) {
+            tokenizer.tokenize(line, counter);  // Tokenize the line and count its terms
+        }
+        doc.lines = null;
+        counter.drain(doc);
+    }
 
-        // Merge postings with the same term
-        List<Posting> mergedPostings = mergePostings(postings);
+    // Add a processed document to the page table and its postings to the buffer, in docID order.
+    private void collectDocument(Document doc, PageTable table) throws IOException {
+        table.addDoc(doc.docID, doc.url, doc.size);  // Add an entry to the page table for the current document
 
-        // Build and write posting strings to buffer
-        for (Posting p : mergedPostings) {
-            String postingString = p.term + ' ' + docId + ' ' + p.frequency + '\n';
-            byte[] postingBytes = postingString.getBytes(StandardCharsets.UTF_8);
+        // Add postings to the buffer
+        long tokens = 0;
+        for (int i = 0; i < doc.numTerms; i++) {
+            buffer.add(doc.terms[i], doc.docID, doc.freqs[i], doc.positions == null ? null : doc.positions[i]);
+            tokens += doc.freqs[i];
+        }
 
-            // If adding the current posting would overflow the buffer, flush the buffer first
-            if (buffer.size() + postingBytes.length > bufferSize) {
-                flush();
-            }
+        metrics.documents.incrementAndGet();
+        metrics.textChars.addAndGet(doc.size);
+        metrics.tokens.addAndGet(tokens);
+        metrics.postings.addAndGet(doc.numTerms);
+        budget.release(doc.memory);
 
-            // Write the current posting to the buffer
-            buffer.write(postingBytes);
+        // Spill the buffer once it has reached its share of the budget, or early if the heap is filling up anyway
+        if (buffer.size() >= budget.runBufferLimit()) {
+            flush();
+        } else if (budget.underPressure() && buffer.size() >= MemoryBudget.MIN_RUN_BUFFER) {
+            metrics.pressureSpill();
+            flush();
         }
     }
 
 
-    // Write out any buffered content to an underlying stream
-    // Ensures that all data that has been buffered is actually written out and not left in the buffer.
+    // Hand the buffered postings to the spiller, to be written out as a sorted run, and go on with the spare buffer.
     private void flush() throws IOException {
         if (buffer.size() > 0) {
+            awaitSpill();  // The spare buffer is free once the previous spill is done
             fileNum++; // start a new file
-            System.out.println("======== Flushed to file " + fileNum + " ========");
+            RunBuffer full = buffer;
+            File file = dir.resolve(Util.Merge.runFileName(fileNum)).toFile();
+            int run = fileNum;
+            spill = spiller.submit(() -> {
+                long start = System.nanoTime();
+                try (RunFile.Writer out = RunFile.openWriter(file.getPath())) {
+                    full.writeSorted(out);
+                }
+                metrics.runSpilled(file.length(), System.nanoTime() - start);
+                System.out.println("======== Flushed to file " + run + " ========");
+
+                // Clear the buffer
+                full.reset();
+                return null;
+            });
+            buffer = spare;
+            spare = full;
+        }
+    }
+
+    // Wait for the spill in progress, if any, rethrowing its failure.
+    private void awaitSpill() throws IOException {
+        if (spill == null) return;
+        long start = System.nanoTime();
+        try {
+            await(spill);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while spilling a run");
+        } finally {
+            spill = null;
+        }
+        metrics.spillWaited(System.nanoTime() - start);
+    }
+
+    /* Single-pass in-memory inversion (SPIMI) of the current run. Terms are mapped to termIDs by an
+     * open-addressing dictionary, and each termID owns a growable int array of (docID, frequency) pairs,
+     * each followed by its positions in a positional build. Documents arrive in docID order, so every list
+     * is already sorted; only the distinct terms are sorted when the run is spilled. */
+    private static class RunBuffer {
+        // Rough heap cost of a term besides its characters and posting list: String, array headers and table slots.
+        private static final int TERM_OVERHEAD_BYTES = 96;
+        private static final int INITIAL_LIST_CAPACITY = 4;
+
+        // Dictionary slots: term and termID, -1 when the slot is free.
+        private String[] slotTerms = new String[1 << 12];
+        private int[] slotIds = newSlots(1 << 12);
+
+        // Per termID: the term and its interleaved (docID, frequency) list.
+        private String[] terms = new String[1 << 11];
+        private int[][] lists = new int[1 << 11][];
+        private int[] listSizes = new int[1 << 11];
+        private int numTerms;
+        private long bytes;
+
+        private final boolean positional;
+        private int[] positions = new int[16];  // Positions of the posting being written
+
+        RunBuffer(boolean positional) {
+            this.positional = positional;
+        }
+
+        // Estimated number of bytes held by the buffer.
+        long size() {
+            return bytes;
+        }
+
+        // Positions are the first freq entries of the array, or null when the build keeps none.
+        void add(String term, int docId, int freq, int[] positions) {
+            int termId = termId(term);
+            int[] list = lists[termId];
+            int size = listSizes[termId];
+            int length = positions == null ? 2 : 2 + freq;
+            if (size + length > list.length) {
+                int capacity = Math.max(list.length * 2, size + length);
+                bytes += (long) (capacity - list.length) * Integer.BYTES;
+                lists[termId] = list = Arrays.copyOf(list, capacity);
+            }
+            list[size] = docId;
+            list[size + 1] = freq;
+            if (positions != null) System.arraycopy(positions, 0, list, size + 2, freq);
+            listSizes[termId] = size + length;
+        }
+
+        // Look up the termID of a term, adding it to the dictionary if needed.
+        private int termId(String term) {
+            int mask = slotIds.length - 1;
+            int slot = spread(term.hashCode()) & mask;
+            int id;
+            while ((id = slotIds[slot]) >= 0) {
+                if (slotTerms[slot].equals(term)) return id;
+                slot = (slot + 1) & mask;
+            }
+
+            id = numTerms++;
+            slotTerms[slot] = term;
+            slotIds[slot] = id;
+            if (id == terms.length) {
+                terms = Arrays.copyOf(terms, id * 2);
+                lists = Arrays.copyOf(lists, id * 2);
+                listSizes = Arrays.copyOf(listSizes, id * 2);
+            }
+            terms[id] = term;
+            lists[id] = new int[2 * INITIAL_LIST_CAPACITY];
+            bytes += TERM_OVERHEAD_BYTES + 2L * term.length() + 2L * INITIAL_LIST_CAPACITY * Integer.BYTES;
+            if (numTerms * 2 > slotIds.length) rehash();
+            return id;
+        }
+
+        private void rehash() {
+            String[] oldTerms = slotTerms;
+            int[] oldIds = slotIds;
+            slotTerms = new String[oldTerms.length * 2];
+            slotIds = newSlots(slotTerms.length);
+
+            int mask = slotIds.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] < 0) continue;
+                int slot = spread(oldTerms[i].hashCode()) & mask;
+                while (slotIds[slot] >= 0) slot = (slot + 1) & mask;
+                slotTerms[slot] = oldTerms[i];
+                slotIds[slot] = oldIds[i];
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static int[] newSlots(int n) {
+            int[] slots = new int[n];
+            Arrays.fill(slots, -1);
+            return slots;
+        }
+
+        // Write the postings ordered by term, then by docID.
+        void writeSorted(RunFile.Writer out) throws IOException {
+            Integer[] order = new Integer[numTerms];
+            for (int i = 0; i < numTerms; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparing(id -> terms[id]));
+
+            for (int id : order) {
+                String term = terms[id];
+                int[] list = lists[id];
+                for (int i = 0; i < listSizes[id]; ) {
+                    int freq = list[i + 1];
+                    if (positional) {
+                        if (freq > positions.length) positions = new int[Math.max(freq, positions.length * 2)];
+                        System.arraycopy(list, i + 2, positions, 0, freq);
+                        out.write(term, list[i], freq, positions);
+                        i += 2 + freq;
+                    } else {
+                        out.write(term, list[i], freq);
+                        i += 2;
+                    }
+                }
+            }
+        }
+
+        void reset() {
+            Arrays.fill(slotTerms, null);
+            Arrays.fill(slotIds, -1);
+            Arrays.fill(terms, 0, numTerms, null);
+            Arrays.fill(lists, 0, numTerms, null);
+            Arrays.fill(listSizes, 0, numTerms, 0);
+            numTerms = 0;
+            bytes = 0;
+        }
+    }
+
+    /* Reads an input once for the builders of its shards. Documents are dealt out round-robin: the i-th goes
+     * to shard (i - 1) % numShards as its document (i - 1) / numShards + 1, so a shard's docIDs map back to
+     * input order without a table. Every shard gets batches through a bounded queue of its own, and the reader
+     * waits for the slowest shard once its queue is full. Run call on a thread of its own, and build the
+     * shards on others. */
+    static class Splitter implements Callable<Void> {
+        private static final int QUEUE_BATCHES = 4;
+        private static final List<Document> END = Collections.emptyList();  // Compared by identity
+
+        private final String filePath;
+        private final AtomicLong bytesRead;
+        private final List<BlockingQueue<List<Document>>> queues = new ArrayList<>();
+        private volatile Throwable failure;  // Set before the END markers are queued
+
+        Splitter(String inputFile, int numShards, AtomicLong bytesRead) {
+            if (numShards < 1) throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+            this.filePath = inputFile;
+            this.bytesRead = bytesRead;
+            for (int i = 0; i < numShards; i++) {
+                queues.add(new ArrayBlockingQueue<>(QUEUE_BATCHES));
+            }
+        }
+
+        // The builder of one shard, writing its runs and page table into dir.
+        PostingBuilder shard(int shard, MemoryBudget budget, int numThreads, BuildMetrics metrics, Path dir, boolean positions) {
+            return new PostingBuilder(filePath, budget, numThreads, metrics, dir, positions, this, shard);
+        }
+
+        @Override
+        public Void call() throws IOException {
+            int numShards = queues.size();
+            List<List<Document>> batches = new ArrayList<>();
+            for (int i = 0; i < numShards; i++) batches.add(new ArrayList<>(BATCH_SIZE));
+
+            try (BufferedReader reader = TrecInput.open(filePath, bytesRead)) {
+                readDocuments(reader, doc -> {
+                    int shard = (doc.docID - 1) % numShards;
+                    List<Document> batch = batches.get(shard);
+                    batch.add(new Document((doc.docID - 1) / numShards + 1, doc));
+                    if (batch.size() == BATCH_SIZE) {
+                        put(shard, batch);
+                        batches.set(shard, new ArrayList<>(BATCH_SIZE));
+                    }
+                });
+                for (int i = 0; i < numShards; i++) {
+                    if (!batches.get(i).isEmpty()) put(i, batches.get(i));
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                failure = e;
+                throw e;
+            } finally {
+                for (int i = 0; i < numShards && !Thread.currentThread().isInterrupted(); i++) {
+                    try {
+                        queues.get(i).put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();  // The build is being cancelled
+                    }
+                }
+            }
+            return null;
+        }
 
-            try (BufferedWriter out = new BufferedWriter(new FileWriter("Postings" + fileNum))) {
-                out.write(buffer.toString(StandardCharsets.UTF_8));
+        private void put(int shard, List<Document> batch) throws IOException {
+            try {
+                queues.get(shard).put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while splitting the input");
             }
+        }
 
-            // Clear the buffer
-            buffer.reset();
+        // Hand the documents of a shard to the sink, in docID order, until the input is read.
+        private void take(int shard, DocumentSink sink) throws IOException {
+            try {
+                List<Document> batch;
+                while ((batch = queues.get(shard).take()) != END) {
+                    for (Document doc : batch) sink.accept(doc);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for documents");
+            }
+            if (failure != null) throw new IOException("Could not read the input: " + failure.getMessage(), failure);
         }
     }
 
-    static class Posting {
-        String term;
-        int docID;
-        int frequency;
+    private interface DocumentSink {
+        void accept(Document doc) throws IOException;
+    }
+
+    // A document read from the input. Its text lines are replaced by its distinct terms once it has been processed.
+    private static class Document {
+        // Rough heap cost of a line besides its characters: the String, its array and the list slot.
+        private static final int LINE_OVERHEAD_BYTES = 64;
+
+        final int docID;
+        String url = "";
+        long size;
+        long memory;  // Estimated heap held until the document is collected, counted against the budget
+        List<String> lines = new ArrayList<>();
+        String[] terms;
+        int[] freqs;
+        int[][] positions;  // Positions of each term, in its first freq entries; null unless positions are kept
+        int numTerms;
 
-        public Posting(String term, int docID, int frequency) {
-            this.term = term;
+        private Document(int docID) {
             this.docID = docID;
-            this.frequency = frequency;
+        }
+
+        // The same unprocessed document under another docID.
+        private Document(int docID, Document doc) {
+            this.docID = docID;
+            this.url = doc.url;
+            this.size = doc.size;
+            this.lines = doc.lines;
+            this.memory = doc.memory;
+        }
+    }
+
+    /* Counts the terms of one document, and records where they occur if positional is set. The position of
+     * a token is the number of tokens before it in the document. Tokens are looked up by their characters in
+     * an open-addressing table, so a String is only created for the first occurrence of each distinct term. */
+    private static class TermCounter implements Tokenizer.TokenSink {
+        private String[] terms = new String[256];
+        private int[] hashes = new int[256];
+        private int[] counts = new int[256];
+        private int[][] positions = new int[256][];
+        private int[] used = new int[128];  // Occupied slots, in insertion order
+        private int size;
+        private int position;
+        boolean positional;
+
+        @Override
+        public void accept(char[] buf, int start, int length) {
+            int hash = 0;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + buf[i];
+            }
+
+            int mask = terms.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (terms[slot] != null) {
+                if (hashes[slot] == hash && matches(terms[slot], buf, start, length)) {
+                    if (positional) addPosition(slot, counts[slot]);
+                    counts[slot]++;
+                    position++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            terms[slot] = new String(buf, start, length);
+            hashes[slot] = hash;
+            counts[slot] = 1;
+            if (positional) {
+                positions[slot] = new int[4];
+                positions[slot][0] = position;
+            }
+            position++;
+            if (size == used.length) used = Arrays.copyOf(used, size * 2);
+            used[size++] = slot;
+            if (size * 2 > terms.length) rehash();
+        }
+
+        private void addPosition(int slot, int count) {
+            if (count == positions[slot].length) positions[slot] = Arrays.copyOf(positions[slot], count * 2);
+            positions[slot][count] = position;
+        }
+
+        // Hand the counted terms, their frequencies and positions to the document, and clear the counter.
+        void drain(Document doc) {
+            doc.terms = new String[size];
+            doc.freqs = new int[size];
+            doc.positions = positional ? new int[size][] : null;
+            doc.numTerms = size;
+            for (int i = 0; i < size; i++) {
+                int slot = used[i];
+                doc.terms[i] = terms[slot];
+                doc.freqs[i] = counts[slot];
+                if (positional) doc.positions[i] = positions[slot];
+                terms[slot] = null;
+                positions[slot] = null;
+            }
+            size = 0;
+            position = 0;
+        }
+
+        private static boolean matches(String term, char[] buf, int start, int length) {
+            if (term.length() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (term.charAt(i) != buf[start + i]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            String[] oldTerms = terms;
+            int[] oldHashes = hashes;
+            int[] oldCounts = counts;
+            int[][] oldPositions = positions;
+            terms = new String[oldTerms.length * 2];
+            hashes = new int[terms.length];
+            counts = new int[terms.length];
+            positions = new int[terms.length][];
+
+            int mask = terms.length - 1;
+            for (int i = 0; i < size; i++) {
+                int old = used[i];
+                int slot = (oldHashes[old] ^ (oldHashes[old] >>> 16)) & mask;
+                while (terms[slot] != null) slot = (slot + 1) & mask;
+                terms[slot] = oldTerms[old];
+                hashes[slot] = oldHashes[old];
+                counts[slot] = oldCounts[old];
+                positions[slot] = oldPositions[old];
+                used[i] = slot;
+            }
         }
     }
 }
@@ -0,0 +1,348 @@
+import java.nio.ByteBuffer;
+
+/* Compression of the docID gaps and frequencies of an inverted list block. Every call to encode is
+ * self-contained and byte-aligned, so a block's frequencies can be decoded without its docIDs.
+ * Values must not be negative. The codec of an index is recorded in its header by id.
+
+		   Codec        id   Layout of n values
+		   ┌────────────┬────┬─────────────────────────────────────────────────────────────────┐
+		   │ VarByte    │ 0  │ 7 bits per byte, last byte of a number flagged                  │
+		   │ BitPacking │ 1  │ bit width b, then n values of b bits packed in 32-bit words     │
+		   │ PForDelta  │ 2  │ b, exception count, n low parts of b bits, then the position    │
+		   │            │    │ gap and high bits of each exception (VarByte)                   │
+		   │ Simple8b   │ 3  │ 64-bit words: 4-bit selector, then as many values as fit in 60  │
+		   └────────────┴────┴─────────────────────────────────────────────────────────────────┘
+*/
+public interface PostingCodec {
+
+    // Identifier stored in the index header.
+    int id();
+
+    // Name used to select the codec, e.g. with -Dindex.codec=pfor
+    String name();
+
+    // Encode values[off, off + n), returning the number of bytes written
+    int encode(int[] values, int off, int n, Util.ByteBuilder out);
+
+    // Decode n values starting at pos into out, returning the position after the last byte read
+    int decode(ByteBuffer in, int pos, int[] out, int n);
+
+    PostingCodec VARBYTE = new VarByte();
+    PostingCodec BIT_PACKING = new BitPacking();
+    PostingCodec PFOR_DELTA = new PForDelta();
+    PostingCodec SIMPLE_8B = new Simple8b();
+
+    PostingCodec[] ALL = {VARBYTE, BIT_PACKING, PFOR_DELTA, SIMPLE_8B};
+
+    static PostingCodec forId(int id) {
+        for (PostingCodec codec : ALL) {
+            if (codec.id() == id) return codec;
+        }
+        throw new IllegalArgumentException("Unknown posting codec id: " + id);
+    }
+
+    static PostingCodec forName(String name) {
+        for (PostingCodec codec : ALL) {
+            if (codec.name().equalsIgnoreCase(name)) return codec;
+        }
+        throw new IllegalArgumentException("Unknown posting codec: " + name);
+    }
+
+    // The codec used so far: Util.VarByte.
+    final class VarByte implements PostingCodec {
+        private VarByte() {
+        }
+
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "varbyte";
+        }
+
+        @Override
+        public int encode(int[] values, int off, int n, Util.ByteBuilder out) {
+            return Util.VarByte.encode(values, off, n, out);
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int n) {
+            return Util.VarByte.decode(in, pos, out, n);
+        }
+    }
+
+    // Every value of the block takes the bit width of the largest one.
+    final class BitPacking implements PostingCodec {
+        private BitPacking() {
+        }
+
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "bitpacking";
+        }
+
+        @Override
+        public int encode(int[] values, int off, int n, Util.ByteBuilder out) {
+            int start = out.size();
+            int max = 0;
+            for (int i = off; i < off + n; i++) max |= values[i];
+            int bits = bitWidth(max);
+            out.write(bits);
+            pack(values, off, n, bits, out);
+            return out.size() - start;
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int n) {
+            int bits = in.get(pos) & 0xFF;
+            return unpack(in, pos + 1, out, n, bits);
+        }
+
+        // Number of bits needed for value
+        static int bitWidth(int value) {
+            return 32 - Integer.numberOfLeadingZeros(value);
+        }
+
+        // Writes the low bits of each value, least significant bits first, in 32-bit big-endian words
+        static void pack(int[] values, int off, int n, int bits, Util.ByteBuilder out) {
+            long mask = (1L << bits) - 1;
+            long acc = 0;
+            int filled = 0;
+            for (int i = off; i < off + n; i++) {
+                acc |= (values[i] & mask) << filled;
+                filled += bits;
+                if (filled >= 32) {
+                    writeInt((int) acc, out);
+                    acc >>>= 32;
+                    filled -= 32;
+                }
+            }
+            if (filled > 0) writeInt((int) acc, out);
+        }
+
+        // Reads n values of the given width written by pack, returning the position after the last word
+        static int unpack(ByteBuffer in, int pos, int[] out, int n, int bits) {
+            long mask = (1L << bits) - 1;
+            long acc = 0;
+            int available = 0;
+            for (int i = 0; i < n; i++) {
+                if (available < bits) {
+                    acc |= (in.getInt(pos) & 0xFFFFFFFFL) << available;
+                    pos += 4;
+                    available += 32;
+                }
+                out[i] = (int) (acc & mask);
+                acc >>>= bits;
+                available -= bits;
+            }
+            return pos;
+        }
+
+        // Number of bytes pack writes
+        static int packedSize(int n, int bits) {
+            return 4 * (int) (((long) n * bits + 31) / 32);
+        }
+
+        private static void writeInt(int word, Util.ByteBuilder out) {
+            out.write(word >>> 24);
+            out.write(word >>> 16);
+            out.write(word >>> 8);
+            out.write(word);
+        }
+    }
+
+    /* Bit-packing with a width chosen for the bulk of the block rather than its largest value. Values that do
+     * not fit are exceptions: their low bits are packed like the others and their high bits are patched in
+     * after unpacking, so the unpacking loop stays the same as BitPacking's. */
+    final class PForDelta implements PostingCodec {
+        private PForDelta() {
+        }
+
+        @Override
+        public int id() {
+            return 2;
+        }
+
+        @Override
+        public String name() {
+            return "pfor";
+        }
+
+        @Override
+        public int encode(int[] values, int off, int n, Util.ByteBuilder out) {
+            int start = out.size();
+            int bits = bestWidth(values, off, n);
+
+            int exceptions = 0;
+            for (int i = off; i < off + n; i++) {
+                if (BitPacking.bitWidth(values[i]) > bits) exceptions++;
+            }
+
+            out.write(bits);
+            Util.VarByte.encodeNum(exceptions, out);
+            BitPacking.pack(values, off, n, bits, out);
+
+            // Each exception: its distance from the previous one, then its high bits
+            int previous = 0;
+            for (int i = off; i < off + n; i++) {
+                if (BitPacking.bitWidth(values[i]) > bits) {
+                    Util.VarByte.encodeNum(i - off - previous, out);
+                    Util.VarByte.encodeNum(values[i] >>> bits, out);
+                    previous = i - off;
+                }
+            }
+            return out.size() - start;
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int n) {
+            int bits = in.get(pos++) & 0xFF;
+            int exceptions = 0;
+            int shift = 0;
+            int b;
+            while (((b = in.get(pos++)) & 0x80) == 0) {
+                exceptions |= b << shift;
+                shift += 7;
+            }
+            exceptions |= (b & 0x7F) << shift;
+
+            pos = BitPacking.unpack(in, pos, out, n, bits);
+
+            // Patch the high bits of the exceptions in.
+            int index = 0;
+            for (int i = 0; i < exceptions; i++) {
+                int gap = 0;
+                shift = 0;
+                while (((b = in.get(pos++)) & 0x80) == 0) {
+                    gap |= b << shift;
+                    shift += 7;
+                }
+                index += gap | ((b & 0x7F) << shift);
+
+                int high = 0;
+                shift = 0;
+                while (((b = in.get(pos++)) & 0x80) == 0) {
+                    high |= b << shift;
+                    shift += 7;
+                }
+                out[index] |= (high | ((b & 0x7F) << shift)) << bits;
+            }
+            return pos;
+        }
+
+        // The width that gives the smallest block, counting what each exception costs.
+        private static int bestWidth(int[] values, int off, int n) {
+            int[] counts = new int[33]; // Number of values of each bit width
+            int max = 0;
+            for (int i = off; i < off + n; i++) {
+                int width = BitPacking.bitWidth(values[i]);
+                counts[width]++;
+                max = Math.max(max, width);
+            }
+
+            int best = max;
+            long bestSize = BitPacking.packedSize(n, max);
+            for (int bits = max - 1; bits >= 0; bits--) {
+                // Values wider than bits become exceptions; each costs a one-byte position and its high bits.
+                long exceptionBytes = 0;
+                for (int width = bits + 1; width <= max; width++) {
+                    exceptionBytes += (long) counts[width] * (1 + (width - bits + 6) / 7);
+                }
+                long size = BitPacking.packedSize(n, bits) + exceptionBytes;
+                if (size < bestSize) {
+                    bestSize = size;
+                    best = bits;
+                }
+            }
+            return best;
+        }
+    }
+
+    /* 64-bit words holding a 4-bit selector and as many values as fit in the other 60 bits, all of the
+     * width given by the selector. Selectors 0 and 1 encode runs of 240 and 120 ones, which are common
+     * both as docID gaps of frequent terms and as frequencies. The last word of a block may be partly used. */
+    final class Simple8b implements PostingCodec {
+        private static final int[] COUNT = {240, 120, 60, 30, 20, 15, 12, 10, 8, 7, 6, 5, 4, 3, 2, 1};
+        private static final int[] BITS = {0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 10, 12, 15, 20, 30, 60};
+
+        private Simple8b() {
+        }
+
+        @Override
+        public int id() {
+            return 3;
+        }
+
+        @Override
+        public String name() {
+            return "simple8b";
+        }
+
+        @Override
+        public int encode(int[] values, int off, int n, Util.ByteBuilder out) {
+            int start = out.size();
+            int i = off;
+            int end = off + n;
+            while (i < end) {
+                int selector = selector(values, i, end);
+                int count = Math.min(COUNT[selector], end - i);
+                int bits = BITS[selector];
+                long word = (long) selector << 60;
+                if (bits > 0) {
+                    for (int j = 0; j < count; j++) {
+                        word |= (values[i + j] & 0xFFFFFFFFL) << (j * bits);
+                    }
+                }
+                i += count;
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (word >>> shift));
+                }
+            }
+            return out.size() - start;
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int n) {
+            int i = 0;
+            while (i < n) {
+                long word = in.getLong(pos);
+                pos += 8;
+                int selector = (int) (word >>> 60);
+                int count = Math.min(COUNT[selector], n - i);
+                int bits = BITS[selector];
+                if (bits == 0) {
+                    for (int end = i + count; i < end; i++) out[i] = 1;
+                } else {
+                    long mask = (1L << bits) - 1;
+                    for (int end = i + count; i < end; i++) {
+                        out[i] = (int) (word & mask);
+                        word >>>= bits;
+                    }
+                }
+            }
+            return pos;
+        }
+
+        // The selector that packs the most of values[i, end) into one word.
+        private static int selector(int[] values, int i, int end) {
+            for (int selector = 0; selector < COUNT.length; selector++) {
+                int count = Math.min(COUNT[selector], end - i);
+                int bits = BITS[selector];
+                boolean fits = true;
+                for (int j = i; j < i + count && fits; j++) {
+                    fits = bits == 0 ? values[j] == 1 : BitPacking.bitWidth(values[j]) <= bits;
+                }
+                if (fits) return selector;
+            }
+            throw new IllegalStateException("Unreachable: every int fits in 60 bits");
+        }
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+// A forward-only cursor over postings ordered by term, then by docID.
+public interface PostingStream extends Closeable {
+
+    // Advances to the next posting. Returns false once the stream is exhausted.
+    boolean next() throws IOException;
+
+    // Term of the current posting.
+    String term();
+
+    // Document ID of the current posting.
+    long docId();
+
+    // Frequency of the term in the current document.
+    long freq();
+
+    // Positions of the term in the current document, increasing, in the first freq() entries of an array that
+    // the next call to next() may overwrite. Null when the postings carry no positions.
+    default int[] positions() {
+        return null;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Document-at-a-time conjunctive (AND), disjunctive (OR) and phrase queries over a TermIndex.
+public class QueryProcessor {
+
+    // Why an index without positions cannot answer a phrase query.
+    static final String NO_POSITIONS = "The index was built without -Dindex.positions=true, so it cannot answer phrase queries";
+
+    private final TermIndex index;
+
+    public QueryProcessor(TermIndex index) {
+        this.index = index;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("and") || args[0].equals("or") || args[0].equals("rank") || args[0].equals("phrase"))) {
+            System.err.println("Usage: java QueryProcessor <and|or|rank|phrase> <query | ->");
+            System.exit(1);
+        }
+        String mode = args[0];
+        String query = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+
+        /* A query of "-" reads queries from standard input, one per line, caching decoded blocks and ranked
+         * results across them. -Dindex.blockCacheMB=N and -Dindex.resultCacheMB=N size the caches. */
+        boolean batch = query.equals("-");
+        BlockCache blockCache = batch ? new BlockCache(Long.getLong("index.blockCacheMB", 64) << 20) : null;
+
+        // -Dindex.shardDir=<dir> queries a sharded index built with ShardedIndex
+        String shardDir = System.getProperty("index.shardDir");
+        if (shardDir != null) {
+            try (ShardedIndex shards = ShardedIndex.open(Paths.get(shardDir), blockCache)) {
+                checkPositions(mode, shards.hasPositions());
+                runSharded(mode, query, shards, blockCache);
+            }
+            return;
+        }
+
+        // -Dindex.dir=<dir> queries a segmented index built with SegmentIndex
+        String segmentDir = System.getProperty("index.dir");
+        if (segmentDir != null) {
+            try (SegmentIndex.Snapshot snapshot = SegmentIndex.openSnapshot(Paths.get(segmentDir), blockCache)) {
+                checkPositions(mode, snapshot.hasPositions());
+                run(mode, query, snapshot, snapshot.bm25(), blockCache);
+            }
+            return;
+        }
+
+        try (IndexReader index = new IndexReader(Paths.get(""), blockCache)) {
+            checkPositions(mode, index.hasPositions());
+            run(mode, query, index, mode.equals("rank") ? Bm25.load(PostingBuilder.PAGE_TABLE_FILE) : null, blockCache);
+        }
+    }
+
+    // Phrase queries are turned away up front, with a usage error, by an index without positions.
+    private static void checkPositions(String mode, boolean hasPositions) {
+        if (mode.equals("phrase") && !hasPositions) {
+            System.err.println(NO_POSITIONS);
+            System.exit(1);
+        }
+    }
+
+    private static void run(String mode, String query, TermIndex index, Bm25 bm25, BlockCache blockCache) throws IOException {
+        if (blockCache == null) {
+            query(mode, query, index, mode.equals("rank") ? new Ranker(index, bm25) : null);
+            return;
+        }
+
+        SegmentedLruCache<String, List<Ranker.ScoredDocument>> results = Ranker.resultCache(Long.getLong("index.resultCacheMB", 8) << 20);
+        Ranker ranker = mode.equals("rank") ? new Ranker(index, bm25, results) : null;
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (!line.isBlank()) query(mode, line, index, ranker);
+        }
+        System.err.println("Block cache: " + blockCache.stats());
+        if (ranker != null) System.err.println("Result cache: " + results.stats());
+    }
+
+    // Queries go to every shard; ranked results are not cached, since the shards rank with the statistics of each query.
+    private static void runSharded(String mode, String query, ShardedIndex shards, BlockCache blockCache) throws IOException {
+        if (blockCache == null) {
+            query(mode, query, shards);
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (!line.isBlank()) query(mode, line, shards);
+        }
+        System.err.println("Block cache: " + blockCache.stats());
+    }
+
+    private static void query(String mode, String query, ShardedIndex shards) throws IOException {
+        List<String> terms = mode.equals("phrase") ? tokens(query) : parse(query);
+        if (mode.equals("rank")) {
+            for (Ranker.ScoredDocument doc : shards.topK(terms, 10)) {
+                System.out.println(doc);
+            }
+            return;
+        }
+        print(shards.docIds(mode, terms));
+    }
+
+    private static void query(String mode, String query, TermIndex index, Ranker ranker) throws IOException {
+        List<String> terms = mode.equals("phrase") ? tokens(query) : parse(query);
+        if (mode.equals("rank")) {
+            // BM25 top 10 with Block-Max WAND
+            for (Ranker.ScoredDocument doc : ranker.topK(terms, 10, Ranker.Strategy.BLOCK_MAX_WAND)) {
+                System.out.println(doc);
+            }
+            return;
+        }
+
+        QueryProcessor processor = new QueryProcessor(index);
+        int[] docIds;
+        if (mode.equals("phrase")) docIds = processor.phrase(terms);
+        else if (mode.equals("and")) docIds = processor.conjunctive(terms);
+        else docIds = processor.disjunctive(terms);
+        print(docIds);
+    }
+
+    private static void print(int[] docIds) {
+        System.out.println(docIds.length + " documents");
+        for (int docId : docIds) {
+            System.out.println(docId);
+        }
+    }
+
+    // Split a query into distinct terms, normalized the same way as documents.
+    public static List<String> parse(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        new Tokenizer().tokenize(query, (buf, start, length) -> terms.add(new String(buf, start, length)));
+        return new ArrayList<>(terms);
+    }
+
+    // The terms of a query in order, repeats included, normalized the same way as documents.
+    public static List<String> tokens(String query) {
+        List<String> terms = new ArrayList<>();
+        new Tokenizer().tokenize(query, (buf, start, length) -> terms.add(new String(buf, start, length)));
+        return terms;
+    }
+
+    // DocIDs of the documents containing all the terms, in increasing order.
+    public int[] conjunctive(List<String> terms) throws IOException {
+        List<ListCursor> cursors = openAll(terms);
+        if (cursors.isEmpty() || cursors.size() < terms.size()) return new int[0];
+        return intersect(cursors, null);
+    }
+
+    /* DocIDs of the documents containing the terms one after the other, in increasing order. The documents
+     * containing all the terms are found as for an AND query; only for those are the positions read. */
+    public int[] phrase(List<String> terms) throws IOException {
+        if (!index.hasPositions()) throw new IllegalStateException(NO_POSITIONS);
+        List<ListCursor> cursors = openAll(terms);
+        if (cursors.isEmpty() || cursors.size() < terms.size()) return new int[0];
+        return intersect(new ArrayList<>(cursors), cursors);
+    }
+
+    // Intersection of the lists, keeping only the documents where the phrase cursors, in phrase order, match
+    // at consecutive positions when phrase is not null.
+    private static int[] intersect(List<ListCursor> cursors, List<ListCursor> phrase) throws IOException {
+        // Drive the intersection from the shortest list.
+        cursors.sort(Comparator.comparingInt(ListCursor::size));
+        ListCursor shortest = cursors.get(0);
+
+        int[] result = new int[16];
+        int numResults = 0;
+        int docId = shortest.next();
+        while (docId != ListCursor.END) {
+            int candidate = docId;
+            for (int i = 1; i < cursors.size() && candidate == docId; i++) {
+                candidate = cursors.get(i).nextGEQ(docId);
+            }
+
+            if (candidate == docId) {
+                if (phrase == null || adjacent(phrase)) {
+                    if (numResults == result.length) result = Arrays.copyOf(result, numResults * 2);
+                    result[numResults++] = docId;
+                }
+                docId = shortest.next();
+            } else {
+                docId = shortest.nextGEQ(candidate);
+            }
+        }
+        return Arrays.copyOf(result, numResults);
+    }
+
+    // Whether the cursors, all on the same document, have positions p, p + 1, ... for some p.
+    private static boolean adjacent(List<ListCursor> phrase) throws IOException {
+        int n = phrase.size();
+        int[][] positions = new int[n][];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = phrase.get(i).positions();
+            lengths[i] = phrase.get(i).freq();
+        }
+
+        // Walk the positions of every term once: index[i] is the first position of term i not before p + i.
+        int[] index = new int[n];
+        for (int k = 0; k < lengths[0]; k++) {
+            int p = positions[0][k];
+            boolean match = true;
+            for (int i = 1; i < n && match; i++) {
+                while (index[i] < lengths[i] && positions[i][index[i]] < p + i) index[i]++;
+                if (index[i] == lengths[i]) return false;
+                match = positions[i][index[i]] == p + i;
+            }
+            if (match) return true;
+        }
+        return false;
+    }
+
+    // DocIDs of the documents containing any of the terms, in increasing order.
+    public int[] disjunctive(List<String> terms) throws IOException {
+        List<ListCursor> cursors = openAll(terms);
+        for (ListCursor cursor : cursors) {
+            cursor.next();
+        }
+
+        int[] result = new int[16];
+        int numResults = 0;
+        while (true) {
+            int docId = ListCursor.END;
+            for (ListCursor cursor : cursors) {
+                docId = Math.min(docId, cursor.docId());
+            }
+            if (docId == ListCursor.END) break;
+
+            if (numResults == result.length) result = Arrays.copyOf(result, numResults * 2);
+            result[numResults++] = docId;
+            for (ListCursor cursor : cursors) {
+                if (cursor.docId() == docId) cursor.next();
+            }
+        }
+        return Arrays.copyOf(result, numResults);
+    }
+
+    // Opens a cursor for every term in the index; terms that are not indexed are left out.
+    private List<ListCursor> openAll(List<String> terms) throws IOException {
+        List<ListCursor> cursors = new ArrayList<>();
+        for (String term : terms) {
+            ListCursor cursor = index.open(term);
+            if (cursor != null) cursors.add(cursor);
+        }
+        return cursors;
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A long-running query service. The index is opened once, and its memory-mapped files, lexicon, decoded
+ * block cache and result cache are shared by every connection; they are read without locks.
+ *
+ * The protocol is line based, in UTF-8. A request is one line, and its response is a number of lines ended
+ * by an empty one:
+ *
+ *	rank <query>      the top 10 by BM25, one "docID score" line each
+ *	and|or|phrase <query>
+ *	                  "N documents", then the docIDs
+ *	stats             request counts, QPS, latency percentiles and cache statistics
+ *	quit              closes the connection
+ *
+ * Errors are answered with a single "error <message>" line, e.g. for a phrase query on an index built without
+ * positions. Each connection is served by a thread of its own, so a slow client only holds up itself. Identical
+ * requests that arrive while one of them is being answered are coalesced: they wait for that answer instead of
+ * running the query again. Different queries over the same terms share the blocks they decode through the block
+ * cache (see BlockCache.load). LoadGenerator drives a server with many concurrent clients. */
+public class QueryServer implements Closeable {
+
+    private static final int DEFAULT_PORT = 7070;
+    private static final int TOP_K = 10;
+
+    private final Searcher searcher;
+    private final Closeable index;
+    private final BlockCache blockCache;
+    private final SegmentedLruCache<String, List<Ranker.ScoredDocument>> resultCache;  // Null for a sharded index
+    private final ServerSocket socket;
+    private final ExecutorService connections;
+    private final Semaphore connectionSlots;
+
+    // Requests being answered, by mode and terms, which identical requests wait for.
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> modeLatencies = new TreeMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private long lastStatsNanos = startNanos;
+    private long lastStatsCount;
+
+    public static void main(String[] args) {
+        if (args.length > 1) {
+            System.err.println("Usage: java QueryServer [port]");
+            System.exit(1);
+        }
+        int port = args.length == 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        try {
+            QueryServer server = open(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.print(server.stats());
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("Listening on port " + server.port());
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while serving queries: " + e.getMessage());
+        }
+    }
+
+    /* Opens the index in the working directory, the segmented index in -Dindex.dir or the sharded index in
+     * -Dindex.shardDir, as QueryProcessor does, and listens on port (0 for any free port).
+     * -Dindex.blockCacheMB (default 64) and -Dindex.resultCacheMB (default 8) size the caches, and
+     * -Dindex.maxConnections (default 1024) bounds the connections served at a time. */
+    public static QueryServer open(int port) throws IOException {
+        BlockCache blockCache = new BlockCache(Long.getLong("index.blockCacheMB", 64) << 20);
+        int maxConnections = Integer.getInteger("index.maxConnections", 1024);
+
+        String shardDir = System.getProperty("index.shardDir");
+        if (shardDir != null) {
+            ShardedIndex shards = ShardedIndex.open(Paths.get(shardDir), blockCache);
+            Searcher searcher = new Searcher() {
+                public List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException {
+                    return shards.topK(terms, k);
+                }
+
+                public int[] docIds(String mode, List<String> terms) throws IOException {
+                    return shards.docIds(mode, terms);
+                }
+            };
+            return new QueryServer(searcher, shards, blockCache, null, port, maxConnections);
+        }
+
+        SegmentedLruCache<String, List<Ranker.ScoredDocument>> results = Ranker.resultCache(Long.getLong("index.resultCacheMB", 8) << 20);
+        String segmentDir = System.getProperty("index.dir");
+        if (segmentDir != null) {
+            SegmentIndex.Snapshot snapshot = SegmentIndex.openSnapshot(Paths.get(segmentDir), blockCache);
+            return new QueryServer(searcher(snapshot, new Ranker(snapshot, snapshot.bm25(), results)), snapshot, blockCache, results,
+                    port, maxConnections);
+        }
+
+        Path dir = Paths.get("");
+        IndexReader reader = new IndexReader(dir, blockCache);
+        try {
+            Bm25 bm25 = Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+            return new QueryServer(searcher(reader, new Ranker(reader, bm25, results)), reader, blockCache, results, port, maxConnections);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private QueryServer(Searcher searcher, Closeable index, BlockCache blockCache,
+                        SegmentedLruCache<String, List<Ranker.ScoredDocument>> resultCache, int port, int maxConnections) throws IOException {
+        this.searcher = searcher;
+        this.index = index;
+        this.blockCache = blockCache;
+        this.resultCache = resultCache;
+        try {
+            this.socket = new ServerSocket(port);
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+        this.connectionSlots = new Semaphore(maxConnections);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.connections = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "query-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String mode : List.of("rank", "and", "or", "phrase")) {
+            modeLatencies.put(mode, new LatencyHistogram());
+        }
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    // Accepts connections until the server is closed.
+    public void serve() throws IOException {
+        while (!socket.isClosed()) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (SocketException e) {
+                if (socket.isClosed()) return;
+                throw e;
+            }
+            if (!connectionSlots.tryAcquire()) {
+                rejected.incrementAndGet();
+                try (client; Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+                    out.write("error too many connections\n\n");
+                } catch (IOException e) {
+                    // The client is turned away either way
+                }
+                continue;
+            }
+            try {
+                connections.execute(() -> {
+                    try {
+                        handle(client);
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                connectionSlots.release();
+                client.close();
+            }
+        }
+    }
+
+    // Answers the requests of one connection, in order, until the client quits or disconnects.
+    private void handle(Socket client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+            client.setTcpNoDelay(true);
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                line = line.strip();
+                if (line.isEmpty()) continue;
+                if (line.equals("quit")) break;
+                out.write(line.equals("stats") ? stats() : answer(line));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; its connection is simply dropped
+        }
+    }
+
+    // The response to a query request, without its closing empty line.
+    String answer(String request) {
+        long start = System.nanoTime();
+        int space = request.indexOf(' ');
+        String mode = space < 0 ? request : request.substring(0, space);
+        LatencyHistogram modeLatency = modeLatencies.get(mode);
+        if (modeLatency == null || space < 0) {
+            errors.incrementAndGet();
+            return "error expected <rank|and|or|phrase> <query>, \"stats\" or \"quit\"\n";
+        }
+
+        String query = request.substring(space + 1);
+        List<String> terms = mode.equals("phrase") ? QueryProcessor.tokens(query) : QueryProcessor.parse(query);
+        String key = mode + " " + String.join(" ", terms);
+        CompletableFuture<String> response = new CompletableFuture<>();
+        CompletableFuture<String> other = inFlight.putIfAbsent(key, response);
+        String result;
+        if (other != null) {
+            coalesced.incrementAndGet();
+            result = other.join();
+        } else {
+            try {
+                try {
+                    result = execute(mode, terms);
+                } catch (IOException | RuntimeException e) {
+                    errors.incrementAndGet();
+                    result = "error " + (e.getMessage() != null ? e.getMessage() : e.toString()) + "\n";
+                }
+                response.complete(result);
+            } catch (Error e) {
+                response.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, response);
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        latencies.record(nanos);
+        modeLatency.record(nanos);
+        return result;
+    }
+
+    private String execute(String mode, List<String> terms) throws IOException {
+        StringBuilder response = new StringBuilder();
+        if (mode.equals("rank")) {
+            for (Ranker.ScoredDocument doc : searcher.topK(terms, TOP_K)) {
+                response.append(doc).append('\n');
+            }
+            return response.toString();
+        }
+
+        int[] docIds = searcher.docIds(mode, terms);
+        response.append(docIds.length).append(" documents\n");
+        for (int docId : docIds) {
+            response.append(docId).append('\n');
+        }
+        return response.toString();
+    }
+
+    // Counters since the server started, QPS over that time and since the previous call, and the caches.
+    public synchronized String stats() {
+        long now = System.nanoTime();
+        long count = latencies.count();
+        double seconds = (now - startNanos) / 1e9;
+        double intervalSeconds = (now - lastStatsNanos) / 1e9;
+        double recentQps = intervalSeconds > 0 ? (count - lastStatsCount) / intervalSeconds : 0;
+        lastStatsNanos = now;
+        lastStatsCount = count;
+
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("uptime %.1f s, %d requests, %.1f QPS overall, %.1f QPS since the last stats%n",
+                seconds, count, seconds > 0 ? count / seconds : 0, recentQps));
+        stats.append("all: ").append(latencies.summary()).append('\n');
+        for (Map.Entry<String, LatencyHistogram> mode : modeLatencies.entrySet()) {
+            if (mode.getValue().count() > 0) stats.append(mode.getKey()).append(": ").append(mode.getValue().summary()).append('\n');
+        }
+        stats.append(coalesced.get()).append(" coalesced, ").append(errors.get()).append(" errors, ")
+                .append(rejected.get()).append(" connections rejected\n");
+        stats.append("Block cache: ").append(blockCache.stats()).append('\n');
+        if (resultCache != null) stats.append("Result cache: ").append(resultCache.stats()).append('\n');
+        return stats.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdownNow();
+        index.close();
+    }
+
+    private static Searcher searcher(TermIndex index, Ranker ranker) {
+        return new Searcher() {
+            public List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException {
+                return ranker.topK(terms, k, Ranker.Strategy.BLOCK_MAX_WAND);
+            }
+
+            public int[] docIds(String mode, List<String> terms) throws IOException {
+                QueryProcessor processor = new QueryProcessor(index);
+                if (mode.equals("phrase")) return processor.phrase(terms);
+                if (mode.equals("and")) return processor.conjunctive(terms);
+                return processor.disjunctive(terms);
+            }
+        };
+    }
+
+    // The queries of the index the server was opened on.
+    private interface Searcher {
+        List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException;
+
+        int[] docIds(String mode, List<String> terms) throws IOException;
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.util.*;
+
+/* BM25 top-k retrieval over a TermIndex. Besides exhaustive disjunctive scoring it supports two
+ * document-at-a-time dynamic pruning strategies: WAND, which skips documents whose summed list-level score
+ * bounds cannot beat the current k-th score, and Block-Max WAND, which refines those bounds with the
+ * maximum frequency of the block each list would have to decode. All strategies return the same results,
+ * so a result cache, if given, serves a query whatever the strategy it was first ranked with. */
+public class Ranker {
+
+    public enum Strategy { EXHAUSTIVE, WAND, BLOCK_MAX_WAND }
+
+    // Score bounds are inflated slightly so that rounding in the summed bounds never prunes a document they tie with.
+    private static final double BOUND_SLACK = 1 + 1e-9;
+
+    private final TermIndex index;
+    private final Bm25 bm25;
+    private final SegmentedLruCache<String, List<ScoredDocument>> results;  // Null when results are not cached
+
+    public Ranker(TermIndex index, Bm25 bm25) {
+        this(index, bm25, null);
+    }
+
+    // Results are cached in results, made with resultCache; it must only be shared by rankers over the same index.
+    public Ranker(TermIndex index, Bm25 bm25, SegmentedLruCache<String, List<ScoredDocument>> results) {
+        this.index = index;
+        this.bm25 = bm25;
+        this.results = results;
+    }
+
+    // Cache of top-k results bounded by their approximate size in bytes.
+    public static SegmentedLruCache<String, List<ScoredDocument>> resultCache(long maxBytes) {
+        return new SegmentedLruCache<>(maxBytes, (key, docs) -> 64 + 2 * key.length() + 40 * docs.size());
+    }
+
+    // The k highest scoring documents for the terms, best first. Ties go to the lower docID.
+    // The list is unmodifiable when results are cached.
+    public List<ScoredDocument> topK(List<String> terms, int k, Strategy strategy) throws IOException {
+        if (results == null) return rank(terms, null, k, strategy);
+
+        // Terms are kept in order, since the order they are scored in can change the last bit of a score.
+        String key = k + " " + String.join(" ", terms);
+        List<ScoredDocument> top = results.get(key);
+        if (top == null) {
+            top = Collections.unmodifiableList(rank(terms, null, k, strategy));
+            results.put(key, top);
+        }
+        return top;
+    }
+
+    /* As above, with the document frequencies of the terms given instead of taken from the index: those of the
+     * whole collection when the index is one shard of it, so that every shard weighs a term alike. These
+     * results are not cached. */
+    public List<ScoredDocument> topK(List<String> terms, long[] df, int k, Strategy strategy) throws IOException {
+        return rank(terms, df, k, strategy);
+    }
+
+    // df, when not null, holds the document frequencies of the terms.
+    private List<ScoredDocument> rank(List<String> terms, long[] df, int k, Strategy strategy) throws IOException {
+        List<Term> query = new ArrayList<>();
+        for (int i = 0; i < terms.size(); i++) {
+            ListCursor cursor = index.open(terms.get(i));
+            if (cursor != null) query.add(new Term(cursor, bm25.idf(df == null ? cursor.size() : df[i])));
+        }
+
+        TopK top = new TopK(k);
+        if (k > 0 && !query.isEmpty()) {
+            Term[] lists = query.toArray(new Term[0]);
+            for (Term term : lists) {
+                term.cursor.next();
+            }
+
+            switch (strategy) {
+                case EXHAUSTIVE:
+                    exhaustive(lists, top);
+                    break;
+                case WAND:
+                    wand(lists, top);
+                    break;
+                case BLOCK_MAX_WAND:
+                    blockMaxWand(lists, top);
+                    break;
+            }
+        }
+        return top.results();
+    }
+
+    // Scores every document that contains any of the terms.
+    private void exhaustive(Term[] lists, TopK top) {
+        while (true) {
+            int docId = ListCursor.END;
+            for (Term term : lists) {
+                docId = Math.min(docId, term.cursor.docId());
+            }
+            if (docId == ListCursor.END) break;
+
+            top.offer(docId, score(lists, docId));
+            for (Term term : lists) {
+                if (term.cursor.docId() == docId) term.cursor.next();
+            }
+        }
+    }
+
+    private void wand(Term[] lists, TopK top) {
+        Term[] ordered = lists.clone();
+        while (true) {
+            sortByDocId(ordered);
+            int pivot = findPivot(ordered, top.threshold());
+            if (pivot < 0) break;
+            int pivotId = ordered[pivot].cursor.docId();
+
+            if (ordered[0].cursor.docId() == pivotId) {
+                // Every list up to the pivot is on the pivot document, so it is worth scoring.
+                top.offer(pivotId, score(lists, pivotId));
+                advancePast(ordered, pivotId);
+            } else {
+                advanceToPivot(ordered, pivot, pivotId);
+            }
+        }
+    }
+
+    private void blockMaxWand(Term[] lists, TopK top) {
+        Term[] ordered = lists.clone();
+        while (true) {
+            sortByDocId(ordered);
+            double threshold = top.threshold();
+            int pivot = findPivot(ordered, threshold);
+            if (pivot < 0) break;
+            int pivotId = ordered[pivot].cursor.docId();
+
+            // Refine the bound with the blocks that would hold the pivot document.
+            double blockBound = 0;
+            for (int i = 0; i <= pivot; i++) {
+                Term term = ordered[i];
+                term.cursor.advanceShallow(pivotId);
+                blockBound += term.idf * bm25.maxTf(term.cursor.shallowMaxFreq()) * BOUND_SLACK;
+            }
+
+            if (blockBound > threshold) {
+                if (ordered[0].cursor.docId() == pivotId) {
+                    top.offer(pivotId, score(lists, pivotId));
+                    advancePast(ordered, pivotId);
+                } else {
+                    advanceToPivot(ordered, pivot, pivotId);
+                }
+            } else {
+                /* No document before the end of the current blocks can make it, and the lists after the
+                 * pivot start later still. Jump to the first document that could. */
+                int next = pivot + 1 < ordered.length ? ordered[pivot + 1].cursor.docId() : ListCursor.END;
+                Term strongest = ordered[0];
+                for (int i = 0; i <= pivot; i++) {
+                    int lastId = ordered[i].cursor.shallowLastId();
+                    if (lastId != ListCursor.END) next = Math.min(next, lastId + 1);
+                    if (ordered[i].maxScore > strongest.maxScore) strongest = ordered[i];
+                }
+                if (next <= pivotId) next = pivotId + 1;
+                strongest.cursor.nextGEQ(next);
+            }
+        }
+    }
+
+    /* Index of the first list, in docID order, at which the summed score bounds exceed the threshold,
+     * extended over the lists that are on the same document. -1 if no document can beat the threshold. */
+    private static int findPivot(Term[] ordered, double threshold) {
+        double bound = 0;
+        for (int i = 0; i < ordered.length; i++) {
+            int docId = ordered[i].cursor.docId();
+            if (docId == ListCursor.END) return -1;
+            bound += ordered[i].maxScore;
+            if (bound > threshold) {
+                while (i + 1 < ordered.length && ordered[i + 1].cursor.docId() == docId) i++;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Moves the last list before the pivot's document group up to the pivot document.
+    private static void advanceToPivot(Term[] ordered, int pivot, int pivotId) {
+        int i = pivot;
+        while (ordered[i - 1].cursor.docId() == pivotId) i--;
+        ordered[i - 1].cursor.nextGEQ(pivotId);
+    }
+
+    // Moves every list on the document to its next posting.
+    private static void advancePast(Term[] ordered, int docId) {
+        for (Term term : ordered) {
+            if (term.cursor.docId() == docId) term.cursor.next();
+        }
+    }
+
+    // Insertion sort, since only a few lists move between iterations.
+    private static void sortByDocId(Term[] ordered) {
+        for (int i = 1; i < ordered.length; i++) {
+            Term term = ordered[i];
+            int j = i - 1;
+            while (j >= 0 && ordered[j].cursor.docId() > term.cursor.docId()) {
+                ordered[j + 1] = ordered[j];
+                j--;
+            }
+            ordered[j + 1] = term;
+        }
+    }
+
+    // Full BM25 score of a document, summed in query term order so that every strategy gets the same value.
+    private double score(Term[] lists, int docId) {
+        double score = 0;
+        for (Term term : lists) {
+            if (term.cursor.docId() == docId) {
+                score += term.idf * bm25.tf(term.cursor.freq(), docId);
+            }
+        }
+        return score;
+    }
+
+    // A query term: its cursor, inverse document frequency and the highest score any of its postings can add.
+    private class Term {
+        final ListCursor cursor;
+        final double idf;
+        final double maxScore;
+
+        private Term(ListCursor cursor, double idf) {
+            this.cursor = cursor;
+            this.idf = idf;
+            this.maxScore = idf * bm25.maxTf(cursor.maxFreq()) * BOUND_SLACK;
+        }
+    }
+
+    public static class ScoredDocument {
+        public final int docId;
+        public final double score;
+
+        ScoredDocument(int docId, double score) {
+            this.docId = docId;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return docId + " " + score;
+        }
+    }
+
+    // Bounded min-heap of the best k documents seen so far.
+    static class TopK {
+        // Worst first: lower score, then higher docID.
+        private static final Comparator<ScoredDocument> WORST_FIRST = Comparator
+                .comparingDouble((ScoredDocument d) -> d.score)
+                .thenComparing(d -> d.docId, Comparator.reverseOrder());
+
+        private final int k;
+        private final PriorityQueue<ScoredDocument> heap;
+
+        TopK(int k) {
+            this.k = k;
+            this.heap = new PriorityQueue<>(Math.max(1, k), WORST_FIRST);
+        }
+
+        int size() {
+            return heap.size();
+        }
+
+        // Score a document must beat to enter the heap.
+        double threshold() {
+            return heap.size() < k ? 0 : heap.peek().score;
+        }
+
+        void offer(int docId, double score) {
+            ScoredDocument doc = new ScoredDocument(docId, score);
+            if (heap.size() < k) {
+                heap.add(doc);
+            } else if (WORST_FIRST.compare(doc, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(doc);
+            }
+        }
+
+        List<ScoredDocument> results() {
+            List<ScoredDocument> results = new ArrayList<>(heap);
+            results.sort(WORST_FIRST.reversed());
+            return results;
+        }
+    }
+}
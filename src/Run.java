@@ -1,5 +1,21 @@
+import java.io.IOException;
+import java.nio.file.*;
+
 public class Run {
 
+    // Directory to write the index into, and file to store the build report.
+    private static final Path OUTPUT_DIR = Paths.get(System.getProperty("index.outputDir", ""));
+    private static final String REPORT_FILE = System.getProperty("index.report", OUTPUT_DIR.resolve("buildReport.json").toString());
+
+    // -Dindex.positions=true also indexes the positions of the terms, for phrase queries.
+    private static final boolean POSITIONS = Boolean.getBoolean("index.positions");
+
+    // Memory for the postings and the merge: -Dindex.memoryMB, or a share of the heap; see MemoryBudget.
+    private static final MemoryBudget MEMORY = MemoryBudget.fromProperties();
+
+    // -Dindex.docOrder=url|bisection renumbers the documents before the merge; see DocumentReorderer.
+    private static final DocumentReorderer.Order DOC_ORDER = DocumentReorderer.fromProperties();
+
     public static void main(String[] args) {
         if (args.length == 0) {
             System.err.println("Usage: java Run <input_file>");
@@ -9,32 +25,61 @@ public class Run {
         /* ./data/<SOURCE_FILE>
          * Either .trec.gz or .trec will work*/
         String dataFilePath = args[0];
-        Timer timer = new Timer();
 
-        int numPostings = createIntermediatePostings(dataFilePath, timer);
-        String mergedFile = sortAndMergePostings(numPostings, timer);
-        createInvertedIndex(mergedFile, timer);
+        try (BuildMetrics metrics = new BuildMetrics()) {
+            Files.createDirectories(OUTPUT_DIR.toAbsolutePath());
+            // -Dindex.progressSeconds=N prints a progress line every N seconds
+            metrics.startProgress(Integer.getInteger("index.progressSeconds", 0));
 
-        System.out.println("Total runtime: " + timer.update(1) + " s");
+            int numPostings = createIntermediatePostings(dataFilePath, metrics);
+            reorderDocuments(numPostings, metrics);
+            try (PostingStream mergedPostings = sortAndMergePostings(numPostings, metrics)) {
+                createInvertedIndex(mergedPostings, metrics);
+            }
+
+            System.out.println("Total runtime: " + metrics.totalSeconds() + " s");
+            metrics.writeReport(REPORT_FILE);
+            System.out.println("Build report written to " + REPORT_FILE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while building the inverted index: " + e.getMessage());
+        }
     }
 
-    private static int createIntermediatePostings(String filePath, Timer timer) {
-        PostingBuilder postingBuilder = new PostingBuilder(filePath, 536870912);
+    private static int createIntermediatePostings(String filePath, BuildMetrics metrics) {
+        metrics.startStage("parse");
+        // -Dindex.parserThreads=1 parses on a single thread
+        int parserThreads = Integer.getInteger("index.parserThreads", Runtime.getRuntime().availableProcessors());
+        PostingBuilder postingBuilder = new PostingBuilder(filePath, MEMORY, parserThreads, metrics, OUTPUT_DIR, POSITIONS);
         int numPostings = postingBuilder.build();
-        System.out.println("Total time to create intermediate postings: " + timer.update(0) + " s");
+        System.out.println("Total time to create intermediate postings: " + metrics.endStage() + " s");
         System.out.println("Number of Postings: " + numPostings);
         return numPostings;
     }
 
-    private static String sortAndMergePostings(int numPostings, Timer timer) {
-        String mergedFile = Util.Merge.sortMerge(numPostings);
-        System.out.println("Total time to sort and merge postings: " + timer.update(0) + " s");
-        return mergedFile;
+    private static void reorderDocuments(int numPostings, BuildMetrics metrics) throws IOException {
+        if (DOC_ORDER == DocumentReorderer.Order.INPUT) return;
+        metrics.startStage("reorder");
+        DocumentReorderer.reorder(OUTPUT_DIR, numPostings, DOC_ORDER, metrics);
+        System.out.println("Total time to reorder documents (" + DOC_ORDER.name().toLowerCase() + "): " + metrics.endStage() + " s");
+    }
+
+    // Sorts the runs and sets up the final merge; the merged postings are streamed into the index builder.
+    private static PostingStream sortAndMergePostings(int numPostings, BuildMetrics metrics) throws IOException {
+        metrics.startStage("merge");
+        PostingStream mergedPostings = Util.Merge.sortMerge(OUTPUT_DIR, numPostings, MEMORY, metrics);
+        System.out.println("Total time to sort postings: " + metrics.endStage() + " s");
+        return mergedPostings;
     }
 
-    private static void createInvertedIndex(String mergedFile, Timer timer) {
-        InvertedIndexBuilder invertedIndexBuilder = new InvertedIndexBuilder(mergedFile);
+    private static void createInvertedIndex(PostingStream mergedPostings, BuildMetrics metrics) throws IOException {
+        metrics.startStage("index");
+        // -Dindex.codec=varbyte|bitpacking|pfor|simple8b picks the block codec
+        PostingCodec codec = PostingCodec.forName(System.getProperty("index.codec", "varbyte"));
+        // -Dindex.indexThreads=1 compresses the inverted lists on a single thread
+        int indexThreads = Integer.getInteger("index.indexThreads", Runtime.getRuntime().availableProcessors());
+        InvertedIndexBuilder invertedIndexBuilder = new InvertedIndexBuilder(mergedPostings, codec, metrics, OUTPUT_DIR, POSITIONS, indexThreads);
         invertedIndexBuilder.buildInvertedIndex();
-        System.out.println("Total time to create inverted index and lexicon: " + timer.update(0) + " s");
+        System.out.println("Total time to merge postings and create inverted index and lexicon: " + metrics.endStage() + " s");
     }
 }
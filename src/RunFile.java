@@ -0,0 +1,428 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/* Intermediate run files written by PostingBuilder and by intermediate merge passes.
+ * Postings inside a run are ordered by term, then by docID.
+
+		   Binary run layout:
+		   ┌──────────────────────────────┬──────────────────────┬──────────────────────────────────────────┐
+		   │ records (termID, docID, freq)│ dictionary (terms)   │ footer: dictOffset, numTerms,            │
+		   │ all VarByte encoded          │ writeUTF per termID  │         numRecords, magic                │
+		   └──────────────────────────────┴──────────────────────┴──────────────────────────────────────────┘
+
+ * termIDs are local to a run and follow term order, so a run is self-contained. Each record stores its termID
+ * as the gap from the previous record's termID (starting from -1), and its docID as the gap from the previous
+ * record of the same term (absolute for the first record). In a positional run each record is followed by the
+ * freq positions of the term in the document, as gaps from the previous one (the first is absolute); the magic
+ * tells the two kinds apart.
+ * Setting -Dindex.textRuns=true writes "term docID freq" lines instead, which is handy for debugging; positions
+ * are appended to the line, separated by commas.
+ *
+ * Readers map the records a window at a time (MappedInput) and decode them in place into reused fields and
+ * arrays, so reading a posting allocates nothing: a binary run names its terms by termID, and a text run only
+ * makes a String when the term bytes of a line differ from the previous line's. */
+public class RunFile {
+
+    // Whether runs are written as text lines instead of binary records.
+    static final boolean TEXT_RUNS = Boolean.getBoolean("index.textRuns");
+
+    // Marks the end of a binary run, and of one with positions.
+    private static final int MAGIC = 0x52554E31; // "RUN1"
+    private static final int POSITIONAL_MAGIC = 0x52554E50; // "RUNP"
+
+    // Size of the footer: dictionary offset, number of terms, number of records and magic.
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 4;
+
+    // I/O buffer size for run files.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Size of the windows runs are mapped and read in. Records may straddle two windows.
+    private static final long WINDOW_SIZE = 1L << 26;
+
+    // Rough heap cost of a term of a reader's dictionary besides its characters: the String and its array.
+    private static final int TERM_OVERHEAD_BYTES = 56;
+
+    // Opens a writer for a new run. Postings must be written in term, then docID, order.
+    public static Writer openWriter(String file) throws IOException {
+        return TEXT_RUNS ? new TextWriter(file) : new BinaryWriter(file);
+    }
+
+    // Opens a reader over a run written by openWriter.
+    public static PostingStream openReader(String file) throws IOException {
+        return TEXT_RUNS ? new TextReader(file) : new BinaryReader(file);
+    }
+
+    // Estimated heap held by a reader of the run: its buffers and, for a binary run, its term dictionary. The
+    // mapped window is in the page cache, not the heap.
+    static long readerMemory(String file) throws IOException {
+        if (TEXT_RUNS) return BUFFER_SIZE;  // The term and positions of a line
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < FOOTER_SIZE) throw new IOException("Truncated run file: " + file);
+            raf.seek(raf.length() - FOOTER_SIZE);
+            long dictOffset = raf.readLong();
+            int numTerms = raf.readInt();
+            long dictBytes = raf.length() - FOOTER_SIZE - dictOffset;
+            return BUFFER_SIZE + dictBytes + (long) numTerms * TERM_OVERHEAD_BYTES;
+        }
+    }
+
+    public interface Writer extends Closeable {
+        // Positions, when not null, are the first freq entries of the array. A run has positions for every posting or for none.
+        void write(String term, long docId, long freq, int[] positions) throws IOException;
+
+        default void write(String term, long docId, long freq) throws IOException {
+            write(term, docId, freq, null);
+        }
+    }
+
+    private static class BinaryWriter implements Writer {
+        private final Util.CountingOutputStream out;
+        private final List<String> terms = new ArrayList<>();
+        private String term;
+        private long lastDocId;
+        private long numRecords;
+        private boolean positional;
+
+        private BinaryWriter(String file) throws IOException {
+            this.out = new Util.CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        @Override
+        public void write(String term, long docId, long freq, int[] positions) throws IOException {
+            if (numRecords == 0) {
+                positional = positions != null;
+            } else if (positional != (positions != null)) {
+                throw new IllegalStateException("Postings with and without positions in one run");
+            }
+
+            if (!term.equals(this.term)) {
+                if (this.term != null && term.compareTo(this.term) < 0) {
+                    throw new IllegalStateException("Run terms out of order: " + term + " after " + this.term);
+                }
+                this.term = term;
+                this.lastDocId = 0;
+                terms.add(term);
+                Util.VarByte.write(out, 1);
+            } else {
+                Util.VarByte.write(out, 0);
+            }
+            Util.VarByte.write(out, docId - lastDocId);
+            Util.VarByte.write(out, freq);
+            if (positional) {
+                int previous = 0;
+                for (int i = 0; i < freq; i++) {
+                    Util.VarByte.write(out, positions[i] - previous);
+                    previous = positions[i];
+                }
+            }
+            lastDocId = docId;
+            numRecords++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (DataOutputStream dos = new DataOutputStream(out)) {
+                long dictOffset = out.count();
+                for (String t : terms) {
+                    dos.writeUTF(t);
+                }
+                dos.writeLong(dictOffset);
+                dos.writeInt(terms.size());
+                dos.writeLong(numRecords);
+                dos.writeInt(positional ? POSITIONAL_MAGIC : MAGIC);
+            }
+        }
+    }
+
+    private static class BinaryReader implements PostingStream {
+        private final String file;
+        private final MappedInput in;
+        private final String[] terms;
+        private final boolean positional;
+        private long remaining;
+        private int termId = -1;
+        private long docId;
+        private long freq;
+        private int[] positions;
+
+        private BinaryReader(String file) throws IOException {
+            this.file = file;
+            long dictOffset;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() < FOOTER_SIZE) throw new IOException("Truncated run file: " + file);
+                raf.seek(raf.length() - FOOTER_SIZE);
+                dictOffset = raf.readLong();
+                int numTerms = raf.readInt();
+                remaining = raf.readLong();
+                int magic = raf.readInt();
+                if (magic != MAGIC && magic != POSITIONAL_MAGIC) throw new IOException("Not a binary run file: " + file);
+                positional = magic == POSITIONAL_MAGIC;
+                positions = positional ? new int[16] : null;
+
+                raf.seek(dictOffset);
+                DataInputStream dict = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), BUFFER_SIZE));
+                terms = new String[numTerms];
+                for (int i = 0; i < numTerms; i++) {
+                    terms[i] = dict.readUTF();
+                }
+            }
+            this.in = new MappedInput(file, dictOffset);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (remaining == 0) return false;
+            remaining--;
+
+            long termGap = in.readVarByte();
+            long gap = in.readVarByte();
+            if (termGap != 0) {
+                termId += (int) termGap;
+                if (termId >= terms.length) throw new IOException("Corrupt run file: " + file);
+                docId = gap;
+            } else {
+                docId += gap;
+            }
+            freq = in.readVarByte();
+            if (positional) {
+                if (freq > positions.length) positions = new int[(int) Math.max(freq, 2L * positions.length)];
+                int position = 0;
+                for (int i = 0; i < freq; i++) {
+                    position += (int) in.readVarByte();
+                    positions[i] = position;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String term() {
+            return terms[termId];
+        }
+
+        @Override
+        public long docId() {
+            return docId;
+        }
+
+        @Override
+        public long freq() {
+            return freq;
+        }
+
+        @Override
+        public int[] positions() {
+            return positions;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class TextWriter implements Writer {
+        private final BufferedWriter out;
+
+        private TextWriter(String file) throws IOException {
+            this.out = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(String term, long docId, long freq, int[] positions) throws IOException {
+            out.write(term);
+            out.write(' ');
+            out.write(Long.toString(docId));
+            out.write(' ');
+            out.write(Long.toString(freq));
+            if (positions != null) {
+                for (int i = 0; i < freq; i++) {
+                    out.write(i == 0 ? ' ' : ',');
+                    out.write(Integer.toString(positions[i]));
+                }
+            }
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class TextReader implements PostingStream {
+        private final String file;
+        private final MappedInput in;
+        private String term;
+        private long docId;
+        private long freq;
+        private int[] positions;
+
+        // Bytes of the term of the current line, and of the line before it.
+        private byte[] termBytes = new byte[64];
+        private byte[] lineTerm = new byte[64];
+        private int termLength = -1;
+
+        // The character after the last number read; a missing last newline reads as one.
+        private int delimiter;
+
+        private TextReader(String file) throws IOException {
+            this.file = file;
+            long size;
+            try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                size = channel.size();
+            }
+            this.in = new MappedInput(file, size);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (!in.hasRemaining()) return false;
+            long lineStart = in.position();
+
+            int length = 0;
+            for (byte b = in.get(); b != ' '; b = in.get()) {
+                if (b == '\n') throw malformed(lineStart);
+                if (length == lineTerm.length) lineTerm = Arrays.copyOf(lineTerm, 2 * length);
+                lineTerm[length++] = b;
+            }
+            if (termLength < 0 || !Arrays.equals(lineTerm, 0, length, termBytes, 0, termLength)) {
+                byte[] previous = termBytes;
+                termBytes = lineTerm;
+                lineTerm = previous;
+                termLength = length;
+                term = new String(termBytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            docId = number(lineStart);
+            if (delimiter != ' ') throw malformed(lineStart);
+            freq = number(lineStart);
+            if (delimiter == ' ') {
+                if (positions == null || positions.length < freq) positions = new int[(int) Math.max(freq, 16)];
+                int count = 0;
+                do {
+                    long position = number(lineStart);
+                    if (count == freq) throw malformed(lineStart);
+                    positions[count++] = (int) position;
+                } while (delimiter == ',');
+                if (count != freq) throw malformed(lineStart);
+            }
+            if (delimiter != '\n') throw malformed(lineStart);
+            return true;
+        }
+
+        // Reads a decimal number and the character after it.
+        private long number(long lineStart) throws IOException {
+            long value = 0;
+            int digits = 0;
+            while (true) {
+                if (!in.hasRemaining()) {
+                    delimiter = '\n';
+                    break;
+                }
+                byte b = in.get();
+                if (b < '0' || b > '9') {
+                    delimiter = b;
+                    break;
+                }
+                value = 10 * value + (b - '0');
+                digits++;
+            }
+            if (digits == 0 || digits > 18) throw malformed(lineStart);
+            return value;
+        }
+
+        private IOException malformed(long lineStart) {
+            return new IOException("Malformed posting in " + file + " at byte " + lineStart);
+        }
+
+        @Override
+        public String term() {
+            return term;
+        }
+
+        @Override
+        public long docId() {
+            return docId;
+        }
+
+        @Override
+        public long freq() {
+            return freq;
+        }
+
+        @Override
+        public int[] positions() {
+            return positions;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /* Sequential reader over the first end bytes of a file, mapped WINDOW_SIZE bytes at a time. Each window is
+     * mapped where the previous one ends, so a record that straddles two is read across them, and offsets are
+     * longs, so runs may be larger than a single mapping can be. Reading a byte is a bounds check and a load. */
+    private static class MappedInput implements Closeable {
+        private final String file;
+        private final FileChannel channel;
+        private final long end;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private int pos;
+        private int limit;
+
+        MappedInput(String file, long end) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+            this.end = end;
+        }
+
+        boolean hasRemaining() {
+            return windowStart + pos < end;
+        }
+
+        // Offset in the file of the next byte.
+        long position() {
+            return windowStart + pos;
+        }
+
+        byte get() throws IOException {
+            if (pos == limit) nextWindow();
+            return window.get(pos++);
+        }
+
+        // A number written by Util.VarByte.write.
+        long readVarByte() throws IOException {
+            long number = 0;
+            int shift = 0;
+            while (true) {
+                byte b = get();
+                number |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) != 0) return number; // The most significant bit marks the last byte
+                shift += 7;
+            }
+        }
+
+        private void nextWindow() throws IOException {
+            windowStart += limit;
+            if (windowStart >= end) throw new EOFException("Truncated run file: " + file);
+            long size = Math.min(WINDOW_SIZE, end - windowStart);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+            pos = 0;
+            limit = (int) size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
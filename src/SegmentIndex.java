@@ -0,0 +1,668 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* An index made of immutable segments, so that new input is indexed on its own instead of rebuilding
+ * everything. Every add indexes its input into a new segment directory holding the usual invertedIndex,
+ * lexicon and pageTable. A segment numbers its documents from 1 like any other index; its docID base, the
+ * number of documents added before it, is kept in the manifest and added to its docIDs when it is searched.
+
+		   <dir>/
+		   ├── segments      manifest: version, next segment number, then name, docID base and documents per segment
+		   ├── write.lock    held by the process that adds and merges
+		   ├── seg_000001/   invertedIndex, lexicon, pageTable
+		   └── seg_000002/
+
+ * Segments are merged in the background with a log-structured policy. The level of a segment is
+ * log_MERGE_FACTOR(documents), with segments under MIN_MERGE_DOCS counted as that size. Going from the oldest
+ * segment, the largest segment left sets a level, and the segments up to the last one within LEVEL_SPAN of it
+ * belong to that level, along with any smaller ones between them. Every MERGE_FACTOR adjacent segments of a
+ * level are merged into one of the next level. A document is thus rewritten about
+ * log_MERGE_FACTOR(total documents / MIN_MERGE_DOCS) times, and an add costs as much as its own input.
+ * Only adjacent segments are merged, so the merged docIDs stay in order.
+ *
+ * Searches go through a Snapshot, which pins the segments it was taken with. A merge swaps the merged segment
+ * in by rewriting the manifest, and the segments it replaced are deleted once no snapshot uses them. */
+public class SegmentIndex implements Closeable {
+
+    static final String MANIFEST_FILE = "segments";
+    private static final String MANIFEST_VERSION = "segments 1";
+    private static final String LOCK_FILE = "write.lock";
+
+    // Number of segments of a level merged into one; -Dindex.mergeFactor=N changes it.
+    static final int MERGE_FACTOR = Integer.getInteger("index.mergeFactor", 10);
+
+    // Segments smaller than this are all on the lowest level, so that small adds are merged early.
+    static final int MIN_MERGE_DOCS = 1000;
+
+    // Range of levels, below the largest segment left, that are merged together.
+    private static final double LEVEL_SPAN = 0.75;
+
+    // Memory for the postings of a segment being built, as in Run. Segments are built one at a time.
+    private static final MemoryBudget MEMORY = MemoryBudget.fromProperties();
+    private static final DocumentReorderer.Order DOC_ORDER = DocumentReorderer.fromProperties();
+
+    private final Path dir;
+    private final PostingCodec codec;
+    private final boolean positions;  // Whether added segments keep positions
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ExecutorService merger;
+
+    // Guarded by this: the live segments in docID order, and the merge bookkeeping.
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextSegment;
+    private int pendingMerges;
+    private IOException mergeFailure;
+    private boolean closed;
+
+    private SegmentIndex(Path dir, PostingCodec codec, boolean positions) throws IOException {
+        if (MERGE_FACTOR < 2) throw new IllegalArgumentException("Merge factor must be at least 2: " + MERGE_FACTOR);
+        this.dir = dir;
+        this.codec = codec;
+        this.positions = positions;
+
+        lockChannel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired = null;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by this process
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Segment index is already open for writing: " + dir);
+        }
+        lock = acquired;
+
+        try {
+            Manifest manifest = Manifest.read(dir);
+            nextSegment = manifest.nextSegment;
+            for (Manifest.Entry entry : manifest.entries) {
+                segments.add(Segment.open(dir, entry, null));
+            }
+            deleteUnlisted();
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments) segment.release();
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+
+        merger = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "segment-merger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (this) {
+            scheduleMerges();
+        }
+    }
+
+    // Opens the index in dir for adding and merging, creating it if needed. Merges write their segments with codec.
+    public static SegmentIndex open(Path dir, PostingCodec codec) throws IOException {
+        return open(dir, codec, false);
+    }
+
+    // Segments added with positions set keep positions. A merged segment keeps them if all its inputs have them.
+    public static SegmentIndex open(Path dir, PostingCodec codec, boolean positions) throws IOException {
+        Files.createDirectories(dir);
+        return new SegmentIndex(dir, codec, positions);
+    }
+
+    /* Read-only snapshot of the index in dir, as its manifest lists it, for processes that only search.
+     * A merge in the writing process may delete a listed segment before it is opened; the manifest is then
+     * read again, since it no longer lists that segment. */
+    public static Snapshot openSnapshot(Path dir) throws IOException {
+        return openSnapshot(dir, null);
+    }
+
+    // Decoded blocks of the segments are cached in blockCache; null caches nothing.
+    public static Snapshot openSnapshot(Path dir, BlockCache blockCache) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            List<Segment> opened = new ArrayList<>();
+            try {
+                for (Manifest.Entry entry : Manifest.read(dir).entries) {
+                    opened.add(Segment.open(dir, entry, blockCache));
+                }
+                return new Snapshot(opened);
+            } catch (NoSuchFileException e) {
+                for (Segment segment : opened) segment.release();
+                if (attempt == 3) throw e;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[1].equals("add") && args.length > 2 || args[1].equals("merge") || args[1].equals("list"))) {
+            System.err.println("Usage: java SegmentIndex <index_dir> <add <input_file>... | merge | list>");
+            System.exit(1);
+        }
+
+        // -Dindex.codec=varbyte|bitpacking|pfor|simple8b picks the block codec of new segments,
+        // and -Dindex.positions=true makes added segments keep positions
+        PostingCodec codec = PostingCodec.forName(System.getProperty("index.codec", "varbyte"));
+        try (SegmentIndex index = open(Paths.get(args[0]), codec, Boolean.getBoolean("index.positions"))) {
+            if (args[1].equals("add")) {
+                for (String input : Arrays.copyOfRange(args, 2, args.length)) {
+                    try (BuildMetrics metrics = new BuildMetrics()) {
+                        int numDocs = index.add(input, metrics);
+                        System.out.println("Added " + numDocs + " documents from " + input + " in " + metrics.totalSeconds() + " s");
+                    }
+                }
+                index.waitForMerges();
+            } else if (args[1].equals("merge")) {
+                index.forceMerge();
+            }
+
+            try (Snapshot snapshot = index.acquire()) {
+                for (Segment segment : snapshot.segments) {
+                    System.out.println(segment.name + "  docIDs " + (segment.docBase + 1) + ".." + (segment.docBase + segment.numDocs)
+                            + String.format("  level %.2f", level(segment.numDocs)));
+                }
+                System.out.println(snapshot.segments.size() + " segments, " + snapshot.numDocs() + " documents");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while updating the segment index: " + e.getMessage());
+        }
+    }
+
+    // Indexes a .trec(.gz) file as a new segment. Returns the number of documents added.
+    public int add(String inputFile, BuildMetrics metrics) throws IOException {
+        String name;
+        synchronized (this) {
+            ensureOpen();
+            name = segmentName(nextSegment++);
+        }
+        Path segmentDir = Files.createDirectory(dir.resolve(name));
+
+        Segment segment = null;
+        try {
+            metrics.startStage("parse");
+            int parserThreads = Integer.getInteger("index.parserThreads", Runtime.getRuntime().availableProcessors());
+            int numRuns = new PostingBuilder(inputFile, MEMORY, parserThreads, metrics, segmentDir, positions).build();
+            metrics.endStage();
+
+            // Documents are renumbered within the segment, before its docIDs are offset.
+            if (DOC_ORDER != DocumentReorderer.Order.INPUT) {
+                metrics.startStage("reorder");
+                DocumentReorderer.reorder(segmentDir, numRuns, DOC_ORDER, metrics);
+                metrics.endStage();
+            }
+
+            metrics.startStage("merge");
+            try (PostingStream postings = Util.Merge.sortMerge(segmentDir, numRuns, MEMORY, metrics)) {
+                metrics.endStage();
+                metrics.startStage("index");
+                int indexThreads = Integer.getInteger("index.indexThreads", Runtime.getRuntime().availableProcessors());
+                new InvertedIndexBuilder(postings, codec, metrics, segmentDir, positions, indexThreads).buildInvertedIndex();
+            }
+            metrics.endStage();
+
+            synchronized (this) {
+                ensureOpen();
+                segment = new Segment(dir, name, numDocs(segments));
+                if (segment.numDocs == 0) {
+                    // Nothing to search, so it is not listed.
+                    segment.retire();
+                    return 0;
+                }
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.add(segment);
+                writeManifest(updated);
+                segments.add(segment);
+                scheduleMerges();
+            }
+            return segment.numDocs;
+        } catch (IOException | RuntimeException e) {
+            if (segment != null) segment.retire();
+            else deleteRecursively(segmentDir);
+            throw e;
+        }
+    }
+
+    // Snapshot of the live segments. It must be closed, or the segments it pins are never deleted.
+    public synchronized Snapshot acquire() throws IOException {
+        ensureOpen();
+        for (Segment segment : segments) segment.retain();
+        return new Snapshot(new ArrayList<>(segments));
+    }
+
+    // Blocks until no merge is pending, and reports the first merge that failed since the last call.
+    public synchronized void waitForMerges() throws IOException {
+        while (pendingMerges > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for segment merges");
+            }
+        }
+        if (mergeFailure != null) {
+            IOException failure = mergeFailure;
+            mergeFailure = null;
+            throw failure;
+        }
+    }
+
+    // Merges every segment into one, once the background merges are done. Runs on the calling thread.
+    public void forceMerge() throws IOException {
+        waitForMerges();
+        List<Segment> group;
+        synchronized (this) {
+            ensureOpen();
+            if (segments.size() < 2) return;
+            group = new ArrayList<>(segments);
+            for (Segment segment : group) segment.merging = true;
+            pendingMerges++;
+        }
+        runMerge(group);
+        waitForMerges();
+    }
+
+    // Lets a running merge finish, skips the queued ones, and releases the segments. Open snapshots stay usable.
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        merger.shutdown();
+        try {
+            merger.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (Segment segment : segments) segment.release();
+            segments.clear();
+        }
+        lock.release();
+        lockChannel.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Segment index is closed: " + dir);
+    }
+
+    // Level of a segment in the merge policy: log_MERGE_FACTOR(numDocs), counting at least MIN_MERGE_DOCS.
+    private static double level(int numDocs) {
+        return Math.log(Math.max(numDocs, MIN_MERGE_DOCS)) / Math.log(MERGE_FACTOR);
+    }
+
+    // Starts a merge of every MERGE_FACTOR adjacent segments of a level that are not being merged yet.
+    private void scheduleMerges() {
+        if (closed || mergeFailure != null) return;
+        int start = 0;
+        while (start < segments.size()) {
+            double top = 0;
+            for (Segment segment : segments.subList(start, segments.size())) {
+                top = Math.max(top, level(segment.numDocs));
+            }
+            int end = segments.size();
+            while (level(segments.get(end - 1).numDocs) < top - LEVEL_SPAN) end--;
+
+            // Segments [start, end) are one level.
+            int from = start;
+            for (int i = start; i < end; i++) {
+                if (segments.get(i).merging) {
+                    from = i + 1;
+                } else if (i + 1 - from == MERGE_FACTOR) {
+                    List<Segment> group = new ArrayList<>(segments.subList(from, i + 1));
+                    for (Segment segment : group) segment.merging = true;
+                    pendingMerges++;
+                    merger.execute(() -> runMerge(group));
+                    from = i + 1;
+                }
+            }
+            start = end;
+        }
+    }
+
+    private void runMerge(List<Segment> group) {
+        try {
+            synchronized (this) {
+                if (closed) return;
+            }
+            merge(group);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                if (mergeFailure == null) {
+                    mergeFailure = e instanceof IOException ? (IOException) e : new IOException("An error occurred while merging segments", e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                for (Segment segment : group) segment.merging = false;
+                pendingMerges--;
+                scheduleMerges();
+                notifyAll();
+            }
+        }
+    }
+
+    // Merges adjacent segments into a new segment, and swaps it in for them.
+    private void merge(List<Segment> group) throws IOException {
+        String name;
+        synchronized (this) {
+            name = segmentName(nextSegment++);
+        }
+        Path mergedDir = Files.createDirectory(dir.resolve(name));
+        int docBase = group.get(0).docBase;
+        boolean positional = true;
+        for (Segment segment : group) positional &= segment.reader.hasPositions();
+
+        Segment merged;
+        try {
+            // The postings of every segment, with docIDs relative to the merged segment.
+            List<PostingStream> streams = new ArrayList<>();
+            for (Segment segment : group) {
+                streams.add(new SegmentPostings(segment.reader, segment.docBase - docBase, positional));
+            }
+            try (PostingStream postings = Util.Merge.merge(streams)) {
+                new InvertedIndexBuilder(postings, codec, new BuildMetrics(), mergedDir, positional).buildInvertedIndex();
+            }
+
+            try (PageTable table = new PageTable(mergedDir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString())) {
+                for (Segment segment : group) {
+                    try (PageTable.Reader reader = PageTable.open(segment.dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString())) {
+                        for (int docId = 1; docId <= reader.numDocs(); docId++) {
+                            table.addDoc(segment.docBase - docBase + docId, reader.url(docId), reader.docLength(docId));
+                        }
+                    }
+                }
+            }
+            merged = new Segment(dir, name, docBase);
+        } catch (IOException | RuntimeException e) {
+            deleteRecursively(mergedDir);
+            throw e;
+        }
+
+        synchronized (this) {
+            List<Segment> updated = new ArrayList<>(segments);
+            int at = updated.indexOf(group.get(0));
+            updated.subList(at, at + group.size()).clear();
+            updated.add(at, merged);
+            try {
+                writeManifest(updated);
+            } catch (IOException e) {
+                merged.retire();
+                throw e;
+            }
+            segments.clear();
+            segments.addAll(updated);
+        }
+        for (Segment segment : group) segment.retire();
+    }
+
+    private static String segmentName(int number) {
+        return String.format("seg_%06d", number);
+    }
+
+    private static int numDocs(List<Segment> segments) {
+        if (segments.isEmpty()) return 0;
+        Segment last = segments.get(segments.size() - 1);
+        return last.docBase + last.numDocs;
+    }
+
+    // Replaces the manifest in one step: it is written to a temporary file, synced, and moved over the old one.
+    private void writeManifest(List<Segment> live) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(MANIFEST_VERSION).append('\n');
+        text.append("next ").append(nextSegment).append('\n');
+        for (Segment segment : live) {
+            text.append(segment.name).append(' ').append(segment.docBase).append(' ').append(segment.numDocs).append('\n');
+        }
+
+        Path tmp = dir.resolve(MANIFEST_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+            while (bytes.hasRemaining()) out.write(bytes);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Segment directories the manifest does not list are left over from an add or merge that did not finish,
+    // or were merged away while a snapshot still used them.
+    private void deleteUnlisted() throws IOException {
+        Set<String> listed = new HashSet<>();
+        for (Segment segment : segments) listed.add(segment.name);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "seg_*")) {
+            for (Path entry : entries) {
+                if (!listed.contains(entry.getFileName().toString())) deleteRecursively(entry);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) deleteRecursively(entry);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    // The segments listed in a manifest.
+    private static class Manifest {
+        int nextSegment = 1;
+        final List<Entry> entries = new ArrayList<>();
+
+        static class Entry {
+            final String name;
+            final int docBase;
+            final int numDocs;
+
+            Entry(String name, int docBase, int numDocs) {
+                this.name = name;
+                this.docBase = docBase;
+                this.numDocs = numDocs;
+            }
+        }
+
+        // An index without a manifest has no segments yet.
+        static Manifest read(Path dir) throws IOException {
+            Manifest manifest = new Manifest();
+            Path file = dir.resolve(MANIFEST_FILE);
+            if (!Files.exists(file)) return manifest;
+
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() < 2 || !lines.get(0).equals(MANIFEST_VERSION) || !lines.get(1).startsWith("next ")) {
+                throw new IOException("Not a segment manifest: " + file);
+            }
+            manifest.nextSegment = Integer.parseInt(lines.get(1).substring("next ".length()));
+            for (String line : lines.subList(2, lines.size())) {
+                String[] fields = line.split(" ");
+                manifest.entries.add(new Entry(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+            return manifest;
+        }
+    }
+
+    // An open segment, shared by the index and the snapshots that use it. Closed once the last of them releases it.
+    private static class Segment {
+        final String name;
+        final Path dir;
+        final int docBase;
+        final int numDocs;
+        final IndexReader reader;
+        final int[] docLengths;  // Indexed by the segment's own docIDs
+
+        boolean merging;  // Guarded by the SegmentIndex
+        private int refs = 1;
+        private boolean retired;
+
+        Segment(Path indexDir, String name, int docBase) throws IOException {
+            this(indexDir, name, docBase, null);
+        }
+
+        Segment(Path indexDir, String name, int docBase, BlockCache blockCache) throws IOException {
+            this.name = name;
+            this.dir = indexDir.resolve(name);
+            this.docBase = docBase;
+            this.docLengths = PageTable.readDocLengths(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+            this.numDocs = docLengths.length - 1;
+            this.reader = new IndexReader(dir, blockCache);
+        }
+
+        // A segment listed in a manifest, which must agree with its page table.
+        static Segment open(Path indexDir, Manifest.Entry entry, BlockCache blockCache) throws IOException {
+            Segment segment = new Segment(indexDir, entry.name, entry.docBase, blockCache);
+            if (segment.numDocs != entry.numDocs) {
+                segment.release();
+                throw new IOException("Segment " + entry.name + " has " + segment.numDocs + " documents, the manifest lists " + entry.numDocs);
+            }
+            return segment;
+        }
+
+        synchronized void retain() {
+            refs++;
+        }
+
+        // Drops the index's reference; the files are deleted once the snapshots using it are closed.
+        void retire() throws IOException {
+            synchronized (this) {
+                retired = true;
+            }
+            release();
+        }
+
+        void release() throws IOException {
+            boolean last;
+            boolean delete;
+            synchronized (this) {
+                last = --refs == 0;
+                delete = retired;
+            }
+            if (last) {
+                reader.close();
+                if (delete) deleteRecursively(dir);
+            }
+        }
+    }
+
+    // The postings of a segment in term and docID order, with docIDs shifted by shift, and positions if asked for.
+    private static class SegmentPostings implements PostingStream {
+        private final IndexReader reader;
+        private final Iterator<Lexicon.LexiconEntry> terms;
+        private final int shift;
+        private final boolean withPositions;
+        private String term;
+        private ListCursor cursor;
+        private int[] positions;
+
+        SegmentPostings(IndexReader reader, int shift, boolean withPositions) {
+            this.reader = reader;
+            this.terms = reader.lexicon().range(null, null);
+            this.shift = shift;
+            this.withPositions = withPositions;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (cursor == null || cursor.next() == ListCursor.END) {
+                if (!terms.hasNext()) return false;
+                term = terms.next().term;
+                cursor = reader.open(term);
+            }
+            if (withPositions) positions = cursor.positions();
+            return true;
+        }
+
+        @Override
+        public int[] positions() {
+            return positions;
+        }
+
+        @Override
+        public String term() {
+            return term;
+        }
+
+        @Override
+        public long docId() {
+            return cursor.docId() + shift;
+        }
+
+        @Override
+        public long freq() {
+            return cursor.freq();
+        }
+
+        @Override
+        public void close() {
+            // The reader belongs to the segment.
+        }
+    }
+
+    /* The segments of the index at one point in time, searched as one index with global docIDs: a term's
+     * cursor concatenates its lists in every segment, each shifted by the segment's docID base. */
+    public static class Snapshot implements TermIndex, Closeable {
+        private final List<Segment> segments;
+        private Bm25 bm25;
+        private boolean closed;
+
+        private Snapshot(List<Segment> segments) {
+            this.segments = segments;
+        }
+
+        public int numDocs() {
+            return SegmentIndex.numDocs(segments);
+        }
+
+        @Override
+        public ListCursor open(String term) throws IOException {
+            ListCursor[] parts = new ListCursor[segments.size()];
+            int[] docBases = new int[segments.size()];
+            int numParts = 0;
+            for (Segment segment : segments) {
+                ListCursor cursor = segment.reader.open(term);
+                if (cursor != null) {
+                    parts[numParts] = cursor;
+                    docBases[numParts++] = segment.docBase;
+                }
+            }
+            if (numParts == 0) return null;
+            if (numParts == 1 && docBases[0] == 0) return parts[0];
+            return new ListCursor(Arrays.copyOf(parts, numParts), Arrays.copyOf(docBases, numParts));
+        }
+
+        // Whether every segment has positions; a segment built without them cannot answer phrase queries.
+        @Override
+        public boolean hasPositions() {
+            for (Segment segment : segments) {
+                if (!segment.reader.hasPositions()) return false;
+            }
+            return true;
+        }
+
+        // BM25 over the whole snapshot: the document lengths of every segment, placed at its docID base.
+        public synchronized Bm25 bm25() {
+            if (bm25 == null) {
+                int[] docLengths = new int[numDocs() + 1];
+                for (Segment segment : segments) {
+                    System.arraycopy(segment.docLengths, 1, docLengths, segment.docBase + 1, segment.numDocs);
+                }
+                bm25 = new Bm25(docLengths);
+            }
+            return bm25;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            for (Segment segment : segments) segment.release();
+        }
+    }
+}
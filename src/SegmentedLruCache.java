@@ -0,0 +1,174 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntBiFunction;
+
+/* Thread-safe cache bounded by the total weight of its entries, usually their size in bytes, that evicts
+ * with segmented LRU. A new entry goes into the probationary segment and moves to the protected segment when
+ * it is hit. The protected segment holds at most PROTECTED_SHARE of the capacity; its least recently used
+ * entries fall back to the probationary segment, whose least recently used entries are evicted.
+
+		   put ──► probation ──hit──► protected
+		              │      ◄──overflow──┘
+		              ▼
+		           evicted
+
+ * An entry used once pushes out the entries used repeatedly only when nothing else is left in probation, so on
+ * a skewed query log the long tail of rare terms does not flush the popular ones, and a new entry that fits a
+ * stripe is always admitted. The keys are spread over stripes, each locked on its own and holding its share of
+ * the capacity, so that threads using different keys rarely wait on each other. */
+public class SegmentedLruCache<K, V> {
+
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe<K, V>[] stripes;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SegmentedLruCache(long capacity, ToIntBiFunction<? super K, ? super V> weigher) {
+        this(capacity, DEFAULT_STRIPES, weigher);
+    }
+
+    // The weigher gives the weight of an entry; stripes must be a power of two.
+    public SegmentedLruCache(long capacity, int stripes, ToIntBiFunction<? super K, ? super V> weigher) {
+        if (stripes < 1 || Integer.bitCount(stripes) != 1) throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+        @SuppressWarnings("unchecked")  // Holds only stripes of K and V
+        Stripe<K, V>[] array = (Stripe<K, V>[]) new Stripe<?, ?>[stripes];
+        this.stripes = array;
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe<>(capacity / stripes);
+        }
+        this.weigher = weigher;
+    }
+
+    // The cached value, or null.
+    public V get(K key) {
+        V value = stripe(key).get(key);
+        if (value == null) misses.increment();
+        else hits.increment();
+        return value;
+    }
+
+    // Adds or replaces the entry. An entry heavier than the share of a stripe is not kept.
+    public void put(K key, V value) {
+        int evicted = stripe(key).put(key, value, weigher.applyAsInt(key, value));
+        if (evicted > 0) evictions.add(evicted);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Share of the lookups that were hits; 0 before the first lookup.
+    public double hitRate() {
+        long hits = hits();
+        long lookups = hits + misses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    // Total weight of the entries.
+    public long weight() {
+        long weight = 0;
+        for (Stripe<K, V> stripe : stripes) weight += stripe.weight();
+        return weight;
+    }
+
+    public String stats() {
+        return String.format("%d hits, %d misses, hit rate %.1f%%, %d evictions, weight %d",
+                hits(), misses(), 100 * hitRate(), evictions(), weight());
+    }
+
+    private Stripe<K, V> stripe(K key) {
+        // Fibonacci hashing, so keys whose hash codes differ only in their high bits still spread
+        return stripes[(key.hashCode() * 0x9E3779B9 >>> 16) & (stripes.length - 1)];
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Stripe<K, V> {
+        private final long capacity;
+        private final long protectedCapacity;
+
+        // Both in access order, least recently used first.
+        private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Entry<V>> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationWeight;
+        private long protectedWeight;
+
+        Stripe(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        }
+
+        synchronized V get(K key) {
+            Entry<V> entry = protect.get(key);
+            if (entry != null) return entry.value;
+
+            entry = probation.remove(key);
+            if (entry == null) return null;
+            probationWeight -= entry.weight;
+            protect.put(key, entry);
+            protectedWeight += entry.weight;
+
+            // Demote the least recently used protected entries; the total weight is unchanged.
+            Iterator<Map.Entry<K, Entry<V>>> eldest = protect.entrySet().iterator();
+            while (protectedWeight > protectedCapacity) {
+                Map.Entry<K, Entry<V>> demoted = eldest.next();
+                eldest.remove();
+                protectedWeight -= demoted.getValue().weight;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationWeight += demoted.getValue().weight;
+            }
+            return entry.value;
+        }
+
+        // Returns the number of entries evicted.
+        synchronized int put(K key, V value, int weight) {
+            Entry<V> old = probation.remove(key);
+            if (old != null) probationWeight -= old.weight;
+            old = protect.remove(key);
+            if (old != null) protectedWeight -= old.weight;
+            if (weight > capacity) return 0;
+
+            probation.put(key, new Entry<>(value, weight));
+            probationWeight += weight;
+
+            int evicted = 0;
+            while (probationWeight + protectedWeight > capacity) {
+                // Probation goes first, but never the new entry: it fits on its own, so once it is all that is
+                // left of probation the least recently used protected entries make room for it.
+                boolean fromProbation = probation.size() > 1;
+                Iterator<Map.Entry<K, Entry<V>>> eldest = (fromProbation ? probation : protect).entrySet().iterator();
+                int evictedWeight = eldest.next().getValue().weight;
+                eldest.remove();
+                if (fromProbation) probationWeight -= evictedWeight;
+                else protectedWeight -= evictedWeight;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized long weight() {
+            return probationWeight + protectedWeight;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A document-partitioned index. The input is dealt out round-robin to numShards shards, each a complete index
+ * of its documents, built concurrently from a single read of the input (see PostingBuilder.Splitter). Shard s
+ * holds the documents s + 1, s + 1 + numShards, s + 1 + 2 * numShards, ... of the input as its documents
+ * 1, 2, 3, ..., so global docIDs are those a single index of the input would use.
+
+		   <dir>/
+		   ├── shards        manifest: version, then the number of documents of each shard
+		   ├── shard_000/    invertedIndex, lexicon, pageTable, buildReport.json
+		   └── shard_001/
+
+ * Searches go through the coordinator, which scatters each query to the shards and gathers their answers.
+ * Every shard is served by a thread of its own, standing in for a node, and only sees its own files. Ranking
+ * takes two rounds: the shards first report the document frequencies of the query terms, which the
+ * coordinator sums, then score their documents with those and the document count and average length of the
+ * whole collection. A document thus gets the score a single index would give it, and the global top k is
+ * found among the top k of every shard.
+
+		   coordinator ──terms──▶ shard 0..n-1 ──df──▶ Σ df ──terms, df──▶ shard 0..n-1 ──top k──▶ merged top k
+ */
+public class ShardedIndex implements Closeable {
+
+    static final String MANIFEST_FILE = "shards";
+    private static final String MANIFEST_VERSION = "shards 1";
+
+    // Orders a merged top k: higher score first, then lower docID, as Ranker does.
+    private static final Comparator<Ranker.ScoredDocument> BEST_FIRST = Comparator
+            .comparingDouble((Ranker.ScoredDocument d) -> -d.score)
+            .thenComparingInt(d -> d.docId);
+
+    private final List<Shard> shards;
+    private final int numDocs;
+
+    private ShardedIndex(List<Shard> shards) {
+        this.shards = shards;
+
+        int total = 0;
+        long totalLength = 0;
+        for (Shard shard : shards) {
+            total += shard.docLengths.length - 1;
+            totalLength += Bm25.totalLength(shard.docLengths);
+        }
+        this.numDocs = total;
+        for (Shard shard : shards) {
+            shard.ranker = new Ranker(shard.reader, new Bm25(shard.docLengths, total, totalLength));
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[1].equals("build") && args.length == 3 || args[1].equals("list"))) {
+            System.err.println("Usage: java ShardedIndex <index_dir> <build <input_file> | list>");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+
+        try {
+            if (args[1].equals("build")) {
+                // -Dindex.shards=N sets the number of shards, by default one per processor;
+                // -Dindex.codec and -Dindex.positions apply to every shard, as in Run
+                int numShards = Integer.getInteger("index.shards", Runtime.getRuntime().availableProcessors());
+                PostingCodec codec = PostingCodec.forName(System.getProperty("index.codec", "varbyte"));
+                long start = System.nanoTime();
+                int numDocs = build(args[2], dir, numShards, codec, Boolean.getBoolean("index.positions"), MemoryBudget.fromProperties());
+                System.out.println("Built " + numShards + " shards of " + numDocs + " documents in "
+                        + Math.round((System.nanoTime() - start) / 1e6) / 1000.0 + " s");
+            }
+
+            try (ShardedIndex index = open(dir)) {
+                for (Shard shard : index.shards) {
+                    System.out.println(shardName(shard.number) + "  " + (shard.docLengths.length - 1) + " documents");
+                }
+                System.out.println(index.shards.size() + " shards, " + index.numDocs() + " documents");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("An error occurred while building the sharded index: " + e.getMessage());
+        }
+    }
+
+    /* Builds the input into numShards shards in dir, which must not hold a sharded index yet, and returns the
+     * number of documents. The shards share the parser and index threads equally, and each gets a budget of
+     * its own for an equal share of the memory, since the builders of a budget account for a single build. Each
+     * shard writes its build report into its directory. The manifest is written last, once every shard is complete. */
+    public static int build(String inputFile, Path dir, int numShards, PostingCodec codec, boolean positions, MemoryBudget budget)
+            throws IOException {
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve(MANIFEST_FILE))) throw new IOException("Directory already holds a sharded index: " + dir);
+
+        int parserThreads = Math.max(1, Integer.getInteger("index.parserThreads", Runtime.getRuntime().availableProcessors()) / numShards);
+        int indexThreads = Math.max(1, Integer.getInteger("index.indexThreads", Runtime.getRuntime().availableProcessors()) / numShards);
+        PostingBuilder.Splitter splitter = new PostingBuilder.Splitter(inputFile, numShards, new AtomicLong());
+
+        ExecutorService threads = Executors.newFixedThreadPool(numShards + 1, task -> {
+            Thread thread = new Thread(task, "shard-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletionService<Integer> done = new ExecutorCompletionService<>(threads);
+            done.submit(() -> {
+                splitter.call();
+                return 0;
+            });
+            List<Future<Integer>> builds = new ArrayList<>();
+            for (int i = 0; i < numShards; i++) {
+                int shard = i;
+                Path shardDir = Files.createDirectories(dir.resolve(shardName(shard)));
+                MemoryBudget shardBudget = new MemoryBudget(Math.max(1, budget.bytes() / numShards));
+                builds.add(done.submit(() -> buildShard(splitter, shard, shardDir, shardBudget, parserThreads, indexThreads, codec, positions)));
+            }
+
+            // Wait in order of completion, so that the first failure stops the splitter and the other shards.
+            for (int i = 0; i <= numShards; i++) {
+                await(done.take());
+            }
+            int[] shardDocs = new int[numShards];
+            for (int i = 0; i < numShards; i++) {
+                shardDocs[i] = await(builds.get(i));
+            }
+            writeManifest(dir, shardDocs);
+            return Arrays.stream(shardDocs).sum();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building shards");
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    // Parse, merge and index stages of one shard, as Run goes through them. Returns the shard's number of documents.
+    private static int buildShard(PostingBuilder.Splitter splitter, int shard, Path shardDir, MemoryBudget budget, int parserThreads,
+                                  int indexThreads, PostingCodec codec, boolean positions) throws IOException {
+        try (BuildMetrics metrics = new BuildMetrics()) {
+            metrics.startStage("parse");
+            int numRuns = splitter.shard(shard, budget, parserThreads, metrics, shardDir, positions).build();
+            metrics.startStage("merge");
+            try (PostingStream postings = Util.Merge.sortMerge(shardDir, numRuns, budget, metrics)) {
+                metrics.startStage("index");
+                new InvertedIndexBuilder(postings, codec, metrics, shardDir, positions, indexThreads).buildInvertedIndex();
+            }
+            metrics.endStage();
+            metrics.writeReport(shardDir.resolve("buildReport.json").toString());
+            return (int) metrics.documents.get();
+        }
+    }
+
+    // Opens the shards listed in the manifest of dir for searching.
+    public static ShardedIndex open(Path dir) throws IOException {
+        return open(dir, null);
+    }
+
+    // Decoded blocks of every shard are cached in blockCache; null caches nothing.
+    public static ShardedIndex open(Path dir, BlockCache blockCache) throws IOException {
+        int[] shardDocs = readManifest(dir);
+        List<Shard> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < shardDocs.length; i++) {
+                Shard shard = new Shard(i, shardDocs.length, dir.resolve(shardName(i)), blockCache);
+                opened.add(shard);
+                if (shard.docLengths.length - 1 != shardDocs[i]) {
+                    throw new IOException("Shard " + i + " has " + (shard.docLengths.length - 1) + " documents, the manifest lists " + shardDocs[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Shard shard : opened) shard.close();
+            throw e;
+        }
+        return new ShardedIndex(opened);
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    // Whether every shard has positions, which phrase queries read.
+    public boolean hasPositions() {
+        for (Shard shard : shards) {
+            if (!shard.reader.hasPositions()) return false;
+        }
+        return true;
+    }
+
+    // The k highest scoring documents of the collection for the terms, best first, by global docID.
+    public List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException {
+        long[] df = new long[terms.size()];
+        for (long[] shardDf : scatter(shard -> shard.documentFrequencies(terms))) {
+            for (int i = 0; i < df.length; i++) df[i] += shardDf[i];
+        }
+
+        List<Ranker.ScoredDocument> merged = new ArrayList<>();
+        for (List<Ranker.ScoredDocument> shardTop : scatter(shard -> shard.topK(terms, df, k))) {
+            merged.addAll(shardTop);
+        }
+        merged.sort(BEST_FIRST);
+        return new ArrayList<>(merged.subList(0, Math.min(k, merged.size())));
+    }
+
+    // Global docIDs of the documents matching an "and", "or" or "phrase" query, in increasing order.
+    public int[] docIds(String mode, List<String> terms) throws IOException {
+        List<int[]> parts = scatter(shard -> shard.docIds(mode, terms));
+        int[] docIds = new int[parts.stream().mapToInt(part -> part.length).sum()];
+        int n = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, docIds, n, part.length);
+            n += part.length;
+        }
+        Arrays.sort(docIds);  // Every shard's docIDs are spread over the whole range
+        return docIds;
+    }
+
+    // Run a call on every shard's own thread, and gather the answers in shard order.
+    private <T> List<T> scatter(ShardCall<T> call) throws IOException {
+        List<Future<T>> answers = new ArrayList<>();
+        for (Shard shard : shards) {
+            answers.add(shard.node.submit(() -> call.apply(shard)));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> answer : answers) {
+                results.add(await(answer));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the shards");
+        }
+        return results;
+    }
+
+    // Wait for a background task, rethrowing its failure.
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static String shardName(int number) {
+        return String.format("shard_%03d", number);
+    }
+
+    private static void writeManifest(Path dir, int[] shardDocs) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(MANIFEST_VERSION).append('\n');
+        for (int numDocs : shardDocs) {
+            text.append(numDocs).append('\n');
+        }
+
+        Path tmp = dir.resolve(MANIFEST_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+            while (bytes.hasRemaining()) out.write(bytes);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int[] readManifest(Path dir) throws IOException {
+        Path file = dir.resolve(MANIFEST_FILE);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.size() < 2 || !lines.get(0).equals(MANIFEST_VERSION)) throw new IOException("Not a shard manifest: " + file);
+        return lines.subList(1, lines.size()).stream().mapToInt(Integer::parseInt).toArray();
+    }
+
+    private interface ShardCall<T> {
+        T apply(Shard shard) throws IOException;
+    }
+
+    // One shard and the thread that serves it. Its answers carry global docIDs.
+    private static class Shard implements Closeable {
+        final int number;
+        final int numShards;
+        final IndexReader reader;
+        final int[] docLengths;  // Indexed by the shard's own docIDs
+        final ExecutorService node;
+        Ranker ranker;  // Set by the coordinator, which knows the statistics of the whole collection
+
+        Shard(int number, int numShards, Path dir, BlockCache blockCache) throws IOException {
+            this.number = number;
+            this.numShards = numShards;
+            this.docLengths = PageTable.readDocLengths(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+            this.reader = new IndexReader(dir, blockCache);
+            this.node = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "shard-" + number);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        int globalDocId(int docId) {
+            return (docId - 1) * numShards + number + 1;
+        }
+
+        long[] documentFrequencies(List<String> terms) {
+            long[] df = new long[terms.size()];
+            for (int i = 0; i < df.length; i++) {
+                Lexicon.LexiconEntry entry = reader.lexicon().get(terms.get(i));
+                if (entry != null) df[i] = entry.numPosting;
+            }
+            return df;
+        }
+
+        List<Ranker.ScoredDocument> topK(List<String> terms, long[] df, int k) throws IOException {
+            List<Ranker.ScoredDocument> top = new ArrayList<>();
+            for (Ranker.ScoredDocument doc : ranker.topK(terms, df, k, Ranker.Strategy.BLOCK_MAX_WAND)) {
+                top.add(new Ranker.ScoredDocument(globalDocId(doc.docId), doc.score));
+            }
+            return top;
+        }
+
+        int[] docIds(String mode, List<String> terms) throws IOException {
+            QueryProcessor processor = new QueryProcessor(reader);
+            int[] docIds;
+            if (mode.equals("phrase")) docIds = processor.phrase(terms);
+            else if (mode.equals("and")) docIds = processor.conjunctive(terms);
+            else docIds = processor.disjunctive(terms);
+            for (int i = 0; i < docIds.length; i++) {
+                docIds[i] = globalDocId(docIds[i]);
+            }
+            return docIds;
+        }
+
+        @Override
+        public void close() throws IOException {
+            node.shutdownNow();
+            reader.close();
+        }
+    }
+}
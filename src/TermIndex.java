@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+// An index that inverted lists can be read from: a single IndexReader, or a snapshot of a SegmentIndex.
+public interface TermIndex {
+
+    // Opens a cursor over the inverted list of a term, or returns null if the term is not in the index.
+    ListCursor open(String term) throws IOException;
+
+    // Whether the lists have positions, which phrase queries read.
+    boolean hasPositions();
+}
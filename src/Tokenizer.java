@@ -0,0 +1,56 @@
+/* Splits text into lower-cased terms without regular expressions or per-token allocation.
+ * Produces exactly the tokens of the pattern \w+|%\d+|\$\d+ (ASCII classes, as in java.util.regex by default),
+ * lower-cased. Every other character, including any non-ASCII character, separates tokens.
+ * An instance reuses its character buffer and is not thread-safe. */
+public class Tokenizer {
+
+    // Receives each token as a slice of a reused buffer. The slice is only valid during the call.
+    public interface TokenSink {
+        void accept(char[] buf, int start, int length);
+    }
+
+    private char[] buf = new char[1024];
+
+    // Tokenize a line, passing each lower-cased token to the sink.
+    public void tokenize(String line, TokenSink sink) {
+        int length = line.length();
+        if (buf.length < length) {
+            buf = new char[Math.max(length, buf.length * 2)];
+        }
+        line.getChars(0, length, buf, 0);
+        tokenize(buf, 0, length, sink);
+    }
+
+    // Tokenize buf[start, end), lower-casing the tokens in place.
+    public static void tokenize(char[] buf, int start, int end, TokenSink sink) {
+        int i = start;
+        while (i < end) {
+            char c = buf[i];
+            if (isWordChar(c)) {
+                // \w+
+                int tokenStart = i;
+                do {
+                    if (c >= 'A' && c <= 'Z') buf[i] = (char) (c + ('a' - 'A'));
+                    i++;
+                } while (i < end && isWordChar(c = buf[i]));
+                sink.accept(buf, tokenStart, i - tokenStart);
+            } else if ((c == '%' || c == '$') && i + 1 < end && isDigit(buf[i + 1])) {
+                // %\d+ and \$\d+
+                int tokenStart = i;
+                i += 2;
+                while (i < end && isDigit(buf[i])) i++;
+                sink.accept(buf, tokenStart, i - tokenStart);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
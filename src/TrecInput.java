@@ -0,0 +1,431 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/* Opens the input of a build, so that reading and decompressing it keep up with parsing.
+
+		   plain text, single-member gzip:
+		   file ──► read-ahead thread ──► (GZIPInputStream) ──► reader
+
+		   multi-member gzip (concatenated files, bgzip):
+		   file ──► splitter thread ──► ranges of whole members ──► inflater pool ──► chunks, in order ──► reader
+
+ * The read-ahead thread reads the file through a FileChannel in large reads, a few reads ahead of the
+ * consumer. A file made of several gzip members can be inflated in parallel instead: the splitter reads it
+ * the same way and cuts it into ranges at member headers, which the inflaters decode independently. A byte
+ * sequence that looks like a member header can occur inside compressed data, so a range only counts once
+ * its members have decoded exactly to its end with matching CRCs. Ranges are checked in file order, and the
+ * end of a valid range is a true member boundary, so the next range starts at one too. If a range fails
+ * (the cut was not a header, or a member is longer than MAX_RANGE_SIZE), the rest of the file is streamed
+ * from the start of that range. */
+public class TrecInput {
+
+    // Size of the reads from the file, and how many of them the read-ahead thread may be ahead by.
+    private static final int READ_SIZE = 4 << 20;
+    private static final int READS_AHEAD = 4;
+
+    // A range is cut at the first member header past RANGE_SIZE bytes, or at MAX_RANGE_SIZE if there is none.
+    private static final int RANGE_SIZE = 1 << 20;
+    private static final int MAX_RANGE_SIZE = 16 << 20;
+
+    // Bytes searched for a second member header to tell multi-member files.
+    private static final int PROBE_SIZE = 16 << 20;
+
+    private static final int CHAR_BUFFER_SIZE = 1 << 16;
+
+    // -Dindex.inputThreads=N inflates multi-member gzip input on N threads; 1 always streams it
+    private static final int INPUT_THREADS = Integer.getInteger("index.inputThreads", Runtime.getRuntime().availableProcessors());
+
+    // Gzip header flags.
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private TrecInput() {
+    }
+
+    // Reader over a .trec or .trec.gz file. bytesRead counts the bytes read from the file, before decompression.
+    public static BufferedReader open(String filePath, AtomicLong bytesRead) throws IOException {
+        Path file = Paths.get(filePath);
+        if (!filePath.endsWith(".gz")) {
+            InputStream in = new Util.CountingInputStream(new ReadAheadInputStream(file, 0), bytesRead);
+            return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), CHAR_BUFFER_SIZE);
+        }
+
+        InputStream in;
+        if (INPUT_THREADS > 1 && isMultiMember(file)) {
+            in = new ParallelGzipInputStream(file, INPUT_THREADS, bytesRead);
+        } else {
+            in = new GZIPInputStream(new Util.CountingInputStream(new ReadAheadInputStream(file, 0), bytesRead), CHAR_BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), CHAR_BUFFER_SIZE);
+    }
+
+    // Whether a second gzip member header follows the first one within the first PROBE_SIZE bytes.
+    private static boolean isMultiMember(Path file) throws IOException {
+        byte[] probe;
+        int length;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(PROBE_SIZE, channel.size()));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Fill the probe
+            }
+            probe = buffer.array();
+            length = buffer.position();
+        }
+        if (!isHeader(probe, 0, length)) return false;
+        for (int p = 1; p < length; p++) {
+            if (isHeader(probe, p, length)) return true;
+        }
+        return false;
+    }
+
+    // Whether a gzip member header can start at p: the magic bytes, deflate, no reserved flags, and known XFL and OS values.
+    static boolean isHeader(byte[] in, int p, int end) {
+        if (end - p < 10 || in[p] != 0x1f || in[p + 1] != (byte) 0x8b || in[p + 2] != 8 || (in[p + 3] & 0xe0) != 0) return false;
+        int xfl = in[p + 8] & 0xff;
+        int os = in[p + 9] & 0xff;
+        return (xfl == 0 || xfl == 2 || xfl == 4) && (os <= 13 || os == 255);
+    }
+
+    // Length of the member header at p, or -1 if there is none or it does not fit before end.
+    static int headerLength(byte[] in, int p, int end) {
+        if (!isHeader(in, p, end)) return -1;
+        int flags = in[p + 3];
+        int q = p + 10;
+        if ((flags & FEXTRA) != 0) {
+            if (end - q < 2) return -1;
+            q += 2 + ((in[q] & 0xff) | (in[q + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            while (q < end && in[q] != 0) q++;
+            q++;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (q < end && in[q] != 0) q++;
+            q++;
+        }
+        if ((flags & FHCRC) != 0) q += 2;
+        return q <= end ? q - p : -1;
+    }
+
+    private static int readIntLE(byte[] in, int p) {
+        return (in[p] & 0xff) | (in[p + 1] & 0xff) << 8 | (in[p + 2] & 0xff) << 16 | (in[p + 3] & 0xff) << 24;
+    }
+
+    /* Reads a file from a position on a background thread, READ_SIZE bytes at a time into direct buffers,
+     * at most READS_AHEAD reads ahead of the consumer. Closing it stops the thread. */
+    static class ReadAheadInputStream extends InputStream {
+        private final FileChannel channel;
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(READS_AHEAD);
+        private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(READS_AHEAD + 2);
+        private final Thread reader;
+        private volatile IOException failure;
+
+        private ByteBuffer current;
+        private boolean ended;
+
+        ReadAheadInputStream(Path file, long position) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            channel.position(position);
+            // Enough buffers for a full queue, the one being read into and the one being consumed
+            for (int i = 0; i < READS_AHEAD + 2; i++) free.add(ByteBuffer.allocateDirect(READ_SIZE));
+            reader = new Thread(this::readAhead, "input-read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Runs on the reader thread. An empty buffer marks the end of the file, or a failed read.
+        private void readAhead() {
+            try {
+                boolean more;
+                do {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear();
+                    try {
+                        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                            // Fill the buffer
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        buffer.clear();
+                    }
+                    buffer.flip();
+                    more = buffer.hasRemaining();  // Once queued, the buffer is the consumer's, which may have read it
+                    filled.put(buffer);
+                } while (more);
+            } catch (InterruptedException e) {
+                // Closed by the consumer
+            }
+        }
+
+        // Waits until the current buffer has data. Returns false at the end of the file.
+        private boolean fill() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (ended) return false;
+                if (current != null) free.add(current);
+                try {
+                    current = filled.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading the input");
+                }
+                if (!current.hasRemaining()) {
+                    ended = true;
+                    if (failure != null) throw failure;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? current.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        /* GZIPInputStream only looks for another member after a trailer when available() is positive, so
+         * at a buffer boundary this waits for the next read instead of reporting 0. */
+        @Override
+        public int available() throws IOException {
+            return fill() ? current.remaining() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Decompressed stream of a multi-member gzip file, inflated in parallel; see the top of the class.
+    static class ParallelGzipInputStream extends InputStream {
+        private static final Chunk END = new Chunk(-1, 0);
+
+        private final Path file;
+        private final AtomicLong bytesRead;
+        private final ExecutorService inflaters;
+        private final Thread splitter;
+        // Ranges in file order, bounded so that the splitter cannot run too far ahead. END marks the end.
+        private final BlockingQueue<Future<Chunk>> ranges;
+
+        private Chunk current;
+        private int pos;
+        private boolean ended;
+        private InputStream fallback;  // Streams the rest of the file once a range has failed
+
+        ParallelGzipInputStream(Path file, int threads, AtomicLong bytesRead) {
+            this.file = file;
+            this.bytesRead = bytesRead;
+            this.ranges = new ArrayBlockingQueue<>(threads * 2);
+            this.inflaters = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "input-inflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.splitter = new Thread(this::split, "input-splitter");
+            splitter.setDaemon(true);
+            splitter.start();
+        }
+
+        // Runs on the splitter thread: reads the file and submits its ranges.
+        private void split() {
+            long start = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                byte[] range = new byte[RANGE_SIZE + READ_SIZE];
+                int length = 0;
+                int scanFrom = RANGE_SIZE;  // Where the search for the next cut goes on
+                while (true) {
+                    if (range.length - length < READ_SIZE) range = Arrays.copyOf(range, length + READ_SIZE);
+                    int n = channel.read(ByteBuffer.wrap(range, length, READ_SIZE));
+                    if (n < 0) break;
+                    length += n;
+
+                    // Cut the range at the first member header past RANGE_SIZE, or at MAX_RANGE_SIZE.
+                    int cut = -1;
+                    for (int p = scanFrom; p < length && cut < 0; p++) {
+                        if (isHeader(range, p, length)) cut = p;
+                    }
+                    if (cut < 0 && length >= MAX_RANGE_SIZE) cut = length;
+                    if (cut < 0) {
+                        // A header may start in the last bytes, once more of it is read
+                        scanFrom = Math.max(RANGE_SIZE, length - 9);
+                        continue;
+                    }
+
+                    byte[] next = new byte[Math.max(RANGE_SIZE + READ_SIZE, length - cut + READ_SIZE)];
+                    System.arraycopy(range, cut, next, 0, length - cut);
+                    submit(start, range, cut);
+                    start += cut;
+                    range = next;
+                    length -= cut;
+                    scanFrom = RANGE_SIZE;
+                }
+                if (length > 0) submit(start, range, length);
+                ranges.put(CompletableFuture.completedFuture(END));
+            } catch (IOException e) {
+                // Reported by the fallback, which reads the file again from the failed range
+                try {
+                    ranges.put(CompletableFuture.completedFuture(new Chunk(start, 0)));
+                } catch (InterruptedException interrupted) {
+                    // Closed by the consumer
+                }
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // Closed by the consumer
+            }
+        }
+
+        private void submit(long start, byte[] range, int length) throws InterruptedException {
+            ranges.put(inflaters.submit(() -> inflate(start, range, length)));
+        }
+
+        // Decodes the members of a range. The chunk is only valid if they end exactly at the end of the range.
+        private static Chunk inflate(long start, byte[] in, int length) {
+            Chunk chunk = new Chunk(start, length);
+            byte[] out = new byte[Math.max(4 * length, 1 << 16)];
+            int size = 0;
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            try {
+                int p = 0;
+                while (p < length) {
+                    int header = headerLength(in, p, length);
+                    if (header < 0) return chunk;
+                    inflater.reset();
+                    inflater.setInput(in, p + header, length - p - header);
+
+                    int memberStart = size;
+                    while (!inflater.finished()) {
+                        if (size == out.length) {
+                            if (out.length > Integer.MAX_VALUE / 2) return chunk;
+                            out = Arrays.copyOf(out, out.length * 2);
+                        }
+                        int n = inflater.inflate(out, size, out.length - size);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return chunk;  // The member goes on past the range
+                        size += n;
+                    }
+
+                    // Trailer: CRC32 and length of the member's data
+                    p = length - inflater.getRemaining();
+                    crc.reset();
+                    crc.update(out, memberStart, size - memberStart);
+                    if (length - p < 8 || readIntLE(in, p) != (int) crc.getValue() || readIntLE(in, p + 4) != size - memberStart) return chunk;
+                    p += 8;
+                }
+            } catch (DataFormatException e) {
+                return chunk;
+            } finally {
+                inflater.end();
+            }
+            chunk.data = out;
+            chunk.size = size;
+            return chunk;
+        }
+
+        // Makes sure the current chunk has data. Returns false at the end of the file, or once streaming.
+        private boolean fill() throws IOException {
+            while (fallback == null && (current == null || pos == current.size)) {
+                if (ended) return false;
+                Chunk chunk;
+                try {
+                    chunk = ranges.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading the input");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+
+                if (chunk == END) {
+                    ended = true;
+                } else if (chunk.data == null) {
+                    stop();
+                    fallback = new GZIPInputStream(new Util.CountingInputStream(new ReadAheadInputStream(file, chunk.start), bytesRead), CHAR_BUFFER_SIZE);
+                } else {
+                    bytesRead.addAndGet(chunk.length);
+                    current = chunk;
+                    pos = 0;
+                }
+            }
+            return fallback == null && !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (fill()) return current.data[pos++] & 0xff;
+            return fallback != null ? fallback.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return fallback != null ? fallback.read(b, off, len) : -1;
+            int n = Math.min(len, current.size - pos);
+            System.arraycopy(current.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        // Whether a range failed, so that the rest of the file is streamed.
+        boolean streaming() {
+            return fallback != null;
+        }
+
+        private void stop() {
+            splitter.interrupt();
+            inflaters.shutdownNow();
+            current = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stop();
+            try {
+                splitter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (fallback != null) fallback.close();
+        }
+
+        // The decoded members of a range of the file; data is null if they could not be decoded exactly.
+        private static class Chunk {
+            final long start;
+            final int length;  // Compressed bytes
+            byte[] data;
+            int size;
+
+            Chunk(long start, int length) {
+                this.start = start;
+                this.length = length;
+            }
+        }
+    }
+}
@@ -1,127 +1,542 @@
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Util {
     static class Merge {
-        public static String sortMerge(int numFiles) {
-            List<String> filesToMerge = new ArrayList<>();
 
-            /* Sort the contents of the postings file by the first field (term) alphanumerically.
-             * For lines that have the same term, it will sort them by the second field (docID) numerically.*/
-            List<String> sortCmd = new ArrayList<>(Arrays.asList("sort", "-k1,1", "-k2,2n"));
+        // Maximum number of runs merged in a single pass.
+        static final int DEFAULT_FAN_IN = 64;
 
+        // Name of the i-th run written by PostingBuilder.
+        public static String runFileName(int i) {
+            return String.format("postingList#%d", i);
+        }
+
+        public static PostingStream sortMerge(int numFiles) throws IOException {
+            return sortMerge(numFiles, DEFAULT_FAN_IN);
+        }
+
+        public static PostingStream sortMerge(int numFiles, int fanIn) throws IOException {
+            return sortMerge(Paths.get(""), numFiles, fanIn, new BuildMetrics());
+        }
+
+        /* Merge the runs written by PostingBuilder, which are already sorted in memory before they are spilled.
+         * If there are more runs than fanIn, intermediate passes merge groups of fanIn runs until
+         * at most fanIn remain. The last pass is not written to disk: it is returned as a stream,
+         * ordered by term and then by docID, and deletes its input files when closed. That pass runs ahead
+         * on its own thread, so merging overlaps with the consumer of the stream. */
+        public static PostingStream sortMerge(Path dir, int numFiles, int fanIn, BuildMetrics metrics) throws IOException {
+            if (fanIn < 2) throw new IllegalArgumentException("Merge fan-in must be at least 2: " + fanIn);
+
+            List<Path> runs = new ArrayList<>();
+            for (int i = 1; i <= numFiles; i++) {
+                runs.add(dir.resolve(runFileName(i)));
+            }
+
+            metrics.mergeStarted(fanIn);
+            int pass = 0;
+            while (runs.size() > fanIn) {
+                runs = mergePass(dir, runs, fanIn, ++pass, metrics);
+            }
+            metrics.mergePass(0); // The final pass is streamed, not written
+            return new ReadAheadStream(MergeStream.ofRuns(runs));
+        }
+
+        /* As above, but the fan-in is chosen before each pass from the memory budget: as many runs as the
+         * budget can hold the readers of. Runs with small dictionaries are merged in one pass, and only
+         * large ones take several. */
+        public static PostingStream sortMerge(Path dir, int numFiles, MemoryBudget budget, BuildMetrics metrics) throws IOException {
+            List<Path> runs = new ArrayList<>();
             for (int i = 1; i <= numFiles; i++) {
-                // The posting file to be sorted using Unix sort
-                String fileToSort = String.format("postingList#%d", i);
-//                System.out.println("======== Start Unix Sort " + fileToSort + " ========");
+                runs.add(dir.resolve(runFileName(i)));
+            }
+
+            int fanIn = budget.fanIn(runs);
+            metrics.mergeStarted(fanIn);
+            int pass = 0;
+            while (runs.size() > fanIn) {
+                runs = mergePass(dir, runs, fanIn, ++pass, metrics);
+                fanIn = budget.fanIn(runs);
+            }
+            metrics.mergePass(0); // The final pass is streamed, not written
+            return new ReadAheadStream(MergeStream.ofRuns(runs));
+        }
+
+        // Merge streams that are each ordered by term and then by docID. Closing the merge closes them.
+        public static PostingStream merge(List<PostingStream> streams) throws IOException {
+            return MergeStream.of(streams);
+        }
+
+        // Merge groups of fanIn sorted runs into larger sorted runs.
+        private static List<Path> mergePass(Path dir, List<Path> runs, int fanIn, int pass, BuildMetrics metrics) throws IOException {
+            List<Path> merged = new ArrayList<>();
+            long bytesWritten = 0;
+            for (int start = 0; start < runs.size(); start += fanIn) {
+                List<Path> group = runs.subList(start, Math.min(start + fanIn, runs.size()));
+                Path mergedFile = dir.resolve(String.format("mergedPostingList#%d#%d", pass, merged.size() + 1));
+
+                try (MergeStream in = MergeStream.ofRuns(group);
+                     RunFile.Writer out = RunFile.openWriter(mergedFile.toString())) {
+                    while (in.next()) {
+                        out.write(in.term(), in.docId(), in.freq(), in.positions());
+                    }
+                }
+                merged.add(mergedFile);
+                bytesWritten += Files.size(mergedFile);
+            }
+            metrics.mergePass(bytesWritten);
+            return merged;
+        }
 
-                // Sorted file
-                String sortedFileName = String.format("sortedPostingList#%d", i);
+        /* Reads a stream on a background thread into chunks of postings, handed over through a bounded queue.
+         * The reader blocks once QUEUE_CHUNKS chunks are waiting, so it never runs more than that far ahead
+         * of the consumer, and the chunks are recycled. Closing the stream stops the reader and closes the source. */
+        static class ReadAheadStream implements PostingStream {
+            private static final int CHUNK_POSTINGS = 4096;
+            private static final int QUEUE_CHUNKS = 8;
 
-                // Build and execute the sorting command line
-                List<String> fullSortCmd = new ArrayList<>(Arrays.asList(fileToSort, "-o", sortedFileName));
-                fullSortCmd.addAll(0, sortCmd);
-                executeCommand(fullSortCmd);
-//                System.out.println("======== Done Unix Sort " + fileToSort + " ========");
+            private final PostingStream source;
+            private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+            private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 2);
+            private final Thread reader;
+            private volatile Throwable failure;
 
-                // Add the sorted file to merge list
-                filesToMerge.add(sortedFileName);
+            private Chunk chunk;
+            private int index;
+            private boolean ended;
+            private int[] positions = new int[16];
 
-                // Remove original posting file
+            ReadAheadStream(PostingStream source) {
+                this.source = source;
+                // Enough chunks for a full queue, the one being filled and the one being consumed
+                for (int i = 0; i < QUEUE_CHUNKS + 2; i++) free.add(new Chunk());
+                reader = new Thread(this::read, "posting-read-ahead");
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            // Runs on the reader thread. An empty chunk marks the end of the source, or its failure.
+            private void read() {
                 try {
-                    Files.delete(Paths.get(fileToSort));
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    Chunk next;
+                    do {
+                        next = free.take();
+                        try {
+                            next.fill(source);
+                        } catch (IOException | RuntimeException | Error e) {
+                            failure = e;
+                            next.size = 0;
+                        }
+                        full.put(next);
+                    } while (next.size > 0);
+                } catch (InterruptedException e) {
+                    // Closed by the consumer
+                }
+            }
+
+            @Override
+            public boolean next() throws IOException {
+                if (chunk != null && ++index < chunk.size) return true;
+                if (ended) return false;
+                if (chunk != null) free.add(chunk);
+                try {
+                    chunk = full.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while merging postings");
                 }
+                index = 0;
+                if (chunk.size > 0) return true;
+
+                ended = true;
+                Throwable e = failure;
+                if (e instanceof IOException) throw (IOException) e;
+                if (e instanceof RuntimeException) throw (RuntimeException) e;
+                if (e instanceof Error) throw (Error) e;
+                return false;
             }
 
-            // Merge sorted files to one file and return the file name.
-            return merge(filesToMerge);
+            @Override
+            public String term() {
+                return chunk.terms[index];
+            }
+
+            @Override
+            public long docId() {
+                return chunk.docIds[index];
+            }
+
+            @Override
+            public long freq() {
+                return chunk.freqs[index];
+            }
+
+            @Override
+            public int[] positions() {
+                if (chunk.positionStarts == null) return null;
+                int from = chunk.positionStarts[index];
+                int n = chunk.positionStarts[index + 1] - from;
+                if (n > positions.length) positions = new int[Math.max(n, positions.length * 2)];
+                System.arraycopy(chunk.positions, from, positions, 0, n);
+                return positions;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.interrupt();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    source.close();
+                }
+            }
+
+            // Up to CHUNK_POSTINGS consecutive postings, with their positions laid end to end if they have any.
+            private static class Chunk {
+                final String[] terms = new String[CHUNK_POSTINGS];
+                final long[] docIds = new long[CHUNK_POSTINGS];
+                final long[] freqs = new long[CHUNK_POSTINGS];
+                int[] positionStarts;
+                int[] positions;
+                int size;
+
+                void fill(PostingStream source) throws IOException {
+                    size = 0;
+                    int numPositions = 0;
+                    while (size < CHUNK_POSTINGS && source.next()) {
+                        terms[size] = source.term();
+                        docIds[size] = source.docId();
+                        freqs[size] = source.freq();
+                        int[] current = source.positions();
+                        if (current != null) {
+                            if (positionStarts == null) {
+                                positionStarts = new int[CHUNK_POSTINGS + 1];
+                                positions = new int[CHUNK_POSTINGS * 4];
+                            }
+                            int freq = (int) freqs[size];
+                            if (numPositions + freq > positions.length) {
+                                positions = Arrays.copyOf(positions, Math.max(positions.length * 2, numPositions + freq));
+                            }
+                            System.arraycopy(current, 0, positions, numPositions, freq);
+                            positionStarts[size] = numPositions;
+                            numPositions += freq;
+                            positionStarts[size + 1] = numPositions;
+                        }
+                        size++;
+                    }
+                    // Drop the terms of a shorter last chunk, which would otherwise stay reachable
+                    Arrays.fill(terms, size, CHUNK_POSTINGS, null);
+                }
+            }
         }
 
-        private static String merge(List<String> filesToMerge) {
-            List<String> mergeCmd = new ArrayList<>(Arrays.asList("sort", "-m", "-k2,2n"));
+        // A sorted input being consumed by a merge, and the run file to delete afterwards if it is one.
+        private static class RunCursor {
+            final Path file;
+            final int order;
+            final PostingStream postings;
 
-//            System.out.println("======== Start merging posting files ========");
+            RunCursor(Path file, int order, PostingStream postings) {
+                this.file = file;
+                this.order = order;
+                this.postings = postings;
+            }
+        }
+
+        // Heap-based k-way merge over sorted inputs. Deletes the run files once closed.
+        private static class MergeStream implements PostingStream {
+            private final List<RunCursor> cursors = new ArrayList<>();
+            private final PriorityQueue<RunCursor> heap;
+            private RunCursor current;
 
-            // Build and execute the merging command line
-            mergeCmd.addAll(filesToMerge);
-            mergeCmd.add("-o");
-            mergeCmd.add("mergedPostingList");
-            executeCommand(mergeCmd);
-//            System.out.println("======== Done merging posting files ========");
+            private MergeStream(int numInputs) {
+                heap = new PriorityQueue<>(Math.max(1, numInputs), (a, b) -> {
+                    int cmp = a.postings.term().compareTo(b.postings.term());
+                    if (cmp == 0) cmp = Long.compare(a.postings.docId(), b.postings.docId());
+                    return cmp != 0 ? cmp : Integer.compare(a.order, b.order);
+                });
+            }
 
-            // Remove all the intermediate sorted postings
-            for (String fileToMerge : filesToMerge) {
+            // Merge of the runs in files, which are opened one by one.
+            static MergeStream ofRuns(List<Path> files) throws IOException {
+                MergeStream merge = new MergeStream(files.size());
                 try {
-                    Path path = Paths.get(fileToMerge);
-                    Files.delete(path);
+                    for (Path file : files) {
+                        merge.add(file, RunFile.openReader(file.toString()));
+                    }
                 } catch (IOException e) {
-                    System.err.println("Failed to delete file: " + fileToMerge);
-                    e.printStackTrace();
+                    merge.close();
+                    throw e;
                 }
+                return merge;
             }
-//            System.out.println("======== Done removing sorted files ========");
 
-            return "mergedPostingList";
-        }
+            // Merge of open streams, which it takes ownership of.
+            static MergeStream of(List<PostingStream> streams) throws IOException {
+                MergeStream merge = new MergeStream(streams.size());
+                int added = 0;
+                try {
+                    for (PostingStream stream : streams) {
+                        added++;
+                        merge.add(null, stream);
+                    }
+                } catch (IOException e) {
+                    for (PostingStream stream : streams.subList(added, streams.size())) {
+                        stream.close();
+                    }
+                    merge.close();
+                    throw e;
+                }
+                return merge;
+            }
+
+            private void add(Path file, PostingStream postings) throws IOException {
+                RunCursor cursor = new RunCursor(file, cursors.size(), postings);
+                cursors.add(cursor);
+                if (postings.next()) heap.add(cursor);
+            }
+
+            @Override
+            public boolean next() throws IOException {
+                if (current != null && current.postings.next()) heap.add(current);
+                current = heap.poll();
+                return current != null;
+            }
+
+            @Override
+            public String term() {
+                return current.postings.term();
+            }
+
+            @Override
+            public long docId() {
+                return current.postings.docId();
+            }
+
+            @Override
+            public long freq() {
+                return current.postings.freq();
+            }
 
-        private static void executeCommand(List<String> command) {
-            try {
-                ProcessBuilder processBuilder = new ProcessBuilder(command);
-                Process process = processBuilder.start();
+            @Override
+            public int[] positions() {
+                return current.postings.positions();
+            }
 
-                int exitCode = process.waitFor();
-                if (exitCode != 0) {
-                    System.err.println("Command executed with exit code: " + exitCode);
+            @Override
+            public void close() throws IOException {
+                IOException failure = null;
+                for (RunCursor cursor : cursors) {
+                    try {
+                        cursor.postings.close();
+                        if (cursor.file != null) Files.deleteIfExists(cursor.file);
+                    } catch (IOException e) {
+                        if (failure == null) failure = e;
+                        else failure.addSuppressed(e);
+                    }
                 }
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+                cursors.clear();
+                if (failure != null) throw failure;
             }
         }
     }
 
     static class VarByte {
 
-        // Encode a single number using variable byte encoding
-        public static List<Byte> encodeNum(int num) {
-            List<Byte> encodedBytes = new ArrayList<>();
+        // Encode a single number using variable byte encoding, returning the number of bytes written
+        public static int encodeNum(int num, ByteBuilder out) {
+            int start = out.size();
             while (num >= 128) {
-                encodedBytes.add((byte) (num & 0x7F)); // Write the 7 least significant bits
+                out.write(num & 0x7F); // Write the 7 least significant bits
                 num >>>= 7;  // Unsigned right shift by 7 bits
             }
-            encodedBytes.add((byte) (num | 0x80)); // Set the most significant bit to indicate end of number
-            return encodedBytes;
+            out.write(num | 0x80); // Set the most significant bit to indicate end of number
+            return out.size() - start;
         }
 
-        // Encode a list of numbers
-        public static List<Byte> encode(List<Integer> numbers) {
-            List<Byte> encodedArray = new ArrayList<>();
-            for (int number : numbers) {
-                encodedArray.addAll(encodeNum(number));
+        // Encode numbers[off, off + len), returning the number of bytes written
+        public static int encode(int[] numbers, int off, int len, ByteBuilder out) {
+            int start = out.size();
+            for (int i = off; i < off + len; i++) {
+                encodeNum(numbers[i], out);
+            }
+            return out.size() - start;
+        }
+
+        // Write a single number to a stream, using the same layout as encodeNum
+        public static void write(OutputStream out, long num) throws IOException {
+            while (num >= 128) {
+                out.write((int) (num & 0x7F));
+                num >>>= 7;
             }
-            return encodedArray;
+            out.write((int) (num | 0x80));
         }
 
-        // Decode a list of bytes into numbers
-        public static List<Integer> decode(List<Byte> encodedBytes) {
-            List<Integer> decodedNumbers = new ArrayList<>();
-            int currentNumber = 0;
+        // Read a single number written by write
+        public static long read(InputStream in) throws IOException {
+            long number = 0;
             int shiftAmount = 0;
-            for (byte encodedByte : encodedBytes) {
-                if (encodedByte >= 0) {  // Check if the most significant bit is 0
-                    currentNumber |= (encodedByte << shiftAmount);
-                    decodedNumbers.add(currentNumber);
-                    currentNumber = 0;
-                    shiftAmount = 0;
-                } else {  // Most significant bit is 1
-                    currentNumber |= ((encodedByte & 0x7F) << shiftAmount);  // Mask the most significant bit
+            while (true) {
+                int b = in.read();
+                if (b < 0) throw new EOFException("Truncated variable byte number");
+                number |= (long) (b & 0x7F) << shiftAmount;
+                if ((b & 0x80) != 0) return number; // The most significant bit marks the last byte
+                shiftAmount += 7;
+            }
+        }
+
+        // Decode n numbers starting at pos into out, returning the position after the last byte read
+        public static int decode(ByteBuffer in, int pos, int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                int number = 0;
+                int shiftAmount = 0;
+                int b;
+                while (((b = in.get(pos++)) & 0x80) == 0) {  // The most significant bit marks the last byte
+                    number |= b << shiftAmount;
                     shiftAmount += 7;
                 }
+                out[i] = number | ((b & 0x7F) << shiftAmount);  // Mask the most significant bit
+            }
+            return pos;
+        }
+
+        // Skip n numbers starting at pos, returning the position after the last byte skipped
+        public static int skip(ByteBuffer in, int pos, int n) {
+            while (n > 0) {
+                if ((in.get(pos++) & 0x80) != 0) n--;
             }
-            return decodedNumbers;
+            return pos;
+        }
+    }
+
+    // Growable byte array, reused to avoid allocating a buffer per encoded list
+    static class ByteBuilder {
+        private byte[] buf;
+        private int size;
+
+        ByteBuilder(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(int b) {
+            if (size == buf.length) buf = Arrays.copyOf(buf, size * 2);
+            buf[size++] = (byte) b;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, size);
         }
     }
 
+    // Growable int array
+    static class IntList {
+        private int[] buf;
+        private int size;
+
+        IntList(int capacity) {
+            buf = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == buf.length) buf = Arrays.copyOf(buf, size * 2);
+            buf[size++] = value;
+        }
+
+        void addAll(IntList other) {
+            if (size + other.size > buf.length) buf = Arrays.copyOf(buf, Math.max(size + other.size, size * 2));
+            System.arraycopy(other.buf, 0, buf, size, other.size);
+            size += other.size;
+        }
+
+        int get(int i) {
+            return buf[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    // Adds the number of bytes read to a counter, which other threads may read while this one is reading.
+    static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    // Keeps track of the number of bytes written so far, as a long unlike DataOutputStream.size().
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long count() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
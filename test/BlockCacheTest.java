@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCacheTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    void concurrentMissesDecodeOnce() throws Exception {
+        BlockCache cache = new BlockCache(1 << 20);
+        BlockCache.Key key = new BlockCache.Key(cache.register(), 42);
+        AtomicInteger decodes = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<BlockCache.Block>> loads = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                loads.add(threads.submit(() -> cache.load(key, () -> {
+                    decodes.incrementAndGet();
+                    await(release);  // Holds the decode until every other thread is waiting for it
+                    return new BlockCache.Block(new int[]{1, 2, 3}, 7);
+                })));
+            }
+            while (cache.coalesced() < THREADS - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            BlockCache.Block block = loads.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<BlockCache.Block> load : loads) {
+                assertSame(block, load.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, decodes.get());
+        assertEquals(THREADS - 1, cache.coalesced());
+
+        // Now cached: no decode at all
+        assertNotNull(cache.load(key, () -> fail("decoded a cached block")));
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    void failedDecodeIsNotCached() {
+        BlockCache cache = new BlockCache(1 << 20);
+        BlockCache.Key key = new BlockCache.Key(cache.register(), 0);
+        assertThrows(IllegalStateException.class, () -> cache.load(key, () -> {
+            throw new IllegalStateException("corrupt block");
+        }));
+        BlockCache.Block block = cache.load(key, () -> new BlockCache.Block(new int[]{5}, 1));
+        assertArrayEquals(new int[]{5}, block.gaps);
+    }
+
+    @Test
+    void readersDoNotShareBlocks() {
+        BlockCache cache = new BlockCache(1 << 20);
+        BlockCache.Key first = new BlockCache.Key(cache.register(), 0);
+        BlockCache.Key second = new BlockCache.Key(cache.register(), 0);
+        cache.load(first, () -> new BlockCache.Block(new int[]{1}, 1));
+        assertArrayEquals(new int[]{2}, cache.load(second, () -> new BlockCache.Block(new int[]{2}, 1)).gaps);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
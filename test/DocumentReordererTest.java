@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* A reordered index must hold the same documents under new docIDs: once docIDs are mapped to URLs through the
+ * page tables, every query matches the same documents and gives each the same score as in input order. */
+class DocumentReordererTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void urlOrderSortsTheUrls() throws IOException {
+        List<String> urls = urls(build(DocumentReorderer.Order.URL));
+        List<String> sorted = new ArrayList<>(urls);
+        Collections.sort(sorted);
+        assertEquals(sorted, urls);
+        assertNotEquals(urls(build(DocumentReorderer.Order.INPUT)), urls);
+    }
+
+    @Test
+    void reorderedIndexesAnswerAsTheInputOrder() throws IOException {
+        List<String> expected = answers(build(DocumentReorderer.Order.INPUT));
+        assertEquals(expected, answers(build(DocumentReorderer.Order.URL)), "url");
+        assertEquals(expected, answers(build(DocumentReorderer.Order.BISECTION)), "bisection");
+    }
+
+    private Path build(DocumentReorderer.Order order) throws IOException {
+        Path index = Files.createDirectories(dir.resolve(order.name()));
+        Path input = dir.resolve("input.trec");
+        if (!Files.exists(input)) IndexBuildTest.writeCollection(input);
+        IndexBuildTest.build(input, index, true, order);
+        return index;
+    }
+
+    // URLs of the documents of an index, in docID order.
+    private static List<String> urls(Path index) throws IOException {
+        List<String> urls = new ArrayList<>();
+        try (PageTable.Reader table = PageTable.open(index.resolve(PostingBuilder.PAGE_TABLE_FILE).toString())) {
+            for (int docId = 1; docId <= table.numDocs(); docId++) urls.add(table.url(docId));
+        }
+        return urls;
+    }
+
+    /* The AND, OR and phrase results of every query as sorted URLs, and every document it ranks as a sorted
+     * URL and score. Ranking all documents leaves no ties at the cut, which would depend on the docIDs. */
+    private static List<String> answers(Path index) throws IOException {
+        List<String> urls = urls(index);
+        List<String> answers = new ArrayList<>();
+        try (IndexReader reader = new IndexReader(index)) {
+            QueryProcessor processor = new QueryProcessor(reader);
+            Ranker ranker = new Ranker(reader, Bm25.load(index.resolve(PostingBuilder.PAGE_TABLE_FILE).toString()));
+            for (String query : IndexBuildTest.QUERIES) {
+                List<String> terms = QueryProcessor.parse(query);
+                answers.add("and " + query + ": " + byUrl(processor.conjunctive(terms), urls));
+                answers.add("or " + query + ": " + byUrl(processor.disjunctive(terms), urls));
+                answers.add("phrase " + query + ": " + byUrl(processor.phrase(QueryProcessor.tokens(query)), urls));
+
+                List<String> ranked = new ArrayList<>();
+                for (Ranker.ScoredDocument doc : ranker.topK(terms, urls.size(), Ranker.Strategy.BLOCK_MAX_WAND)) {
+                    ranked.add(urls.get(doc.docId - 1) + " " + doc.score);
+                }
+                Collections.sort(ranked);
+                answers.add("rank " + query + ": " + ranked);
+            }
+        }
+        return answers;
+    }
+
+    private static List<String> byUrl(int[] docIds, List<String> urls) {
+        List<String> matched = new ArrayList<>();
+        for (int docId : docIds) matched.add(urls.get(docId - 1));
+        Collections.sort(matched);
+        return matched;
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The impact index of the IndexBuildTest collection, with high tiers of only 4 postings so that most lists have
+ * a low tier and queries both finish from the tiers and fall back to the whole index. */
+class ImpactIndexTest {
+
+    private static final int MIN_TIER = 4;
+    private static final int[] KS = {1, 3, 10};
+
+    @TempDir
+    Path dir;
+
+    private List<List<String>> queries;
+
+    @BeforeEach
+    void build() throws IOException {
+        IndexBuildTest.build(IndexBuildTest.writeCollection(dir.resolve("input.trec")), dir, false);
+        queries = new ArrayList<>();
+        for (String query : IndexBuildTest.QUERIES) queries.add(QueryProcessor.parse(query));
+        for (String term : new String[]{"common", "filler", "rare", "w3", "quick"}) queries.add(List.of(term));
+    }
+
+    @Test
+    void tiersRankAsEveryStrategy() throws IOException {
+        ImpactIndex.build(dir, 0.1, MIN_TIER, 8);
+        try (ImpactIndex impacts = ImpactIndex.open(dir);
+             IndexReader reader = new IndexReader(dir)) {
+            Ranker ranker = new Ranker(reader, Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString()));
+            for (List<String> terms : queries) {
+                for (int k : KS) {
+                    String tiered = impacts.topKTiered(terms, k).toString();
+                    for (Ranker.Strategy strategy : Ranker.Strategy.values()) {
+                        assertEquals(ranker.topK(terms, k, strategy).toString(), tiered, terms + " top " + k + " " + strategy);
+                    }
+                }
+            }
+            long queries = impacts.tierCounters.queries.get();
+            long fromTiers = impacts.tierCounters.stoppedEarly.get();
+            assertTrue(fromTiers > 0 && fromTiers < queries, impacts.tierCounters.toString());
+        }
+    }
+
+    /* Without a budget, the impacts give the exhaustive top k unless quantization ties the k-th document with
+     * the next: with 16 bits a quantized score is off by less than 1e-4 per term, so a gap of 1e-3 is no tie. */
+    @Test
+    void impactsRankAsExhaustiveWithoutTies() throws IOException {
+        ImpactIndex.build(dir, 0.1, MIN_TIER, 16);
+        try (ImpactIndex impacts = ImpactIndex.open(dir);
+             IndexReader reader = new IndexReader(dir)) {
+            Ranker ranker = new Ranker(reader, Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString()));
+            int compared = 0;
+            for (List<String> terms : queries) {
+                for (int k : KS) {
+                    List<Ranker.ScoredDocument> exhaustive = ranker.topK(terms, k + 1, Ranker.Strategy.EXHAUSTIVE);
+                    if (exhaustive.size() > k && exhaustive.get(k - 1).score - exhaustive.get(k).score < 1e-3) continue;
+                    assertEquals(exhaustive.subList(0, Math.min(k, exhaustive.size())).toString(), impacts.topKImpacts(terms, k).toString(),
+                            terms + " top " + k);
+                    compared++;
+                }
+            }
+            assertTrue(compared > queries.size(), compared + " of " + queries.size() * KS.length + " compared");
+            assertTrue(impacts.impactCounters.stoppedEarly.get() > 0, impacts.impactCounters.toString());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Builds a small collection the way Run does, then queries it.
+class IndexBuildTest {
+
+    private static final int FILLER_DOCS = 300;  // Enough for inverted lists of several blocks
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void booleanQueries() throws IOException {
+        build(false);
+        try (IndexReader reader = new IndexReader(dir)) {
+            QueryProcessor processor = new QueryProcessor(reader);
+            assertFalse(reader.hasPositions());
+            assertArrayEquals(new int[]{1, 4}, processor.conjunctive(QueryProcessor.parse("Quick BROWN")));
+            assertArrayEquals(new int[]{1, 2, 3, 4}, processor.disjunctive(QueryProcessor.parse("lazy fox")));
+            assertArrayEquals(new int[0], processor.conjunctive(QueryProcessor.parse("quick missing")));
+            assertArrayEquals(IntStream.rangeClosed(5, 4 + FILLER_DOCS).toArray(), processor.conjunctive(List.of("common")));
+            assertArrayEquals(new int[]{50, 100, 150, 200, 250, 300}, processor.conjunctive(QueryProcessor.parse("common rare")));
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> processor.phrase(QueryProcessor.tokens("quick brown")));
+            assertEquals(QueryProcessor.NO_POSITIONS, e.getMessage());
+        }
+    }
+
+    @Test
+    void phraseQueries() throws IOException {
+        build(true);
+        try (IndexReader reader = new IndexReader(dir)) {
+            QueryProcessor processor = new QueryProcessor(reader);
+            assertTrue(reader.hasPositions());
+            assertArrayEquals(new int[]{1, 4}, processor.phrase(QueryProcessor.tokens("quick brown")));
+            assertArrayEquals(new int[]{1}, processor.phrase(QueryProcessor.tokens("brown fox")));
+            assertArrayEquals(new int[]{3}, processor.phrase(QueryProcessor.tokens("quick fox")));
+            assertArrayEquals(new int[]{2}, processor.phrase(QueryProcessor.tokens("the brown dog")));
+        }
+    }
+
+    @Test
+    void rankingStrategiesAgree() throws IOException {
+        build(false);
+        try (IndexReader reader = new IndexReader(dir)) {
+            Bm25 bm25 = Bm25.load(dir.resolve(PostingBuilder.PAGE_TABLE_FILE).toString());
+            Ranker ranker = new Ranker(reader, bm25);
+            for (String query : QUERIES) {
+                List<String> terms = QueryProcessor.parse(query);
+                String exhaustive = ranker.topK(terms, 10, Ranker.Strategy.EXHAUSTIVE).toString();
+                assertEquals(exhaustive, ranker.topK(terms, 10, Ranker.Strategy.WAND).toString(), query);
+                assertEquals(exhaustive, ranker.topK(terms, 10, Ranker.Strategy.BLOCK_MAX_WAND).toString(), query);
+            }
+            assertEquals(2, ranker.topK(List.of("lazy"), 10, Ranker.Strategy.BLOCK_MAX_WAND).get(0).docId);
+        }
+    }
+
+    private void build(boolean positions) throws IOException {
+        build(writeCollection(dir.resolve("input.trec")), dir, positions);
+    }
+
+    // Queries that tests compare different layouts of the collection by.
+    static final List<String> QUERIES = List.of("quick brown", "lazy fox", "quick dog common", "common rare", "fox common",
+            "w3 w5", "filler w7 w11 w19", "w0", "missing quick");
+
+    // Text of the documents of the collection; docID d is at index d - 1.
+    static List<String> documents() {
+        List<String> docs = new ArrayList<>(List.of("The quick brown fox", "The lazy dog.\nThe brown dog!", "quick fox, quick dog",
+                "fox quick brown"));
+        for (int docId = 5; docId < 5 + FILLER_DOCS; docId++) {
+            StringBuilder text = new StringBuilder(docId % 50 == 0 ? "common filler rare" : "common filler " + docId);
+            for (int i = 0; i < docId % 7; i++) {
+                text.append(" w").append((docId * 7 + i * i) % 23);  // Varied lengths and term frequencies for ranking
+            }
+            docs.add(text.toString());
+        }
+        return docs;
+    }
+
+    // URL of a document; URLs do not sort in docID order.
+    static String url(int docId) {
+        return "http://example.com/" + docId * 37 % 1000;
+    }
+
+    static Path writeCollection(Path file) throws IOException {
+        return writeCollection(file, 1, documents().size() + 1);
+    }
+
+    // Writes documents [from, to) of the collection to a TREC file.
+    static Path writeCollection(Path file, int from, int to) throws IOException {
+        List<String> docs = documents();
+        StringBuilder trec = new StringBuilder();
+        for (int docId = from; docId < to; docId++) {
+            trec.append("<TEXT>\n").append(url(docId)).append('\n').append(docs.get(docId - 1)).append("\n</TEXT>\n");
+        }
+        Files.writeString(file, trec, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    static void build(Path input, Path dir, boolean positions) throws IOException {
+        build(input, dir, positions, DocumentReorderer.Order.INPUT);
+    }
+
+    // Builds the index of input into dir, with the stages of Run.
+    static void build(Path input, Path dir, boolean positions, DocumentReorderer.Order order) throws IOException {
+        MemoryBudget budget = new MemoryBudget(1 << 20);
+        try (BuildMetrics metrics = new BuildMetrics()) {
+            int numRuns = new PostingBuilder(input.toString(), budget, 2, metrics, dir, positions).build();
+            DocumentReorderer.reorder(dir, numRuns, order, metrics);
+            try (PostingStream merged = Util.Merge.sortMerge(dir, numRuns, budget, metrics)) {
+                new InvertedIndexBuilder(merged, PostingCodec.VARBYTE, metrics, dir, positions, 2).buildInvertedIndex();
+            }
+        }
+    }
+
+    // The boolean and ranked queries of an index, whatever its layout.
+    interface Searcher {
+        int[] docIds(String mode, List<String> terms) throws IOException;
+
+        List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException;
+    }
+
+    static Searcher searcher(TermIndex index, Bm25 bm25) {
+        Ranker ranker = new Ranker(index, bm25);
+        return new Searcher() {
+            public int[] docIds(String mode, List<String> terms) throws IOException {
+                QueryProcessor processor = new QueryProcessor(index);
+                return mode.equals("and") ? processor.conjunctive(terms) : processor.disjunctive(terms);
+            }
+
+            public List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException {
+                return ranker.topK(terms, k, Ranker.Strategy.BLOCK_MAX_WAND);
+            }
+        };
+    }
+
+    // The AND and OR results and the BM25 top 10 of every query in QUERIES, one line each.
+    static List<String> answers(Searcher searcher) throws IOException {
+        List<String> answers = new ArrayList<>();
+        for (String query : QUERIES) {
+            List<String> terms = QueryProcessor.parse(query);
+            answers.add("and " + query + ": " + Arrays.toString(searcher.docIds("and", terms)));
+            answers.add("or " + query + ": " + Arrays.toString(searcher.docIds("or", terms)));
+            answers.add("rank " + query + ": " + searcher.topK(terms, 10));
+        }
+        return answers;
+    }
+}
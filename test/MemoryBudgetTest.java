@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void fanInNeverExceedsTheRuns() throws IOException {
+        MemoryBudget budget = new MemoryBudget(64 << 20);
+        assertEquals(0, budget.fanIn(List.of()));
+        assertEquals(1, budget.fanIn(runs(1)));
+        assertEquals(2, budget.fanIn(runs(2)));
+        assertEquals(5, budget.fanIn(runs(5)));
+    }
+
+    @Test
+    void fanInIsAtLeastTwoWhenTheReadersDoNotFit() throws IOException {
+        assertEquals(2, new MemoryBudget(1).fanIn(runs(5)));
+    }
+
+    @Test
+    void runBufferLimitIsHalfOfWhatIsLeft() {
+        MemoryBudget budget = new MemoryBudget(64 << 20);
+        assertEquals(32 << 20, budget.runBufferLimit());
+        budget.reserve(16 << 20);
+        assertEquals(24 << 20, budget.runBufferLimit());
+        budget.reserve(64 << 20);
+        assertEquals(MemoryBudget.MIN_RUN_BUFFER, budget.runBufferLimit());
+        budget.release(80 << 20);
+        assertEquals(32 << 20, budget.runBufferLimit());
+    }
+
+    private List<Path> runs(int n) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            Path run = dir.resolve(Util.Merge.runFileName(i));
+            try (RunFile.Writer out = RunFile.openWriter(run.toString())) {
+                out.write("term" + i, i, 1);
+            }
+            runs.add(run);
+        }
+        return runs;
+    }
+}
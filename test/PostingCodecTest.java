@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PostingCodecTest {
+
+    @Test
+    void everyCodecRoundTrips() {
+        for (PostingCodec codec : PostingCodec.ALL) {
+            for (int[] values : blocks()) {
+                assertRoundTrip(codec, values);
+            }
+        }
+    }
+
+    @Test
+    void codecsAreFoundByIdAndName() {
+        for (PostingCodec codec : PostingCodec.ALL) {
+            assertSame(codec, PostingCodec.forId(codec.id()));
+            assertSame(codec, PostingCodec.forName(codec.name().toUpperCase()));
+        }
+        assertSame(PostingCodec.PFOR_DELTA, PostingCodec.forName("pfor"));
+        assertThrows(IllegalArgumentException.class, () -> PostingCodec.forId(-1));
+        assertThrows(IllegalArgumentException.class, () -> PostingCodec.forName("gzip"));
+    }
+
+    // Encodes values between two other blocks, and checks that they decode from where they were written.
+    private static void assertRoundTrip(PostingCodec codec, int[] values) {
+        int[] padded = new int[values.length + 2];
+        padded[0] = 7;
+        System.arraycopy(values, 0, padded, 1, values.length);
+        padded[padded.length - 1] = 9;
+
+        Util.ByteBuilder out = new Util.ByteBuilder(16);
+        int before = codec.encode(padded, 0, 1, out);
+        int length = codec.encode(padded, 1, values.length, out);
+        int after = codec.encode(padded, values.length + 1, 1, out);
+        assertEquals(out.size(), before + length + after, codec.name());
+
+        ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(out.array(), out.size()));
+        int[] decoded = new int[values.length];
+        assertEquals(before + length, codec.decode(in, before, decoded, values.length), codec.name());
+        assertArrayEquals(values, decoded, codec.name() + " " + Arrays.toString(values));
+        int[] last = new int[1];
+        codec.decode(in, before + length, last, 1);
+        assertEquals(9, last[0], codec.name());
+    }
+
+    // Blocks of the sizes and value ranges of docID gaps and frequencies, with outliers for the exception paths.
+    private static List<int[]> blocks() {
+        List<int[]> blocks = new ArrayList<>();
+        blocks.add(new int[]{0});
+        blocks.add(new int[]{Integer.MAX_VALUE});
+        blocks.add(new int[64]);
+        int[] ascending = new int[64];
+        for (int i = 0; i < ascending.length; i++) ascending[i] = i;
+        blocks.add(ascending);
+
+        Random random = new Random(42);
+        for (int n : new int[]{1, 3, 63, 64, 65, 128, 200}) {
+            for (int maxBits : new int[]{1, 4, 7, 12, 20, 31}) {
+                int[] values = new int[n];
+                for (int i = 0; i < n; i++) values[i] = random.nextInt() >>> (32 - maxBits);  // Up to maxBits bits
+                blocks.add(values);
+                int[] outliers = values.clone();
+                for (int i = 0; i < n; i += 11) outliers[i] = random.nextInt(Integer.MAX_VALUE);
+                blocks.add(outliers);
+            }
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A segmented index must answer exactly as the single index of the same documents, before and after merging.
+class SegmentIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void segmentsAnswerAsTheSingleIndex() throws IOException {
+        Path single = Files.createDirectory(dir.resolve("single"));
+        IndexBuildTest.build(IndexBuildTest.writeCollection(dir.resolve("all.trec")), single, true);
+        List<String> expected;
+        try (IndexReader reader = new IndexReader(single)) {
+            expected = IndexBuildTest.answers(IndexBuildTest.searcher(reader, Bm25.load(single.resolve(PostingBuilder.PAGE_TABLE_FILE).toString())));
+        }
+
+        // Segment boundaries inside the first block of a list, and between blocks
+        int[] bounds = {1, 4, 70, 200, IndexBuildTest.documents().size() + 1};
+        Path segments = dir.resolve("segments");
+        try (SegmentIndex index = SegmentIndex.open(segments, PostingCodec.PFOR_DELTA, true)) {
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                Path input = IndexBuildTest.writeCollection(dir.resolve("part" + i + ".trec"), bounds[i], bounds[i + 1]);
+                try (BuildMetrics metrics = new BuildMetrics()) {
+                    assertEquals(bounds[i + 1] - bounds[i], index.add(input.toString(), metrics));
+                }
+            }
+            index.waitForMerges();
+            try (SegmentIndex.Snapshot snapshot = index.acquire()) {
+                assertEquals(bounds.length - 1, numSegments(segments));
+                assertSnapshotMatches(expected, snapshot);
+            }
+
+            index.forceMerge();
+            try (SegmentIndex.Snapshot snapshot = index.acquire()) {
+                assertEquals(1, numSegments(segments));
+                assertSnapshotMatches(expected, snapshot);
+            }
+        }
+
+        // As a separate process would open it
+        try (SegmentIndex.Snapshot snapshot = SegmentIndex.openSnapshot(segments)) {
+            assertSnapshotMatches(expected, snapshot);
+        }
+    }
+
+    private static long numSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isDirectory).count();
+        }
+    }
+
+    private static void assertSnapshotMatches(List<String> expected, SegmentIndex.Snapshot snapshot) throws IOException {
+        assertEquals(IndexBuildTest.documents().size(), snapshot.numDocs());
+        assertTrue(snapshot.hasPositions());
+        assertEquals(expected, IndexBuildTest.answers(IndexBuildTest.searcher(snapshot, snapshot.bm25())));
+        QueryProcessor processor = new QueryProcessor(snapshot);
+        assertArrayEquals(new int[]{1, 4}, processor.phrase(QueryProcessor.tokens("quick brown")));
+        assertArrayEquals(new int[]{2}, processor.phrase(QueryProcessor.tokens("the brown dog")));
+    }
+}
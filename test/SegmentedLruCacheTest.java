@@ -0,0 +1,127 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A single stripe of capacity 100, whose protected segment holds at most 80; an entry weighs its value.
+class SegmentedLruCacheTest {
+
+    private static SegmentedLruCache<String, Integer> cache() {
+        return new SegmentedLruCache<>(100, 1, (key, weight) -> weight);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedProbationEntriesFirst() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 30);
+        cache.put("b", 30);
+        cache.put("c", 30);
+        cache.put("d", 30);
+        assertEquals(1, cache.evictions());
+        assertEquals(90, cache.weight());
+        assertNull(cache.get("a"));
+        assertEquals(30, cache.get("b"));
+        assertEquals(30, cache.get("c"));
+        assertEquals(30, cache.get("d"));
+    }
+
+    @Test
+    void hitPromotesToProtected() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 30);
+        cache.put("b", 30);
+        cache.put("c", 30);
+        cache.get("a");  // a is protected, so b is now the eldest in probation
+        cache.put("d", 30);
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("b"));
+        assertEquals(30, cache.get("a"));
+        assertEquals(30, cache.get("c"));
+        assertEquals(30, cache.get("d"));
+    }
+
+    @Test
+    void protectedOverflowIsDemotedToProbation() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 30);
+        cache.get("a");
+        cache.put("b", 30);
+        cache.get("b");
+        cache.put("c", 30);
+        cache.get("c");  // Protected would hold 90 of its 80, so a falls back to probation
+        assertEquals(0, cache.evictions());
+
+        cache.put("d", 30);  // Probation holds a and d; a is the eldest
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("a"));
+        assertEquals(30, cache.get("b"));
+        assertEquals(30, cache.get("c"));
+        assertEquals(30, cache.get("d"));
+    }
+
+    @Test
+    void rejectsEntriesHeavierThanAStripe() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 20);
+        cache.put("big", 101);
+        assertNull(cache.get("big"));
+        assertEquals(20, cache.weight());
+        assertEquals(0, cache.evictions());
+
+        cache.put("a", 101);  // Replacing an entry with one too heavy drops it
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.weight());
+
+        cache.put("full", 100);  // A stripe's weight exactly fits
+        assertEquals(100, cache.get("full"));
+    }
+
+    @Test
+    void replacingAnEntryReplacesItsWeight() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 30);
+        cache.get("a");
+        cache.put("a", 50);
+        assertEquals(50, cache.weight());
+        assertEquals(50, cache.get("a"));
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        assertEquals(0, cache.hitRate());
+        cache.put("a", 10);
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(2 / 3.0, cache.hitRate(), 1e-9);
+    }
+
+    @Test
+    void stripesSplitTheCapacity() {
+        SegmentedLruCache<Integer, Integer> cache = new SegmentedLruCache<>(400, 4, (key, weight) -> weight);
+        for (int key = 0; key < 1000; key++) {
+            cache.put(key, 10);
+        }
+        assertTrue(cache.weight() <= 400);
+        assertTrue(cache.weight() > 300);  // Every stripe is close to full
+        assertThrows(IllegalArgumentException.class, () -> new SegmentedLruCache<String, Integer>(100, 3, (key, weight) -> weight));
+    }
+
+    @Test
+    void newEntryDisplacesProtectedEntriesOnceProbationIsEmpty() {
+        SegmentedLruCache<String, Integer> cache = cache();
+        cache.put("a", 40);
+        cache.get("a");
+        cache.put("b", 40);
+        cache.get("b");  // Protected is full
+
+        cache.put("c", 30);  // More than probation has room for
+        assertEquals(1, cache.evictions());
+        assertEquals(70, cache.weight());
+        assertNull(cache.get("a"));  // The least recently used protected entry made room
+        assertEquals(40, cache.get("b"));
+        assertEquals(30, cache.get("c"));
+    }
+}
@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A sharded index must answer exactly as the single index of the same documents, under global docIDs.
+class ShardedIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void shardsAnswerAsTheSingleIndex() throws IOException {
+        Path input = IndexBuildTest.writeCollection(dir.resolve("input.trec"));
+        Path single = Files.createDirectory(dir.resolve("single"));
+        IndexBuildTest.build(input, single, true);
+        List<String> expected;
+        try (IndexReader reader = new IndexReader(single)) {
+            expected = IndexBuildTest.answers(IndexBuildTest.searcher(reader, Bm25.load(single.resolve(PostingBuilder.PAGE_TABLE_FILE).toString())));
+        }
+
+        // One shard, a number that does not divide the collection, and more shards than documents in a block
+        for (int numShards : new int[]{1, 3, 5}) {
+            Path sharded = dir.resolve("sharded" + numShards);
+            int numDocs = ShardedIndex.build(input.toString(), sharded, numShards, PostingCodec.PFOR_DELTA, true, new MemoryBudget(1 << 20));
+            assertEquals(IndexBuildTest.documents().size(), numDocs);
+            try (ShardedIndex index = ShardedIndex.open(sharded)) {
+                assertEquals(numDocs, index.numDocs());
+                assertTrue(index.hasPositions());
+                assertEquals(expected, IndexBuildTest.answers(searcher(index)), numShards + " shards");
+                assertArrayEquals(new int[]{1, 4}, index.docIds("phrase", QueryProcessor.tokens("quick brown")));
+                assertArrayEquals(new int[]{2}, index.docIds("phrase", QueryProcessor.tokens("the brown dog")));
+            }
+        }
+    }
+
+    private static IndexBuildTest.Searcher searcher(ShardedIndex index) {
+        return new IndexBuildTest.Searcher() {
+            public int[] docIds(String mode, List<String> terms) throws IOException {
+                return index.docIds(mode, terms);
+            }
+
+            public List<Ranker.ScoredDocument> topK(List<String> terms, int k) throws IOException {
+                return index.topK(terms, k);
+            }
+        };
+    }
+}
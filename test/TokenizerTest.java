@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Tokenizer against the regular expression it replaced: the token streams must be identical.
+class TokenizerTest {
+
+    private static final Pattern TERM_PATTERN = Pattern.compile("\\w+|%\\d+|\\$\\d+");
+
+    // Characters the random lines are made of: ASCII word characters, the % and $ prefixes, separators, and
+    // non-ASCII letters and digits, some of which lower-case to ASCII (the Kelvin sign, dotted capital I).
+    private static final String ALPHABET = "aZzA09_%$ \t.,;-'\"!?()<>/\\éÉßİıK٣１中😀";
+
+    @Test
+    void matchesRegexOnHandPickedLines() {
+        for (String line : List.of(
+                "",
+                "The Quick BROWN fox",
+                "snake_case and __dunder__ _",
+                "50% off: %50 %% %5x $100 $ $$7 $x9 US$30 a%1 9$9",
+                "trailing %",
+                "trailing $",
+                "x%",
+                "Café naïve ÉCOLE straße İstanbul Kelvin K",
+                "東京2020 ３ ٣ 中文abc",
+                "emoji😀split",
+                "tab\tnew\nline\rreturn",
+                "MiXeD123CaSe_456 ABC-def.GHI")) {
+            assertEquals(regexTokens(line), tokens(line), line);
+        }
+    }
+
+    @Test
+    void matchesRegexOnRandomLines() {
+        Random random = new Random(7);
+        Tokenizer tokenizer = new Tokenizer();  // Reused, as PostingBuilder does, across lines of growing length
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder line = new StringBuilder();
+            int length = random.nextInt(i < 19_000 ? 40 : 3000);
+            for (int j = 0; j < length; j++) {
+                line.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            String text = line.toString();
+            assertEquals(regexTokens(text), tokens(tokenizer, text), text);
+        }
+    }
+
+    @Test
+    void tokenizesSlicesInPlace() {
+        char[] buf = "xx Hello $5 World yy".toCharArray();
+        List<String> tokens = new ArrayList<>();
+        Tokenizer.tokenize(buf, 3, 17, (b, start, length) -> tokens.add(new String(b, start, length)));
+        assertEquals(List.of("hello", "$5", "world"), tokens);
+        assertEquals("xx hello $5 world yy", new String(buf));  // Lower-cased in place, outside the slice untouched
+    }
+
+    private static List<String> regexTokens(String line) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TERM_PATTERN.matcher(line);
+        while (matcher.find()) {
+            tokens.add(matcher.group().toLowerCase());
+        }
+        return tokens;
+    }
+
+    private static List<String> tokens(String line) {
+        return tokens(new Tokenizer(), line);
+    }
+
+    private static List<String> tokens(Tokenizer tokenizer, String line) {
+        List<String> tokens = new ArrayList<>();
+        tokenizer.tokenize(line, (buf, start, length) -> tokens.add(new String(buf, start, length)));
+        return tokens;
+    }
+}
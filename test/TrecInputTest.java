@@ -0,0 +1,145 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The same collection as plain text, as one gzip member, and as many members: of 150 KB, of 1 KB, and with a
+ * stored member in which a false member header makes a range fail, so that the rest of the file is streamed.
+ * Every form must decode to the same bytes and build the same index. Ranges are cut past 1 MB, so the
+ * collection is a few MB. */
+class TrecInputTest {
+
+    private static final int NUM_DOCS = 20_000;
+
+    // Looks like a member header to the splitter: magic, deflate, no flags, no time, XFL 0, OS 255.
+    private static final byte[] FALSE_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    @TempDir
+    static Path dir;
+
+    private static byte[] collection;
+    private static int falseHeaderAt;  // Offset of the false header, on a line between two documents
+
+    @BeforeAll
+    static void writeInputs() throws IOException {
+        collection = collection();
+        Files.write(dir.resolve("plain.trec"), collection);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(dir.resolve("single.trec.gz")))) {
+            out.write(collection);
+        }
+        Files.write(dir.resolve("members.trec.gz"), members(150 << 10, -1));
+        Files.write(dir.resolve("tiny.trec.gz"), members(1 << 10, -1));
+        Files.write(dir.resolve("fallback.trec.gz"), members(150 << 10, falseHeaderAt));
+    }
+
+    @Test
+    void wholeMembersInflateWithoutFallingBack() throws IOException {
+        assertDecodes("members.trec.gz", false);
+        assertDecodes("tiny.trec.gz", false);
+        assertDecodes("single.trec.gz", false);  // One range up to MAX_RANGE_SIZE, as there is no cut
+    }
+
+    @Test
+    void failedRangeFallsBackToStreaming() throws IOException {
+        assertDecodes("fallback.trec.gz", true);
+    }
+
+    @Test
+    void everyFormBuildsTheSameIndex() throws IOException {
+        Path expected = build("plain.trec");
+        for (String input : new String[]{"single.trec.gz", "members.trec.gz", "tiny.trec.gz", "fallback.trec.gz"}) {
+            Path actual = build(input);
+            for (String file : new String[]{InvertedIndexBuilder.OUTPUT_FILE, InvertedIndexBuilder.LEXICON_FILE, PostingBuilder.PAGE_TABLE_FILE}) {
+                assertArrayEquals(Files.readAllBytes(expected.resolve(file)), Files.readAllBytes(actual.resolve(file)), input + " " + file);
+            }
+        }
+    }
+
+    private static void assertDecodes(String name, boolean streaming) throws IOException {
+        Path file = dir.resolve(name);
+        AtomicLong bytesRead = new AtomicLong();
+        try (TrecInput.ParallelGzipInputStream in = new TrecInput.ParallelGzipInputStream(file, 4, bytesRead)) {
+            assertArrayEquals(collection, in.readAllBytes(), name);
+            assertEquals(streaming, in.streaming(), name);
+        }
+        assertEquals(Files.size(file), bytesRead.get(), name);
+    }
+
+    private static Path build(String input) throws IOException {
+        Path index = Files.createDirectory(dir.resolve(input + ".index"));
+        IndexBuildTest.build(dir.resolve(input), index, false);
+        return index;
+    }
+
+    // Random documents over a large vocabulary, so that the text compresses about as poorly as real text,
+    // with some non-ASCII words; and one line outside the documents holding FALSE_HEADER, past the first 1 MB.
+    private static byte[] collection() {
+        Random random = new Random(18);
+        String[] vocabulary = new String[20_000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int n = 2 + random.nextInt(8); n > 0; n--) word.append((char) ((random.nextBoolean() ? 'a' : 'A') + random.nextInt(26)));
+            vocabulary[i] = i % 500 == 0 ? word + "\u00e9" : i % 300 == 0 ? "$" + i : word.toString();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int docId = 1; docId <= NUM_DOCS; docId++) {
+            if (docId == NUM_DOCS / 2) {
+                falseHeaderAt = out.size() + 1;
+                out.write('\n');
+                out.writeBytes(FALSE_HEADER);
+                out.write('\n');
+            }
+            StringBuilder doc = new StringBuilder("<TEXT>\nhttp://example.com/" + docId + "\n");
+            for (int line = 1 + random.nextInt(4); line > 0; line--) {
+                for (int n = 5 + random.nextInt(15); n > 0; n--) doc.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+                doc.append('\n');
+            }
+            out.writeBytes(doc.append("</TEXT>\n").toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    /* The collection as gzip members of memberSize bytes of text each. If falseHeaderAt is not negative, the
+     * member holding it is stored rather than compressed and starts more than 1 MB before it, so that the
+     * splitter cuts a range there. */
+    private static byte[] members(int memberSize, int falseHeaderAt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = 0;
+        while (start < collection.length) {
+            int end = Math.min(start + memberSize, collection.length);
+            boolean stored = falseHeaderAt >= 0 && end > falseHeaderAt - (1200 << 10);
+            GZIPOutputStream member;
+            if (stored) {
+                end = Math.min(falseHeaderAt + (200 << 10), collection.length);
+                falseHeaderAt = -1;
+                member = new StoredGzipOutputStream(out);
+            } else {
+                member = new GZIPOutputStream(out);
+            }
+            member.write(collection, start, end - start);
+            member.finish();
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    private static class StoredGzipOutputStream extends GZIPOutputStream {
+        StoredGzipOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.NO_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VarByteTest {
+
+    private static final int[] NUMBERS = {0, 1, 127, 128, 255, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE};
+
+    @Test
+    void encodeNumRoundTrips() {
+        Util.ByteBuilder out = new Util.ByteBuilder(4);
+        out.write(0x55);  // Something before the numbers, so that positions are checked too
+        for (int number : NUMBERS) {
+            Util.VarByte.encodeNum(number, out);
+        }
+        ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(out.array(), out.size()));
+        int[] decoded = new int[NUMBERS.length];
+        assertEquals(out.size(), Util.VarByte.decode(in, 1, decoded, NUMBERS.length));
+        assertArrayEquals(NUMBERS, decoded);
+        assertEquals(out.size(), Util.VarByte.skip(in, 1, NUMBERS.length));
+    }
+
+    @Test
+    void encodeNumUsesSevenBitsPerByte() {
+        Util.ByteBuilder out = new Util.ByteBuilder(8);
+        assertEquals(1, Util.VarByte.encodeNum(127, out));
+        assertEquals(2, Util.VarByte.encodeNum(128, out));
+        assertEquals(5, Util.VarByte.encodeNum(Integer.MAX_VALUE, out));
+        assertEquals(0xFF, out.array()[0] & 0xFF);  // The last byte of a number is flagged
+    }
+
+    @Test
+    void streamRoundTrips() throws IOException {
+        long[] numbers = {0, 1, 127, 128, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (long number : numbers) {
+            Util.VarByte.write(bytes, number);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        for (long number : numbers) {
+            assertEquals(number, Util.VarByte.read(in));
+        }
+        assertThrows(EOFException.class, () -> Util.VarByte.read(in));
+    }
+
+    @Test
+    void streamAndBufferLayoutsMatch() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Util.ByteBuilder out = new Util.ByteBuilder(4);
+        for (int number : NUMBERS) {
+            Util.VarByte.write(bytes, number);
+            Util.VarByte.encodeNum(number, out);
+        }
+        assertArrayEquals(bytes.toByteArray(), Arrays.copyOf(out.array(), out.size()));
+    }
+}